@@ -0,0 +1,245 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.AvroRuntimeException;
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileConstants;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.commons.compress.compressors.bzip2.BZip2CompressorInputStream;
+import org.apache.commons.compress.compressors.xz.XZCompressorInputStream;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.xerial.snappy.Snappy;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.CRC32;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterOutputStream;
+
+/**
+ * Reads an avro container like DataFileStream, but splits it at the sync markers and decompresses and decodes
+ * the blocks on a worker pool. The calling thread only copies the raw block bytes, up to window blocks are
+ * decoded ahead, and records come out in file order. Without a pool every block is decoded on the calling thread.
+ * The null, deflate, snappy, bzip2 and xz codecs of the container format are supported. Records are never reused.
+ * Closing the reader cancels the blocks still being decoded, it does not close the input stream.
+ */
+public class AvroBlockReader implements Iterator<GenericRecord>, Closeable {
+    //avro的Codec实例不是线程安全的且不能公开创建，这里按容器格式的codec名称分别解压，每次调用只用局部状态
+    private static final Map<String, BlockCodec> CODECS = new HashMap<>();
+
+    static {
+        CODECS.put(DataFileConstants.NULL_CODEC, ByteBuffer::wrap);
+        CODECS.put(DataFileConstants.DEFLATE_CODEC, AvroBlockReader::inflate);
+        CODECS.put(DataFileConstants.SNAPPY_CODEC, AvroBlockReader::unsnappy);
+        CODECS.put(DataFileConstants.BZIP2_CODEC, block -> readAll(new BZip2CompressorInputStream(new ByteArrayInputStream(block))));
+        CODECS.put(DataFileConstants.XZ_CODEC, block -> readAll(new XZCompressorInputStream(new ByteArrayInputStream(block))));
+    }
+
+    private final BinaryDecoder vin;
+    private final Schema schema;
+    private final Map<String, byte[]> meta = new HashMap<>();
+    private final BlockCodec codec;
+    private final byte[] sync = new byte[DataFileConstants.SYNC_SIZE];
+    private final byte[] syncBuffer = new byte[DataFileConstants.SYNC_SIZE];
+    private final ExecutorService executor;
+    private final int window;
+    private final ArrayDeque<Future<List<GenericRecord>>> inFlight = new ArrayDeque<>();
+    private Iterator<GenericRecord> current = Collections.emptyIterator();
+    private boolean endOfInput;
+
+    /**
+     * @param executor pool that decodes the blocks, null to decode on the calling thread
+     * @param window maximum number of blocks read ahead of the record being returned
+     */
+    public AvroBlockReader(InputStream in, ExecutorService executor, int window) throws IOException {
+        this.executor = executor;
+        this.window = Math.max(1, window);
+        vin = DecoderFactory.get().binaryDecoder(in, null);
+        final byte[] magic = new byte[DataFileConstants.MAGIC.length];
+        try {
+            vin.readFixed(magic);
+        } catch (IOException e) {
+            throw new IOException("Not a data file.", e);
+        }
+        if (!Arrays.equals(DataFileConstants.MAGIC, magic)) {
+            throw new IOException("Not a data file.");
+        }
+        for (long l = vin.readMapStart(); l != 0; l = vin.mapNext()) {
+            for (long i = 0; i < l; i++) {
+                final String key = vin.readString(null).toString();
+                final ByteBuffer value = vin.readBytes(null);
+                final byte[] bytes = new byte[value.remaining()];
+                value.get(bytes);
+                meta.put(key, bytes);
+            }
+        }
+        vin.readFixed(sync);
+        schema = new Schema.Parser().setValidate(false).parse(getMetaString(DataFileConstants.SCHEMA));
+        final String codecName = getMetaString(DataFileConstants.CODEC);
+        codec = CODECS.get(codecName == null ? DataFileConstants.NULL_CODEC : codecName);
+        if (codec == null) {
+            throw new IOException("Unsupported codec: " + codecName);
+        }
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public String getMetaString(String key) {
+        final byte[] value = meta.get(key);
+        return value == null ? null : new String(value, StandardCharsets.UTF_8);
+    }
+
+    @Override
+    public boolean hasNext() {
+        try {
+            while (!current.hasNext()) {
+                fill();
+                if (inFlight.isEmpty()) {
+                    return false;
+                }
+                current = await(inFlight.pollFirst()).iterator();
+            }
+            return true;
+        } catch (IOException e) {
+            throw new AvroRuntimeException(e);
+        }
+    }
+
+    @Override
+    public GenericRecord next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        return current.next();
+    }
+
+    @Override
+    public void close() {
+        for (Future<List<GenericRecord>> block : inFlight) {
+            block.cancel(true);
+        }
+        inFlight.clear();
+        endOfInput = true;
+    }
+
+    // 读入原始数据块直到窗口填满
+    private void fill() throws IOException {
+        while (!endOfInput && inFlight.size() < window) {
+            if (vin.isEnd()) {
+                endOfInput = true;
+                return;
+            }
+            final long count = vin.readLong();
+            final long size = vin.readLong();
+            if (size > Integer.MAX_VALUE || size < 0) {
+                throw new IOException("Block size invalid or too large: " + size);
+            }
+            final byte[] block = new byte[(int) size];
+            vin.readFixed(block);
+            vin.readFixed(syncBuffer);
+            if (!Arrays.equals(sync, syncBuffer)) {
+                throw new IOException("Invalid sync!");
+            }
+            if (executor == null) {
+                inFlight.addLast(CompletableFuture.completedFuture(decode(block, count)));
+                return;
+            }
+            inFlight.addLast(executor.submit(() -> decode(block, count)));
+        }
+    }
+
+    private List<GenericRecord> decode(byte[] block, long count) throws IOException {
+        final ByteBuffer data = codec.decompress(block);
+        final BinaryDecoder in = DecoderFactory.get().binaryDecoder(data.array(), data.arrayOffset() + data.position(), data.remaining(), null);
+        final GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema);
+        final List<GenericRecord> records = new ArrayList<>((int) Math.min(count, 1 << 16));
+        for (long i = 0; i < count; i++) {
+            records.add(datumReader.read(null, in));
+        }
+        return records;
+    }
+
+    private static ByteBuffer inflate(byte[] block) throws IOException {
+        final Inflater inflater = new Inflater(true);
+        final Bytes out = new Bytes(block.length * 4);
+        try (InflaterOutputStream inflated = new InflaterOutputStream(out, inflater)) {
+            inflated.write(block);
+        } finally {
+            inflater.end();
+        }
+        return out.buffer();
+    }
+
+    private static ByteBuffer unsnappy(byte[] block) throws IOException {
+        final int length = block.length - 4; //最后4字节是解压后数据的CRC32
+        final byte[] data = new byte[Snappy.uncompressedLength(block, 0, length)];
+        Snappy.uncompress(block, 0, length, data, 0);
+        final CRC32 crc = new CRC32();
+        crc.update(data, 0, data.length);
+        if ((int) crc.getValue() != ByteBuffer.wrap(block, length, 4).getInt()) {
+            throw new IOException("Checksum failure");
+        }
+        return ByteBuffer.wrap(data);
+    }
+
+    private static ByteBuffer readAll(InputStream in) throws IOException {
+        try (InputStream stream = in) {
+            final Bytes out = new Bytes(8192);
+            final byte[] buffer = new byte[8192];
+            for (int n = stream.read(buffer); n >= 0; n = stream.read(buffer)) {
+                out.write(buffer, 0, n);
+            }
+            return out.buffer();
+        }
+    }
+
+    private static List<GenericRecord> await(Future<List<GenericRecord>> block) throws IOException {
+        try {
+            return block.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("interrupted while decoding avro blocks", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private interface BlockCodec {
+        ByteBuffer decompress(byte[] block) throws IOException;
+    }
+
+    private static final class Bytes extends ByteArrayOutputStream {
+        private Bytes(int size) {
+            super(size);
+        }
+
+        private ByteBuffer buffer() {
+            return ByteBuffer.wrap(buf, 0, count);
+        }
+    }
+}
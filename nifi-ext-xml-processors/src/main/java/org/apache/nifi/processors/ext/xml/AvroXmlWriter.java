@@ -0,0 +1,309 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericEnumSymbol;
+import org.apache.avro.generic.GenericFixed;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Writes avro records as XML elements through one {@link XMLStreamWriter} that is reused for every document.
+ * Field values are copied into a reused char buffer instead of being turned into strings, characters that are
+ * not allowed in XML 1.0 and unpaired surrogates are written as spaces, and the fields named as raw are written
+ * verbatim because they already hold XML markup. Nested records from {@link XmlShredder} are written back with their original element
+ * and attribute names.
+ */
+public class AvroXmlWriter {
+    private static final XMLOutputFactory factory = XMLOutputFactory.newInstance();
+    private static final String ENTRY = "entry";
+    private static final String KEY = "key";
+    private static final String VALUE = "value";
+
+    private final String rootElement;
+    private final String recordElement;
+    private final Set<String> rawFields;
+    private final TargetWriter target = new TargetWriter();
+    private final XMLStreamWriter xml;
+    private final CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+            .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+    private CharBuffer chars = CharBuffer.allocate(1024);
+
+    /**
+     * @param rootElement element wrapping all records of a document, null to write each record as its own document
+     * @param rawFields   top level fields whose string values are written without escaping
+     */
+    public AvroXmlWriter(String rootElement, String recordElement, Set<String> rawFields) throws XMLStreamException {
+        this.rootElement = rootElement;
+        this.recordElement = recordElement;
+        this.rawFields = rawFields;
+        xml = factory.createXMLStreamWriter(target);
+    }
+
+    public void startDocument(OutputStream out) throws IOException, XMLStreamException {
+        target.out = new BufferedWriter(new OutputStreamWriter(out, StandardCharsets.UTF_8), 65536);
+        //声明直接写出，XMLStreamWriter 只负责元素，便于在多个文档间复用
+        target.out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n");
+        if (rootElement != null) {
+            xml.writeStartElement(rootElement);
+        }
+    }
+
+    public void write(GenericRecord record) throws IOException, XMLStreamException {
+        writeRecord(recordElement, record, true);
+    }
+
+    /**
+     * close the root element and flush, the output stream itself is left open
+     */
+    public void endDocument() throws IOException, XMLStreamException {
+        if (rootElement != null) {
+            xml.writeEndElement();
+        }
+        xml.flush();
+        target.out.flush();
+        target.out = null;
+    }
+
+    private void writeRecord(String name, GenericRecord record, boolean top) throws IOException, XMLStreamException {
+        xml.writeStartElement(name);
+        final Schema schema = record.getSchema();
+        //属性必须紧跟在开始标签之后
+        for (Schema.Field field : schema.getFields()) {
+            final String attribute = field.getProp(XmlShredder.XML_ATTRIBUTE);
+            final Object value = record.get(field.pos());
+            if (attribute != null && value != null) {
+                writeAttribute(attribute, value);
+            }
+        }
+        for (Schema.Field field : schema.getFields()) {
+            final Object value = record.get(field.pos());
+            if (value == null || field.getProp(XmlShredder.XML_ATTRIBUTE) != null) {
+                continue;
+            }
+            if (!top && XmlShredder.TEXT_FIELD.equals(field.name())) {
+                writeText(value);
+                continue;
+            }
+            final String xmlName = field.getProp(XmlShredder.XML_NAME);
+            if (top && rawFields.contains(field.name()) && value instanceof CharSequence) {
+                xml.writeStartElement(field.name());
+                writeRaw((CharSequence) value);
+                xml.writeEndElement();
+            } else {
+                writeValue(xmlName != null ? xmlName : field.name(), field.schema(), value);
+            }
+        }
+        xml.writeEndElement();
+    }
+
+    private void writeValue(String name, Schema schema, Object value) throws IOException, XMLStreamException {
+        if (schema.getType() == Schema.Type.UNION) {
+            schema = schema.getTypes().get(GenericData.get().resolveUnion(schema, value));
+        }
+        switch (schema.getType()) {
+            case NULL:
+                return;
+            case RECORD:
+                writeRecord(name, (GenericRecord) value, false);
+                return;
+            case ARRAY:
+                //重复的子节点
+                for (Object item : (Collection<?>) value) {
+                    if (item != null) {
+                        writeValue(name, schema.getElementType(), item);
+                    }
+                }
+                return;
+            case MAP:
+                xml.writeStartElement(name);
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    if (entry.getValue() == null) {
+                        continue;
+                    }
+                    xml.writeStartElement(ENTRY);
+                    writeAttribute(KEY, entry.getKey());
+                    writeMapValue(schema.getValueType(), entry.getValue());
+                    xml.writeEndElement();
+                }
+                xml.writeEndElement();
+                return;
+            default:
+                xml.writeStartElement(name);
+                writeText(value);
+                xml.writeEndElement();
+        }
+    }
+
+    private void writeMapValue(Schema schema, Object value) throws IOException, XMLStreamException {
+        if (schema.getType() == Schema.Type.UNION) {
+            schema = schema.getTypes().get(GenericData.get().resolveUnion(schema, value));
+        }
+        if (schema.getType() == Schema.Type.RECORD || schema.getType() == Schema.Type.ARRAY || schema.getType() == Schema.Type.MAP) {
+            writeValue(VALUE, schema, value);
+        } else {
+            writeText(value);
+        }
+    }
+
+    private void writeText(Object value) throws XMLStreamException {
+        toChars(value);
+        xml.writeCharacters(chars.array(), 0, chars.position());
+    }
+
+    /**
+     * 属性值与文本经过同样的非法字符替换
+     */
+    private void writeAttribute(String name, Object value) throws XMLStreamException {
+        toChars(value);
+        xml.writeAttribute(name, new String(chars.array(), 0, chars.position()));
+    }
+
+    private void toChars(Object value) {
+        if (value instanceof Utf8) {
+            final Utf8 utf8 = (Utf8) value;
+            decode(ByteBuffer.wrap(utf8.getBytes(), 0, utf8.getByteLength()));
+        } else if (value instanceof ByteBuffer) {
+            copy(Base64.getEncoder().encodeToString(toBytes((ByteBuffer) value)));
+        } else if (value instanceof GenericFixed) {
+            copy(Base64.getEncoder().encodeToString(((GenericFixed) value).bytes()));
+        } else if (value instanceof CharSequence) {
+            copy((CharSequence) value);
+        } else if (value instanceof GenericEnumSymbol) {
+            copy(value.toString());
+        } else {
+            copy(String.valueOf(value));
+        }
+        sanitize();
+    }
+
+    /**
+     * 原样写出已经是XML的字段，去掉BOM和XML声明
+     */
+    private void writeRaw(CharSequence value) throws IOException, XMLStreamException {
+        if (value instanceof Utf8) {
+            final Utf8 utf8 = (Utf8) value;
+            decode(ByteBuffer.wrap(utf8.getBytes(), 0, utf8.getByteLength()));
+        } else {
+            copy(value);
+        }
+        sanitize();
+        final char[] array = chars.array();
+        final int length = chars.position();
+        int start = 0;
+        if (length > 0 && array[0] == '\uFEFF') {
+            start = 1;
+        }
+        if (length - start > 5 && array[start] == '<' && array[start + 1] == '?') {
+            for (int i = start + 2; i < length - 1; i++) {
+                if (array[i] == '?' && array[i + 1] == '>') {
+                    start = i + 2;
+                    break;
+                }
+            }
+        }
+        //先写出开始标签的 '>'，再绕过 XMLStreamWriter 直接写入
+        xml.writeCharacters("");
+        xml.flush();
+        target.out.write(array, start, length - start);
+    }
+
+    private void sanitize() {
+        final char[] array = chars.array();
+        final int length = chars.position();
+        for (int i = 0; i < length; i++) {
+            final char c = array[i];
+            if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(array[i + 1])) {
+                i++; //成对的代理项是补充平面的字符
+            } else if (Character.isSurrogate(c) || !isXmlChar(c)) {
+                array[i] = ' ';
+            }
+        }
+    }
+
+    private void decode(ByteBuffer bytes) {
+        chars.clear();
+        decoder.reset();
+        while (decoder.decode(bytes, chars, true).isOverflow()) {
+            grow(chars.capacity() * 2);
+        }
+        decoder.flush(chars); //UTF-8 解码器不会在 flush 时输出字符
+    }
+
+    private void copy(CharSequence value) {
+        final int length = value.length();
+        if (chars.capacity() < length) {
+            grow(length);
+        }
+        chars.clear();
+        if (value instanceof String) {
+            ((String) value).getChars(0, length, chars.array(), 0);
+            chars.position(length);
+        } else {
+            chars.append(value);
+        }
+    }
+
+    private void grow(int capacity) {
+        final CharBuffer larger = CharBuffer.allocate(Math.max(capacity, chars.capacity() * 2));
+        chars.flip();
+        larger.put(chars);
+        chars = larger;
+    }
+
+    private static byte[] toBytes(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.remaining()];
+        buffer.duplicate().get(bytes);
+        return bytes;
+    }
+
+    private static boolean isXmlChar(char c) {
+        return c >= 0x20 ? c <= 0xFFFD : c == 0x9 || c == 0xA || c == 0xD;
+    }
+
+    /**
+     * 可以切换输出目标的Writer，XMLStreamWriter 始终写入这里
+     */
+    private static final class TargetWriter extends Writer {
+        private Writer out;
+
+        @Override
+        public void write(char[] cbuf, int off, int len) throws IOException {
+            out.write(cbuf, off, len);
+        }
+
+        @Override
+        public void write(String str, int off, int len) throws IOException {
+            out.write(str, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            if (out != null) {
+                out.flush();
+            }
+        }
+
+        @Override
+        public void close() {
+        }
+    }
+}
@@ -1,29 +1,191 @@
 package org.apache.nifi.processors.ext.xml.Bean;
 
-import org.dom4j.Document;
-import org.dom4j.Element;
+import javax.xml.stream.XMLStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 /**
  * simple way to store xml path information
+ * <p>
+ * A dot path starts at the root element and lists child element names, for example product.pub_basic.pub_id.
+ * A step can be * and can test one attribute, product.pub_extend[@pub_type_id=1].doi, and the last step can be
+ * an attribute, product.pub_extend.@pub_type_id. Names are interned so matching compares references first.
+ * As in xpath a quoted value is compared as a string and a number as a number, so [@pub_type_id=1] also matches
+ * "01" or "1.0". Any other unquoted value names a child element in xpath, such a path can not be streamed
+ * and {@link #isStreamable()} is false.
  */
 public class XMLExpression {
+    public static final String ANY = "*";
+    private static final Pattern STEP = Pattern.compile(
+            "([A-Za-z_][\\w\\-]*|\\*)(?:\\[@([A-Za-z_][\\w\\-]*)\\s*=\\s*(?:\"([^\"]*)\"|'([^']*)'|([^\\]\"'\\s]+))\\s*\\])?");
+    private static final Pattern NAME = Pattern.compile("[A-Za-z_][\\w\\-]*");
+    private static final Pattern NUMBER = Pattern.compile("-?(\\d+(\\.\\d*)?|\\.\\d+)");
+    private static final Pattern ATTRIBUTE = Pattern.compile("@([A-Za-z_][\\w\\-]*)");
+
     private String[] path;
-    private XMLExpression(String[] path) {
+    private String[] predicateNames;
+    private String[] predicateValues;
+    private boolean[] unquoted;
+    private double[] predicateNumbers; //NaN 表示按字符串比较
+    private boolean streamable = true;
+    private String attribute;
+
+    private XMLExpression(String[] path, String[] predicateNames, String[] predicateValues, String attribute) {
         setPath(path);
+        this.predicateNames = predicateNames;
+        this.predicateValues = predicateValues;
+        this.unquoted = new boolean[path.length];
+        this.predicateNumbers = new double[path.length];
+        this.attribute = attribute;
+        Arrays.fill(predicateNumbers, Double.NaN);
     }
-    public static XMLExpression parse(String s) throws Exception {
-        if (s == null) {
-            throw new Exception();
+
+    /**
+     * @throws IllegalArgumentException if s is not a valid dot path
+     */
+    public static XMLExpression parse(String s) {
+        if (s == null || s.trim().isEmpty()) {
+            throw new IllegalArgumentException("empty dot path");
+        }
+        final List<String> steps = split(s.trim());
+        String attribute = null;
+        final Matcher last = ATTRIBUTE.matcher(steps.get(steps.size() - 1));
+        if (last.matches()) {
+            attribute = last.group(1).intern();
+            steps.remove(steps.size() - 1);
         }
-        String[] re = s.split("\\.");
-        if (re.length < 1) throw new Exception();
-        return new XMLExpression(re);
+        if (steps.isEmpty()) {
+            throw new IllegalArgumentException("dot path " + s + " has no element step");
+        }
+        final String[] path = new String[steps.size()];
+        final String[] predicateNames = new String[steps.size()];
+        final String[] predicateValues = new String[steps.size()];
+        final XMLExpression expression = new XMLExpression(path, predicateNames, predicateValues, attribute);
+        for (int i = 0; i < path.length; i++) {
+            final Matcher m = STEP.matcher(steps.get(i));
+            if (!m.matches()) {
+                throw new IllegalArgumentException("invalid step '" + steps.get(i) + "' in dot path " + s);
+            }
+            path[i] = m.group(1).intern();
+            if (m.group(2) != null) {
+                predicateNames[i] = m.group(2).intern();
+                predicateValues[i] = m.group(3) != null ? m.group(3) : m.group(4) != null ? m.group(4) : m.group(5);
+                if (m.group(5) != null) {
+                    expression.unquoted[i] = true;
+                    //未加引号：数字按数值比较，其他写法在xpath中是子节点，只能交给xpath
+                    if (NUMBER.matcher(m.group(5)).matches()) {
+                        expression.predicateNumbers[i] = Double.parseDouble(m.group(5));
+                    } else if (NAME.matcher(m.group(5)).matches()) {
+                        expression.streamable = false;
+                    } else {
+                        throw new IllegalArgumentException("invalid value '" + m.group(5) + "' in dot path " + s + ", quote strings");
+                    }
+                }
+            }
+        }
+        return expression;
+    }
+
+    // split on dots outside of [] and quotes
+    private static List<String> split(String s) {
+        final List<String> steps = new ArrayList<>();
+        int depth = 0;
+        char quote = 0;
+        int start = 0;
+        for (int i = 0; i < s.length(); i++) {
+            final char ch = s.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '\'' || ch == '"') {
+                quote = ch;
+            } else if (ch == '[') {
+                depth++;
+            } else if (ch == ']') {
+                depth--;
+            } else if (ch == '.' && depth == 0) {
+                steps.add(s.substring(start, i).trim());
+                start = i + 1;
+            }
+        }
+        steps.add(s.substring(start).trim());
+        return steps;
+    }
+
+    /**
+     * whether the current start element of reader matches element step i
+     */
+    public boolean matches(int i, XMLStreamReader reader) {
+        final String ns = reader.getNamespaceURI();
+        if (ns != null && !ns.isEmpty()) {
+            return false;
+        }
+        final String name = path[i];
+        if (name != ANY) {
+            final String localName = reader.getLocalName();
+            //StAX实现通常返回内部化的名称，先比较引用
+            if (name != localName && !name.equals(localName)) {
+                return false;
+            }
+        }
+        if (predicateNames[i] == null) {
+            return true;
+        }
+        final String value = reader.getAttributeValue(null, predicateNames[i]);
+        if (Double.isNaN(predicateNumbers[i])) {
+            return predicateValues[i].equals(value);
+        }
+        return value != null && number(value) == predicateNumbers[i];
+    }
+
+    // xpath number(): optional minus, digits and a decimal point between whitespace, NaN for anything else
+    private static double number(String value) {
+        final String s = value.trim();
+        return NUMBER.matcher(s).matches() ? Double.parseDouble(s) : Double.NaN;
+    }
+
+    /**
+     * false if a predicate compares with an unquoted name, which xpath reads as a child element
+     */
+    public boolean isStreamable() {
+        return streamable;
+    }
+
+    /**
+     * the same selection as an absolute xpath
+     */
+    public String toXPath() {
+        final StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < path.length; i++) {
+            sb.append('/').append(path[i]);
+            if (predicateNames[i] != null && unquoted[i]) {
+                sb.append("[@").append(predicateNames[i]).append('=').append(predicateValues[i]).append(']');
+            } else if (predicateNames[i] != null) {
+                final char quote = predicateValues[i].indexOf('"') >= 0 ? '\'' : '"';
+                sb.append("[@").append(predicateNames[i]).append('=').append(quote).append(predicateValues[i]).append(quote).append(']');
+            }
+        }
+        if (attribute != null) {
+            sb.append("/@").append(attribute);
+        }
+        return sb.toString();
     }
 
     public String[] getPath() {
         return path;
     }
 
+    /**
+     * @return the attribute selected by the last step, null if the path selects element text
+     */
+    public String getAttribute() {
+        return attribute;
+    }
+
     private void setPath(String[] path) {
         this.path = path;
     }
@@ -0,0 +1,223 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import javax.xml.stream.XMLStreamException;
+import java.io.BufferedInputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.FRAGMENT_COUNT;
+import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.FRAGMENT_ID;
+import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.FRAGMENT_INDEX;
+
+// {[字段...](avro)} -> <records><record><字段>...</字段></record>...</records>
+@SupportsBatching
+@Tags({"Avro", "XML", "convert", "StAX", "Sha0w"})
+@CapabilityDescription("把Avro记录（例如 ProcessXMLInAvro、SeparateAvroInXML、SeparateAvroByXML 的输出）写回XML：" +
+        "每个输入写成一个流式的XML文件，或者每条记录一个XML文档。字段写成同名子节点，嵌套记录按原节点名和属性还原，" +
+        "已经是XML的字段可以原样写出而不转义")
+@WritesAttributes({
+        @WritesAttribute(attribute = "record.count", description = "写入XML文件的记录数"),
+        @WritesAttribute(attribute = "fragment.identifier", description = "每条记录一个文档时，同一输入拆分出的所有FlowFile具有相同的值"),
+        @WritesAttribute(attribute = "fragment.index", description = "每条记录一个文档时，记录在输入中的序号，从0开始"),
+        @WritesAttribute(attribute = "fragment.count", description = "每条记录一个文档时，输入中的记录数")
+})
+public class ConvertAvroToXML extends AbstractProcessor {
+    public static final String OUTPUT_SINGLE = "single document";
+    public static final String OUTPUT_PER_RECORD = "document per record";
+    private static final String XML_MIME_TYPE = "application/xml";
+
+    public static final PropertyDescriptor OUTPUT_MODE = new PropertyDescriptor.Builder()
+            .required(true)
+            .allowableValues(OUTPUT_SINGLE, OUTPUT_PER_RECORD)
+            .defaultValue(OUTPUT_SINGLE)
+            .description("single document：每个输入写成一个XML文件，所有记录在根节点下；document per record：每条记录输出一个FlowFile，记录节点即根节点")
+            .name("output mode")
+            .build();
+
+    public static final PropertyDescriptor ROOT_ELEMENT = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .defaultValue("records")
+            .description("single document 模式下包裹所有记录的根节点名")
+            .name("root element")
+            .build();
+
+    public static final PropertyDescriptor RECORD_ELEMENT = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .defaultValue("record")
+            .description("每条记录的节点名")
+            .name("record element")
+            .build();
+
+    public static final PropertyDescriptor RAW_XML_FIELDS = new PropertyDescriptor.Builder()
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .description("值本身是XML的顶层字段，多个用逗号分隔，例如 SeparateAvroByXML 输出的 xmlCommonField。这些字段的值原样写入同名节点内，" +
+                    "不做转义，XML声明会被去掉；值必须是格式正确的XML片段，否则输出的文档不合法")
+            .name("raw xml fields")
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("写出的XML文件")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("无法读取的Avro输入")
+            .build();
+
+    private static final List<PropertyDescriptor> propertyDescriptors;
+    private static final Set<Relationship> relationships;
+
+    static {
+        List<PropertyDescriptor> _props = new ArrayList<>();
+        _props.add(OUTPUT_MODE);
+        _props.add(ROOT_ELEMENT);
+        _props.add(RECORD_ELEMENT);
+        _props.add(RAW_XML_FIELDS);
+        _props.add(ProcessXMLInAvro.BATCH_SIZE);
+        propertyDescriptors = Collections.unmodifiableList(_props);
+        Set<Relationship> _relationships = new HashSet<>();
+        _relationships.add(REL_SUCCESS);
+        _relationships.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(_relationships);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return propertyDescriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        final List<FlowFile> flowFiles = session.get(context.getProperty(ProcessXMLInAvro.BATCH_SIZE).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+        final boolean perRecord = OUTPUT_PER_RECORD.equals(context.getProperty(OUTPUT_MODE).getValue());
+        final Set<String> rawFields = new HashSet<>();
+        final String raw = context.getProperty(RAW_XML_FIELDS).getValue();
+        if (raw != null) {
+            for (String field : raw.split(",")) {
+                if (!field.trim().isEmpty()) {
+                    rawFields.add(field.trim());
+                }
+            }
+        }
+        final String rootElement = perRecord ? null : context.getProperty(ROOT_ELEMENT).getValue().trim();
+        final String recordElement = context.getProperty(RECORD_ELEMENT).getValue().trim();
+        //整个批次复用同一个 XMLStreamWriter，写入失败后其中可能留有未关闭的节点，需要重新创建
+        AvroXmlWriter writer = null;
+        for (FlowFile flowFile : flowFiles) {
+            try {
+                if (writer == null) {
+                    writer = new AvroXmlWriter(rootElement, recordElement, rawFields);
+                }
+                if (perRecord) {
+                    writeDocumentPerRecord(session, flowFile, writer);
+                } else {
+                    writeSingleDocument(session, flowFile, writer);
+                }
+            } catch (ProcessException | XMLStreamException e) {
+                writer = null;
+                getLogger().error("Failed to convert {} to XML due to {}; routing to failure", new Object[]{flowFile, e});
+                session.transfer(session.penalize(flowFile), REL_FAILURE);
+            }
+        }
+    }
+
+    private void writeSingleDocument(ProcessSession session, FlowFile flowFile, AvroXmlWriter writer) {
+        final long[] count = new long[1];
+        FlowFile output = session.write(flowFile, (in, out) -> {
+            try (DataFileStream<GenericRecord> reader = new DataFileStream<>(new BufferedInputStream(in), new GenericDatumReader<GenericRecord>())) {
+                writer.startDocument(out);
+                GenericRecord rec = null;
+                while (reader.hasNext()) {
+                    rec = reader.next(rec);
+                    writer.write(rec);
+                    count[0]++;
+                }
+                writer.endDocument();
+            } catch (XMLStreamException e) {
+                throw new ProcessException(e);
+            }
+        });
+        final Map<String, String> attributes = new HashMap<>();
+        attributes.put("record.count", String.valueOf(count[0]));
+        attributes.put(CoreAttributes.MIME_TYPE.key(), XML_MIME_TYPE);
+        output = session.putAllAttributes(output, attributes);
+        session.getProvenanceReporter().modifyContent(output);
+        session.transfer(output, REL_SUCCESS);
+    }
+
+    private void writeDocumentPerRecord(ProcessSession session, FlowFile flowFile, AvroXmlWriter writer) {
+        final List<FlowFile> documents = new ArrayList<>();
+        try {
+            session.read(flowFile, in -> {
+                try (DataFileStream<GenericRecord> reader = new DataFileStream<>(new BufferedInputStream(in), new GenericDatumReader<GenericRecord>())) {
+                    GenericRecord rec = null;
+                    while (reader.hasNext()) {
+                        final GenericRecord current = rec = reader.next(rec);
+                        FlowFile document = session.create(flowFile);
+                        documents.add(document);
+                        document = session.write(document, out -> {
+                            try {
+                                writer.startDocument(out);
+                                writer.write(current);
+                                writer.endDocument();
+                            } catch (XMLStreamException e) {
+                                throw new ProcessException(e);
+                            }
+                        });
+                        documents.set(documents.size() - 1, document);
+                    }
+                }
+            });
+        } catch (ProcessException e) {
+            session.remove(documents);
+            throw e;
+        }
+        final String fragmentId = UUID.randomUUID().toString();
+        for (int i = 0; i < documents.size(); i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(FRAGMENT_ID, fragmentId);
+            attributes.put(FRAGMENT_INDEX, String.valueOf(i));
+            attributes.put(FRAGMENT_COUNT, String.valueOf(documents.size()));
+            attributes.put(CoreAttributes.MIME_TYPE.key(), XML_MIME_TYPE);
+            documents.set(i, session.putAllAttributes(documents.get(i), attributes));
+        }
+        session.getProvenanceReporter().fork(flowFile, documents);
+        session.transfer(documents, REL_SUCCESS);
+        session.remove(flowFile);
+    }
+}
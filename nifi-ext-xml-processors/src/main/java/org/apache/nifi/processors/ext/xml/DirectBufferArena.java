@@ -0,0 +1,144 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.DataUnit;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.nio.ByteBuffer;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Off-heap chunks for the {@link EncodedRecordBuffer}s of one processor, limited to {@link #MAX_DIRECT_MEMORY}.
+ * Chunks given back are pooled per chunk size for reuse, at most a quarter of the limit; the rest, and everything
+ * after {@link #close()}, is dropped and freed by the garbage collector like any direct buffer.
+ * Once the limit is used up chunks are allocated on the heap, logged once and counted in {@link #COUNTER_HEAP_CHUNKS}.
+ */
+public class DirectBufferArena {
+    public static final String COUNTER_HEAP_CHUNKS = "Heap Buffer Chunks";
+
+    public static final PropertyDescriptor MAX_DIRECT_MEMORY = new PropertyDescriptor.Builder()
+            .name("max direct memory")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("256 MB")
+            .description("缓存编码后记录可用的堆外内存上限，本处理器的所有任务共用，空闲的块最多保留上限的四分之一，处理器停止时释放。" +
+                    "用完后改用堆内存，块数记录在 " + COUNTER_HEAP_CHUNKS + " 计数器中。0 B 表示只使用堆内存")
+            .build();
+
+    private final long maxBytes;
+    private final long maxPooledBytes;
+    private final ComponentLog logger;
+    private final AtomicLong allocated = new AtomicLong();
+    private final AtomicLong pooled = new AtomicLong();
+    private final AtomicLong heapChunks = new AtomicLong();
+    private final AtomicBoolean warned = new AtomicBoolean();
+    private final Map<Integer, ConcurrentLinkedQueue<ByteBuffer>> pools = new HashMap<>();
+    private volatile boolean closed;
+
+    public DirectBufferArena(long maxBytes, ComponentLog logger) {
+        this.maxBytes = maxBytes;
+        this.maxPooledBytes = maxBytes / 4;
+        this.logger = logger;
+        for (int chunkSize = EncodedRecordBuffer.MIN_CHUNK_SIZE; chunkSize <= EncodedRecordBuffer.MAX_CHUNK_SIZE; chunkSize <<= 1) {
+            pools.put(chunkSize, new ConcurrentLinkedQueue<ByteBuffer>());
+        }
+    }
+
+    public static DirectBufferArena create(ProcessContext context, ComponentLog logger) {
+        return new DirectBufferArena(context.getProperty(MAX_DIRECT_MEMORY).asDataSize(DataUnit.B).longValue(), logger);
+    }
+
+    ByteBuffer borrow(int chunkSize) {
+        final ByteBuffer reused = pools.get(chunkSize).poll();
+        if (reused != null) {
+            pooled.addAndGet(-chunkSize);
+            return reused;
+        }
+        while (true) {
+            final long used = allocated.get();
+            if (used + chunkSize > maxBytes) {
+                if (maxBytes > 0) {
+                    heapChunks.incrementAndGet();
+                    if (warned.compareAndSet(false, true)) {
+                        logger.warn("All {} bytes of {} are in use, record buffers are allocated on the heap",
+                                new Object[]{maxBytes, MAX_DIRECT_MEMORY.getName()});
+                    }
+                }
+                return ByteBuffer.allocate(chunkSize); //超过上限后使用堆内存
+            }
+            if (allocated.compareAndSet(used, used + chunkSize)) {
+                return ByteBuffer.allocateDirect(chunkSize);
+            }
+        }
+    }
+
+    void giveBack(ByteBuffer chunk) {
+        if (!chunk.isDirect()) {
+            return;
+        }
+        final int size = chunk.capacity();
+        if (closed) {
+            allocated.addAndGet(-size);
+            return;
+        }
+        if (pooled.addAndGet(size) > maxPooledBytes) {
+            pooled.addAndGet(-size);
+            allocated.addAndGet(-size);
+            return;
+        }
+        chunk.clear();
+        pools.get(size).offer(chunk);
+        if (closed) {
+            drain(); //与 close 并发归还的块
+        }
+    }
+
+    /**
+     * drop the pooled chunks, chunks still in use are dropped when they are given back
+     */
+    public void close() {
+        closed = true;
+        drain();
+    }
+
+    private void drain() {
+        for (ConcurrentLinkedQueue<ByteBuffer> pool : pools.values()) {
+            ByteBuffer chunk;
+            while ((chunk = pool.poll()) != null) {
+                pooled.addAndGet(-chunk.capacity());
+                allocated.addAndGet(-chunk.capacity());
+            }
+        }
+    }
+
+    /**
+     * direct bytes allocated and not yet dropped, in use or pooled
+     */
+    public long getDirectBytes() {
+        return allocated.get();
+    }
+
+    /**
+     * direct bytes waiting in the pools for reuse
+     */
+    public long getPooledBytes() {
+        return pooled.get();
+    }
+
+    /**
+     * report the heap chunks allocated since the last call
+     */
+    public void adjustCounters(ProcessSession session) {
+        final long count = heapChunks.getAndSet(0);
+        if (count > 0) {
+            session.adjustCounter(COUNTER_HEAP_CHUNKS, count, false);
+        }
+    }
+}
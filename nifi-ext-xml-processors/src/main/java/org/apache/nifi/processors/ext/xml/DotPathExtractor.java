@@ -0,0 +1,247 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.nifi.processors.ext.xml.Bean.XMLExpression;
+import org.dom4j.DocumentException;
+import org.xml.sax.SAXException;
+
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.util.StreamReaderDelegate;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Evaluates the dot path expressions of all output fields in one StAX pass over the payload, without dom4j or jaxen.
+ * Results follow {@link ProcessXMLInAvro#processExtend}: every match of a path joined with #, null when nothing
+ * matches, and for #-separated paths the first match of each or "null". Payloads StAX rejects are handed to
+ * processExtend with the equivalent xpaths, which also repairs invalid characters. When a path compares an attribute
+ * with an unquoted name, which xpath reads as a child element, every payload goes to processExtend.
+ */
+public class DotPathExtractor {
+    private final String[] fields;
+    private final XMLExpression[][] expressions;
+    private final XMLExpression[] all;
+    private final boolean firstOnly; //全部是#分隔的路径时，每个路径找到第一个即可
+    private final boolean streamable;
+    private final Map<String, String> xpaths = new HashMap<>();
+
+    private DotPathExtractor(Map<String, String> expressionMap) {
+        fields = new String[expressionMap.size()];
+        expressions = new XMLExpression[fields.length][];
+        final List<XMLExpression> flat = new ArrayList<>();
+        boolean allJoined = true;
+        boolean allStreamable = true;
+        int f = 0;
+        for (Map.Entry<String, String> entry : new LinkedHashMap<>(expressionMap).entrySet()) {
+            fields[f] = entry.getKey();
+            final String[] parts = entry.getValue().split("#");
+            expressions[f] = new XMLExpression[parts.length];
+            final StringBuilder xpath = new StringBuilder();
+            for (int i = 0; i < parts.length; i++) {
+                expressions[f][i] = XMLExpression.parse(parts[i]);
+                flat.add(expressions[f][i]);
+                allStreamable &= expressions[f][i].isStreamable();
+                xpath.append(i > 0 ? "#" : "").append(expressions[f][i].toXPath());
+            }
+            allJoined &= entry.getValue().contains("#");
+            xpaths.put(entry.getKey(), xpath.toString());
+            f++;
+        }
+        all = flat.toArray(new XMLExpression[0]);
+        firstOnly = allJoined;
+        streamable = allStreamable;
+    }
+
+    /**
+     * @param expressionMap output field name to dot path, several paths can be joined with #
+     * @throws IllegalArgumentException if a path is not a valid dot path
+     */
+    public static DotPathExtractor compile(Map<String, String> expressionMap) {
+        return new DotPathExtractor(expressionMap);
+    }
+
+    /**
+     * the xpath equivalent of each field, as used by the dom4j fallback
+     */
+    public Map<String, String> getXPaths() {
+        return xpaths;
+    }
+
+    public Map<String, String> extract(Object xml) throws DocumentException {
+        if (!streamable) {
+            return ProcessXMLInAvro.processExtend(xml.toString(), xpaths);
+        }
+        final Scan scan = new Scan();
+        XMLStreamReader reader = null;
+        try {
+            reader = XmlKeyScanner.createReader(xml);
+            while (reader.hasNext() && !scan.onEvent(reader, reader.next())) {
+            }
+        } catch (XMLStreamException e) {
+            return ProcessXMLInAvro.processExtend(xml.toString(), xpaths);
+        } finally {
+            close(reader);
+        }
+        return scan.result();
+    }
+
+    /**
+     * extract while validating against an XSD in the same pass, the whole payload is read even when every
+     * path has already matched. There is no fallback to dom4j: a payload StAX rejects is invalid.
+     * @throws SAXException if the payload is not well formed or not valid
+     */
+    public Map<String, String> extract(Object xml, XmlSchemaValidator validator) throws SAXException, IOException {
+        if (!streamable) {
+            return ProcessXMLInAvro.processExtend(validator.parse(xml), xpaths);
+        }
+        final Scan scan = new Scan();
+        XMLStreamReader reader = null;
+        try {
+            reader = XmlKeyScanner.createReader(xml);
+            //校验器逐个拉取事件，同时交给路径匹配
+            validator.validate(new StreamReaderDelegate(reader) {
+                @Override
+                public int next() throws XMLStreamException {
+                    final int event = super.next();
+                    scan.onEvent(this, event);
+                    return event;
+                }
+            });
+        } catch (XMLStreamException e) {
+            throw new SAXException(e);
+        } finally {
+            close(reader);
+        }
+        return scan.result();
+    }
+
+    private static void close(XMLStreamReader reader) {
+        if (reader != null) {
+            try {
+                reader.close();
+            } catch (XMLStreamException ignored) {
+            }
+        }
+    }
+
+    /**
+     * 一次读取过程中的匹配状态
+     */
+    private final class Scan {
+        private final int n = all.length;
+        private final int[] matched = new int[n]; //当前祖先链上已匹配的步数
+        private final int[] collecting = new int[n]; //正在读取文本的节点深度，0 表示没有
+        private final StringBuilder[] text = new StringBuilder[n];
+        private final List<List<String>> values = new ArrayList<>(n);
+        private int found = 0;
+        private int depth = 0;
+
+        private Scan() {
+            for (int i = 0; i < n; i++) {
+                values.add(new ArrayList<String>(1));
+            }
+        }
+
+        /**
+         * @return true once every path has its first match and nothing more is needed
+         */
+        private boolean onEvent(XMLStreamReader reader, int event) {
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    depth++;
+                    for (int i = 0; i < n; i++) {
+                        final XMLExpression e = all[i];
+                        final String[] path = e.getPath();
+                        if (matched[i] != depth - 1 || depth > path.length || !e.matches(depth - 1, reader)) {
+                            continue;
+                        }
+                        matched[i] = depth;
+                        if (depth < path.length || (firstOnly && !values.get(i).isEmpty())) {
+                            continue;
+                        }
+                        if (e.getAttribute() != null) {
+                            final String value = reader.getAttributeValue(null, e.getAttribute());
+                            if (value != null) {
+                                if (values.get(i).isEmpty()) {
+                                    found++;
+                                }
+                                values.get(i).add(value);
+                            }
+                        } else {
+                            collecting[i] = depth;
+                            if (text[i] == null) {
+                                text[i] = new StringBuilder();
+                            }
+                            text[i].setLength(0);
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    for (int i = 0; i < n && depth > 0; i++) {
+                        if (collecting[i] == depth) {
+                            text[i].append(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        }
+                    }
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    for (int i = 0; i < n; i++) {
+                        if (collecting[i] == depth) {
+                            if (values.get(i).isEmpty()) {
+                                found++;
+                            }
+                            values.get(i).add(text[i].toString());
+                            collecting[i] = 0;
+                        }
+                        if (matched[i] == depth) {
+                            matched[i]--;
+                        }
+                    }
+                    depth--;
+                    break;
+                default:
+                    break;
+            }
+            return firstOnly && found == n;
+        }
+
+        private Map<String, String> result() {
+            final Map<String, String> keyValue = new HashMap<>();
+            int p = 0;
+            for (int f = 0; f < fields.length; f++) {
+                if (expressions[f].length == 1) {
+                    final List<String> matched = values.get(p++);
+                    keyValue.put(fields[f], matched.isEmpty() ? null : join(matched));
+                    continue;
+                }
+                final StringBuilder sb = new StringBuilder();
+                for (int i = 0; i < expressions[f].length; i++) {
+                    final List<String> matched = values.get(p++);
+                    if (i > 0) {
+                        sb.append('#');
+                    }
+                    sb.append(matched.isEmpty() ? "null" : matched.get(0));
+                }
+                keyValue.put(fields[f], sb.toString());
+            }
+            return keyValue;
+        }
+    }
+
+    private static String join(List<String> values) {
+        if (values.size() == 1) {
+            return values.get(0);
+        }
+        final StringBuilder sb = new StringBuilder(values.get(0));
+        for (int i = 1; i < values.size(); i++) {
+            sb.append('#').append(values.get(i));
+        }
+        return sb.toString();
+    }
+}
@@ -0,0 +1,217 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.BinaryEncoder;
+import org.apache.avro.io.EncoderFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Holds already binary-encoded Avro records in off-heap (direct) chunks, so grouping a flowfile costs about
+ * the encoded size instead of a GenericRecord object graph per record and never reaches the old generation.
+ * Records are length-prefixed and never span two chunks; they are streamed back out with
+ * {@link DataFileWriter#appendEncoded(ByteBuffer)} or decoded one at a time through a {@link Cursor}.
+ * <p>
+ * A buffer starts with a small chunk and doubles the chunk size up to {@link #MAX_CHUNK_SIZE}, so the many small
+ * partitions of a high cardinality key stay small. Chunks come from the {@link DirectBufferArena} of the processor
+ * and go back to it on {@link #release()}; records larger than a chunk get a heap chunk of their own.
+ * Not thread safe.
+ */
+public class EncodedRecordBuffer {
+    static final int MIN_CHUNK_SIZE = 8 * 1024;
+    static final int MAX_CHUNK_SIZE = 256 * 1024;
+
+    private final DirectBufferArena arena;
+    private final List<ByteBuffer> chunks = new ArrayList<>();
+    private ByteBuffer current;
+    private int nextChunkSize = MIN_CHUNK_SIZE;
+    private int recordCount;
+    private long size;
+
+    public EncodedRecordBuffer(DirectBufferArena arena) {
+        this.arena = arena;
+    }
+
+    public void append(byte[] bytes, int off, int len) {
+        if (current == null || current.remaining() < len + 4) {
+            while (nextChunkSize < MAX_CHUNK_SIZE && nextChunkSize < len + 4) {
+                nextChunkSize <<= 1;
+            }
+            current = len + 4 > nextChunkSize ? ByteBuffer.allocate(len + 4) : arena.borrow(nextChunkSize);
+            chunks.add(current);
+            if (nextChunkSize < MAX_CHUNK_SIZE) {
+                nextChunkSize <<= 1;
+            }
+        }
+        current.putInt(len);
+        current.put(bytes, off, len);
+        recordCount++;
+        size += len;
+    }
+
+    public int getRecordCount() {
+        return recordCount;
+    }
+
+    /**
+     * encoded bytes of all records, without the length prefixes
+     */
+    public long getSize() {
+        return size;
+    }
+
+    /**
+     * append up to maxRecords records (all if maxRecords &lt;= 0) from the cursor to an open container
+     * @return number of records written
+     */
+    public static int writeTo(Cursor cursor, DataFileWriter<GenericRecord> writer, int maxRecords) throws IOException {
+        int count = 0;
+        while (cursor.hasNext() && (maxRecords <= 0 || count < maxRecords)) {
+            writer.appendEncoded(cursor.next());
+            count++;
+        }
+        return count;
+    }
+
+    public Cursor cursor() {
+        return new Cursor();
+    }
+
+    /**
+     * the current end of the buffer, records appended afterwards can be dropped again with {@link #truncate(Mark)}
+     */
+    public Mark mark() {
+        return new Mark(chunks.size(), current == null ? 0 : current.position(), recordCount, size, nextChunkSize);
+    }
+
+    /**
+     * drop every record appended since the mark was taken, chunks no longer needed go back to the arena
+     */
+    public void truncate(Mark mark) {
+        while (chunks.size() > mark.chunks) {
+            arena.giveBack(chunks.remove(chunks.size() - 1));
+        }
+        current = chunks.isEmpty() ? null : chunks.get(chunks.size() - 1);
+        if (current != null) {
+            current.position(mark.position);
+        }
+        recordCount = mark.recordCount;
+        size = mark.size;
+        nextChunkSize = mark.nextChunkSize;
+    }
+
+    /**
+     * give the chunks back to the arena, the buffer must not be used afterwards
+     */
+    public void release() {
+        for (ByteBuffer chunk : chunks) {
+            arena.giveBack(chunk);
+        }
+        chunks.clear();
+        current = null;
+        nextChunkSize = MIN_CHUNK_SIZE;
+    }
+
+    /**
+     * a position in the buffer, see {@link #mark()}
+     */
+    public static final class Mark {
+        private final int chunks;
+        private final int position;
+        private final int recordCount;
+        private final long size;
+        private final int nextChunkSize;
+
+        private Mark(int chunks, int position, int recordCount, long size, int nextChunkSize) {
+            this.chunks = chunks;
+            this.position = position;
+            this.recordCount = recordCount;
+            this.size = size;
+            this.nextChunkSize = nextChunkSize;
+        }
+    }
+
+    /**
+     * iterates the records in insertion order, each record is copied into a reused heap buffer
+     */
+    public final class Cursor {
+        private int chunk;
+        private int position;
+        private int remaining = recordCount;
+        private byte[] scratch = new byte[1024];
+        private ByteBuffer view = ByteBuffer.wrap(scratch);
+
+        private Cursor() {
+        }
+
+        public boolean hasNext() {
+            return remaining > 0;
+        }
+
+        /**
+         * @return a heap buffer positioned on the record, valid until the next call
+         */
+        public ByteBuffer next() {
+            ByteBuffer src = chunks.get(chunk);
+            if (position >= src.position()) {
+                src = chunks.get(++chunk);
+                position = 0;
+            }
+            final int len = src.getInt(position);
+            final ByteBuffer dup = src.duplicate();
+            dup.position(position + 4);
+            dup.limit(position + 4 + len);
+            ByteBuffer out = len <= scratch.length ? view : grow(len);
+            dup.get(scratch, 0, len);
+            out.clear();
+            out.limit(len);
+            position += len + 4;
+            remaining--;
+            return out;
+        }
+
+        private ByteBuffer grow(int len) {
+            scratch = new byte[Math.max(len, scratch.length * 2)];
+            view = ByteBuffer.wrap(scratch);
+            return view;
+        }
+    }
+
+    /**
+     * encodes records of one schema into buffers, reusing the encoder and scratch space between records
+     */
+    public static final class RecordEncoder {
+        private final GenericDatumWriter<GenericRecord> writer;
+        private final Scratch out = new Scratch();
+        private BinaryEncoder encoder;
+
+        public RecordEncoder(Schema schema) {
+            this.writer = new GenericDatumWriter<>(schema);
+        }
+
+        public void encode(GenericRecord record, EncodedRecordBuffer target) throws IOException {
+            out.reset();
+            encoder = EncoderFactory.get().directBinaryEncoder(out, encoder);
+            writer.write(record, encoder);
+            encoder.flush();
+            target.append(out.array(), 0, out.size());
+        }
+    }
+
+    private static final class Scratch extends ByteArrayOutputStream {
+        private Scratch() {
+            super(1024);
+        }
+
+        private byte[] array() {
+            return buf;
+        }
+    }
+}
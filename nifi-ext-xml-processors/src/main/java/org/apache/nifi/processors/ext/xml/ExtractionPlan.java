@@ -0,0 +1,367 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Element;
+import org.dom4j.InvalidXPathException;
+import org.dom4j.Node;
+import org.dom4j.XPath;
+import org.xml.sax.SAXException;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.regex.Pattern;
+
+/**
+ * An immutable set of output fields with their expressions and types, compiled once and safe to share between
+ * processors and threads. Plans held by {@link XmlExtractionPlanService} declare their namespace prefixes, so the
+ * compiled xpaths never depend on the document being read; plans built from dynamic properties resolve prefixes
+ * against each document like {@link ProcessXMLInAvro#processExtend} always has.
+ */
+public final class ExtractionPlan {
+    public static final String TYPE_STRING = "string";
+    public static final String TYPE_INT = "int";
+    public static final String TYPE_LONG = "long";
+    public static final String TYPE_DOUBLE = "double";
+    public static final String TYPE_BOOLEAN = "boolean";
+    private static final String XMLNS = "xmlns:";
+    private static final Pattern FIELD_NAME = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final String name;
+    private final int version;
+    private final Map<String, String> expressions;
+    private final Map<String, Schema.Type> types;
+    private final Map<String, String> namespaces;
+    private final DotPathExtractor dotPath; //null 表示使用xpath
+    private final XPathField[] xpaths; //null 表示每次按文档解析前缀
+    private final long id;
+    private final TagPrefilter prefilter; //null 表示有路径无法归结到必需的元素
+    private final Map<String, String> missing;
+
+    private ExtractionPlan(String name, int version, String syntax, Map<String, String> expressions,
+                           Map<String, Schema.Type> types, Map<String, String> namespaces) {
+        this.name = name;
+        this.version = version;
+        this.expressions = Collections.unmodifiableMap(expressions);
+        this.types = Collections.unmodifiableMap(types);
+        this.namespaces = namespaces == null ? null : Collections.unmodifiableMap(namespaces);
+        if (ProcessXMLInAvro.SYNTAX_DOT_PATH.equals(syntax)) {
+            dotPath = DotPathExtractor.compile(expressions);
+            xpaths = null;
+        } else {
+            dotPath = null;
+            xpaths = namespaces == null ? null : compile(expressions, namespaces);
+        }
+        final Map<String, String> paths = dotPath != null ? dotPath.getXPaths() : expressions;
+        prefilter = TagPrefilter.compile(paths.values());
+        final Map<String, String> none = new HashMap<>();
+        for (Map.Entry<String, String> entry : paths.entrySet()) {
+            none.put(entry.getKey(), missing(entry.getValue()));
+        }
+        missing = Collections.unmodifiableMap(none);
+        final Map<String, String> identity = new HashMap<>(paths);
+        if (namespaces != null) {
+            for (Map.Entry<String, String> ns : namespaces.entrySet()) {
+                identity.put(XMLNS + ns.getKey(), ns.getValue());
+            }
+        }
+        id = ExtractionResultCache.planId(identity);
+    }
+
+    /**
+     * an unnamed plan of string fields, as configured with the dynamic properties of a processor
+     * @throws IllegalArgumentException if the syntax is dot path and a path does not compile
+     */
+    public static ExtractionPlan of(Map<String, String> expressionMap, String syntax) {
+        return new ExtractionPlan(null, 0, syntax, new LinkedHashMap<>(expressionMap),
+                Collections.<String, Schema.Type>emptyMap(), null);
+    }
+
+    /**
+     * Parse a plan definition, one entry per line:
+     * <pre>
+     * xmlns:p = http://example.com/ns
+     * pub_id:long = /product/pub_basic/pub_id
+     * doi = /p:product/p:pub_extend/p:doi
+     * </pre>
+     * The type after the field name is one of string, int, long, double or boolean and defaults to string.
+     * Blank lines are ignored.
+     * @throws IllegalArgumentException if the definition or any expression is not valid
+     */
+    public static ExtractionPlan parse(String name, int version, String syntax, String definition) {
+        final Map<String, String> expressions = new LinkedHashMap<>();
+        final Map<String, Schema.Type> types = new HashMap<>();
+        final Map<String, String> namespaces = new HashMap<>();
+        int lineNumber = 0;
+        for (String line : definition.split("\r?\n")) {
+            lineNumber++;
+            if (line.trim().isEmpty()) {
+                continue;
+            }
+            final int eq = line.indexOf('=');
+            if (eq <= 0 || line.substring(eq + 1).trim().isEmpty()) {
+                throw new IllegalArgumentException("line " + lineNumber + " is not <field>[:<type>] = <expression>");
+            }
+            final String left = line.substring(0, eq).trim();
+            final String right = line.substring(eq + 1).trim();
+            if (left.startsWith(XMLNS)) {
+                namespaces.put(left.substring(XMLNS.length()).trim(), right);
+                continue;
+            }
+            final int colon = left.indexOf(':');
+            final String field = colon < 0 ? left : left.substring(0, colon).trim();
+            if (!FIELD_NAME.matcher(field).matches()) {
+                throw new IllegalArgumentException("line " + lineNumber + ": " + field + " is not a valid field name");
+            }
+            if (expressions.put(field, right) != null) {
+                throw new IllegalArgumentException("line " + lineNumber + ": field " + field + " is defined twice");
+            }
+            final Schema.Type type = colon < 0 ? Schema.Type.STRING : type(left.substring(colon + 1).trim());
+            if (type == null) {
+                throw new IllegalArgumentException("line " + lineNumber + ": unknown type " + left.substring(colon + 1).trim());
+            }
+            if (type != Schema.Type.STRING) {
+                types.put(field, type);
+            }
+        }
+        if (expressions.isEmpty()) {
+            throw new IllegalArgumentException("no field defined");
+        }
+        return new ExtractionPlan(name, version, syntax, expressions, types, namespaces);
+    }
+
+    private static Schema.Type type(String name) {
+        switch (name) {
+            case TYPE_STRING:
+                return Schema.Type.STRING;
+            case TYPE_INT:
+                return Schema.Type.INT;
+            case TYPE_LONG:
+                return Schema.Type.LONG;
+            case TYPE_DOUBLE:
+                return Schema.Type.DOUBLE;
+            case TYPE_BOOLEAN:
+                return Schema.Type.BOOLEAN;
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * @return null for a plan built from dynamic properties
+     */
+    public String getName() {
+        return name;
+    }
+
+    public int getVersion() {
+        return version;
+    }
+
+    /**
+     * output field name to expression, in definition order
+     */
+    public Map<String, String> getExpressions() {
+        return expressions;
+    }
+
+    public Set<String> getFields() {
+        return expressions.keySet();
+    }
+
+    /**
+     * the output type of a field, STRING unless the plan says otherwise
+     */
+    public Schema.Type getType(String field) {
+        final Schema.Type type = types.get(field);
+        return type == null ? Schema.Type.STRING : type;
+    }
+
+    /**
+     * the same for every plan with the same expressions and namespaces, used as the result cache key
+     */
+    public long getId() {
+        return id;
+    }
+
+    /**
+     * @return null if some expression of the plan can not be reduced to an element it requires
+     */
+    public TagPrefilter getPrefilter() {
+        return prefilter;
+    }
+
+    /**
+     * what extract returns when no path matches: null for a single path, "null" for each of several joined with #
+     */
+    public Map<String, String> getMissingResult() {
+        return missing;
+    }
+
+    private static String missing(String xpath) {
+        if (!xpath.contains("#")) {
+            return null;
+        }
+        final StringBuilder sb = new StringBuilder("null");
+        for (int i = 1; i < xpath.split("#").length; i++) {
+            sb.append("#null");
+        }
+        return sb.toString();
+    }
+
+    public Map<String, String> extract(Object xml) throws DocumentException {
+        if (dotPath != null) {
+            return dotPath.extract(xml);
+        }
+        if (xpaths == null) {
+            return ProcessXMLInAvro.processExtend(xml.toString(), expressions);
+        }
+        return select(ProcessXMLInAvro.parse(xml.toString()).getRootElement(), xpaths);
+    }
+
+    /**
+     * @throws SAXException if the payload is not well formed or not valid
+     */
+    public Map<String, String> extract(Object xml, XmlSchemaValidator validator) throws SAXException, IOException {
+        if (dotPath != null) {
+            return dotPath.extract(xml, validator);
+        }
+        final Document doc = validator.parse(xml);
+        return xpaths == null ? ProcessXMLInAvro.processExtend(doc, expressions) : select(doc.getRootElement(), xpaths);
+    }
+
+    /**
+     * Convert an extracted value to the output type of its field: Integer, Long, Double or Boolean, or the string
+     * itself. Values that do not parse, including several matches joined with #, become null.
+     */
+    public Object convert(String field, String value) {
+        final Schema.Type type = types.get(field);
+        if (type == null || value == null) {
+            return value;
+        }
+        final String s = value.trim();
+        try {
+            switch (type) {
+                case INT:
+                    return Integer.valueOf(s);
+                case LONG:
+                    return Long.valueOf(s);
+                case DOUBLE:
+                    return Double.valueOf(s);
+                case BOOLEAN:
+                    return "true".equalsIgnoreCase(s) ? Boolean.TRUE : "false".equalsIgnoreCase(s) ? Boolean.FALSE : null;
+                default:
+                    return value;
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return name == null ? "dynamic properties" : name + "@" + version;
+    }
+
+    /**
+     * Compile every expression, several paths joined with # are compiled one by one. With namespaces the
+     * xpaths are bound to them, never change afterwards and can be shared between threads; every path must
+     * compile. Without, prefixes are resolved against each document, which rebinds the xpath on every call, and
+     * a joined path that does not compile selects nothing.
+     */
+    static XPathField[] compile(Map<String, String> expressionMap, Map<String, String> namespaces) {
+        final XPathField[] fields = new XPathField[expressionMap.size()];
+        int f = 0;
+        for (Map.Entry<String, String> entry : expressionMap.entrySet()) {
+            final String xpath = entry.getValue();
+            final boolean joined = xpath.contains("#");
+            final String[] parts = joined ? xpath.split("#") : new String[]{xpath};
+            final XPath[] paths = new XPath[parts.length];
+            for (int i = 0; i < parts.length; i++) {
+                try {
+                    paths[i] = DocumentHelper.createXPath(parts[i]);
+                    if (namespaces != null) {
+                        paths[i].setNamespaceURIs(new TreeMap<>(namespaces));
+                    }
+                } catch (InvalidXPathException e) {
+                    if (namespaces != null) {
+                        throw new IllegalArgumentException(entry.getKey() + ": " + e.getMessage(), e);
+                    }
+                    if (!joined) {
+                        throw e;
+                    }
+                }
+            }
+            fields[f++] = new XPathField(entry.getKey(), paths, joined);
+        }
+        return fields;
+    }
+
+    /**
+     * every match of a single path joined with #, null when nothing matches; for #-separated paths the first
+     * match of each, or "null"
+     */
+    static Map<String, String> select(Element rootElem, XPathField[] fields) {
+        Map<String, String> keyValue = new HashMap<>();
+        for (XPathField field : fields) {
+            StringBuilder sb = new StringBuilder();
+            if (!field.joined) {
+                try {
+                    List no = field.paths[0].selectNodes(rootElem);
+                    if (no.size() > 1) {
+                        for (int i = 0; i < no.size(); i++) {
+                            Object o = no.get(i);
+                            sb.append(((Node) (o)).getText());
+                            if (i < no.size() - 1) {
+                                sb.append("#");
+                            }
+                        }
+                        keyValue.put(field.name, sb.toString());
+                    } else {
+                        keyValue.put(field.name, ((Node) (no.get(0))).getText());
+                    }
+                } catch (IndexOutOfBoundsException e) {
+                    keyValue.put(field.name, null);
+                } catch (NullPointerException e) {
+                    keyValue.put(field.name, sb.toString());
+                }
+            } else {
+                for (int i = 0; i < field.paths.length; i++) {
+                    try {
+                        sb.append(field.paths[i].selectSingleNode(rootElem).getText());
+                    } catch (Exception e) {
+                        sb.append("null");
+                    }
+                    if (i < field.paths.length - 1) {
+                        sb.append("#");
+                    }
+                }
+                keyValue.put(field.name, sb.toString());
+            }
+        }
+        return keyValue;
+    }
+
+    /**
+     * 一个输出字段编译后的xpath
+     */
+    static final class XPathField {
+        private final String name;
+        private final XPath[] paths;
+        private final boolean joined;
+
+        private XPathField(String name, XPath[] paths, boolean joined) {
+            this.name = name;
+            this.paths = paths;
+            this.joined = joined;
+        }
+    }
+}
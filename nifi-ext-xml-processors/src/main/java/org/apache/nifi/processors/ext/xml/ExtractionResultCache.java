@@ -0,0 +1,237 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.util.Utf8;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * LRU cache of extraction results keyed by a 128 bit hash of the raw XML bytes plus the extraction plan id,
+ * shared by all concurrent tasks of one processor so byte-identical payloads are only parsed once.
+ */
+public class ExtractionResultCache {
+    public static final String COUNTER_HITS = "XML Result Cache Hits";
+    public static final String COUNTER_MISSES = "XML Result Cache Misses";
+
+    public static final PropertyDescriptor CACHE_MAX_ENTRIES = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .description("解析结果缓存的最大条目数，内容完全相同的XML只解析一次，0 表示不使用缓存。" +
+                    "命中/未命中次数记录在 " + COUNTER_HITS + " 和 " + COUNTER_MISSES + " 计数器中")
+            .name("result cache max entries")
+            .build();
+
+    public static final PropertyDescriptor CACHE_MAX_SIZE = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("32 MB")
+            .description("解析结果缓存估算占用内存的上限，超过后淘汰最久未使用的条目")
+            .name("result cache max size")
+            .build();
+
+    private static final long SEED_1 = 0x9E3779B97F4A7C15L;
+    private static final long SEED_2 = 0xC2B2AE3D27D4EB4FL;
+    private static final long M = 0xFF51AFD7ED558CCDL;
+
+    private final int maxEntries;
+    private final long maxBytes;
+    private final LinkedHashMap<Key, CachedResult> entries = new LinkedHashMap<>(64, 0.75f, true);
+    private long bytes;
+
+    public ExtractionResultCache(int maxEntries, long maxBytes) {
+        this.maxEntries = maxEntries;
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * hash of the sorted entries, each key and value prefixed with its length so no two maps share an encoding
+     */
+    public static long planId(Map<String, String> expressionMap) {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, String> e : new TreeMap<>(expressionMap).entrySet()) {
+            sb.append(e.getKey().length()).append(':').append(e.getKey());
+            if (e.getValue() == null) {
+                sb.append("-1:");
+            } else {
+                sb.append(e.getValue().length()).append(':').append(e.getValue());
+            }
+        }
+        return hash64(sb.toString());
+    }
+
+    public static long planId(String plan) {
+        return hash64(plan);
+    }
+
+    /**
+     * 64 bit hash of the UTF-8 bytes, the same on every node and JVM
+     */
+    public static long hash64(String value) {
+        byte[] b = value.getBytes(StandardCharsets.UTF_8);
+        return hash(b, b.length, SEED_1);
+    }
+
+    /**
+     * @param xml Utf8 from the avro record (hashed without decoding) or any CharSequence
+     */
+    public static Key key(long planId, Object xml) {
+        byte[] b;
+        int len;
+        if (xml instanceof Utf8) {
+            b = ((Utf8) xml).getBytes();
+            len = ((Utf8) xml).getByteLength();
+        } else {
+            b = xml.toString().getBytes(StandardCharsets.UTF_8);
+            len = b.length;
+        }
+        return new Key(planId, len, hash(b, len, SEED_1), hash(b, len, SEED_2));
+    }
+
+    /**
+     * @param counts lookups of the current batch, the only place hits and misses are counted
+     */
+    public Map<String, String> get(Key key, Counts counts) {
+        CachedResult result;
+        synchronized (this) {
+            result = entries.get(key);
+        }
+        if (result == null) {
+            counts.misses.incrementAndGet();
+            return null;
+        }
+        counts.hits.incrementAndGet();
+        return result.values;
+    }
+
+    public void put(Key key, Map<String, String> values) {
+        CachedResult result = new CachedResult(Collections.unmodifiableMap(new HashMap<>(values)));
+        if (result.size > maxBytes) {
+            return;
+        }
+        synchronized (this) {
+            CachedResult old = entries.put(key, result);
+            if (old != null) {
+                bytes -= old.size;
+            }
+            bytes += result.size;
+            Iterator<CachedResult> it = entries.values().iterator();
+            while ((entries.size() > maxEntries || bytes > maxBytes) && it.hasNext()) {
+                bytes -= it.next().size;
+                it.remove();
+            }
+        }
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    public synchronized void clear() {
+        entries.clear();
+        bytes = 0;
+    }
+
+    // murmur3 style 64 bit mix over 8 byte words
+    private static long hash(byte[] b, int len, long seed) {
+        long h = seed ^ (len * M);
+        int i = 0;
+        for (; i + 8 <= len; i += 8) {
+            long k = (b[i] & 0xFFL) | (b[i + 1] & 0xFFL) << 8 | (b[i + 2] & 0xFFL) << 16 | (b[i + 3] & 0xFFL) << 24
+                    | (b[i + 4] & 0xFFL) << 32 | (b[i + 5] & 0xFFL) << 40 | (b[i + 6] & 0xFFL) << 48 | (b[i + 7] & 0xFFL) << 56;
+            h ^= mix(k);
+            h = Long.rotateLeft(h, 27) * 5 + 0x52DCE729;
+        }
+        long k = 0;
+        for (int shift = 0; i < len; i++, shift += 8) {
+            k |= (b[i] & 0xFFL) << shift;
+        }
+        h ^= mix(k);
+        return mix(h);
+    }
+
+    private static long mix(long k) {
+        k ^= k >>> 33;
+        k *= M;
+        k ^= k >>> 33;
+        k *= 0xC4CEB9FE1A85EC53L;
+        k ^= k >>> 33;
+        return k;
+    }
+
+    public static final class Key {
+        private final long planId;
+        private final int length;
+        private final long h1;
+        private final long h2;
+
+        private Key(long planId, int length, long h1, long h2) {
+            this.planId = planId;
+            this.length = length;
+            this.h1 = h1;
+            this.h2 = h2;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key k = (Key) o;
+            return planId == k.planId && length == k.length && h1 == k.h1 && h2 == k.h2;
+        }
+
+        @Override
+        public int hashCode() {
+            return (int) (h1 ^ (h1 >>> 32));
+        }
+    }
+
+    /**
+     * hits and misses of one batch, updated concurrently by the worker threads
+     */
+    public static final class Counts {
+        private final AtomicLong hits = new AtomicLong();
+        private final AtomicLong misses = new AtomicLong();
+
+        /**
+         * report the lookups since the last call, hit rate = hits / (hits + misses)
+         */
+        public void adjustCounters(ProcessSession session) {
+            long hitCount = hits.getAndSet(0);
+            long missCount = misses.getAndSet(0);
+            if (hitCount > 0) {
+                session.adjustCounter(COUNTER_HITS, hitCount, false);
+            }
+            if (missCount > 0) {
+                session.adjustCounter(COUNTER_MISSES, missCount, false);
+            }
+        }
+    }
+
+    private static final class CachedResult {
+        private final Map<String, String> values;
+        private final long size;
+
+        private CachedResult(Map<String, String> values) {
+            this.values = values;
+            long s = 96;
+            for (Map.Entry<String, String> e : values.entrySet()) {
+                s += 48 + 2L * e.getKey().length() + (e.getValue() == null ? 0 : 40 + 2L * e.getValue().length());
+            }
+            this.size = s;
+        }
+    }
+}
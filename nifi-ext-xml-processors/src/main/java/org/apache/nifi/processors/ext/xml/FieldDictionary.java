@@ -0,0 +1,140 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.generic.GenericData;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Dictionary of the distinct values of one low-cardinality output field. Values are interned while they are
+ * collected, and the field is written as an avro enum when every value is a valid enum symbol, otherwise as an
+ * int code whose dictionary is stored in the container metadata under {@link #META_PREFIX} + field name.
+ * A dictionary can be limited to int codes, so the field type does not depend on the values.
+ */
+public class FieldDictionary {
+    public static final String META_PREFIX = "xml.dictionary.";
+    private static final Pattern SYMBOL = Pattern.compile("[A-Za-z_][A-Za-z0-9_]*");
+
+    private final String field;
+    private final int maxCardinality;
+    private final boolean enumAllowed;
+    private final Map<String, Integer> codes = new HashMap<>();
+    private final List<String> values = new ArrayList<>();
+    private boolean overflow;
+    private Schema enumSchema;
+
+    /**
+     * @param maxCardinality the dictionary gives up beyond this many distinct values, 0 means unlimited
+     */
+    public FieldDictionary(String field, int maxCardinality) {
+        this(field, maxCardinality, true);
+    }
+
+    /**
+     * @param enumAllowed false to always write int codes
+     */
+    public FieldDictionary(String field, int maxCardinality, boolean enumAllowed) {
+        this.field = field;
+        this.maxCardinality = maxCardinality;
+        this.enumAllowed = enumAllowed;
+    }
+
+    /**
+     * @return the canonical instance of value, so repeated values share one String
+     */
+    public String intern(String value) {
+        if (value == null || overflow) {
+            return value;
+        }
+        final Integer code = codes.get(value);
+        if (code != null) {
+            return values.get(code);
+        }
+        if (maxCardinality > 0 && values.size() >= maxCardinality) {
+            overflow = true;
+            codes.clear();
+            values.clear();
+            return value;
+        }
+        codes.put(value, values.size());
+        values.add(value);
+        return value;
+    }
+
+    public boolean isEncodable() {
+        return !overflow && !values.isEmpty();
+    }
+
+    public boolean isEnum() {
+        if (!enumAllowed || values.isEmpty()) {
+            return false;
+        }
+        for (String value : values) {
+            if (!SYMBOL.matcher(value).matches()) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * nullable enum or int type of the field
+     */
+    public Schema schema(String namespace) {
+        final Schema valueSchema;
+        if (isEnum()) {
+            enumSchema = SchemaBuilder.enumeration(field + "_enum").namespace(namespace).symbols(values.toArray(new String[0]));
+            valueSchema = enumSchema;
+        } else {
+            valueSchema = Schema.create(Schema.Type.INT);
+        }
+        return Schema.createUnion(Schema.create(Schema.Type.NULL), valueSchema);
+    }
+
+    /**
+     * @return the enum symbol or int code of a value collected before {@link #schema(String)} was built
+     */
+    public Object encode(String value) {
+        if (value == null) {
+            return null;
+        }
+        final Integer code = codes.get(value);
+        if (code == null) {
+            throw new IllegalStateException("value '" + value + "' of " + field + " is not in the dictionary");
+        }
+        return enumSchema != null ? new GenericData.EnumSymbol(enumSchema, value) : code;
+    }
+
+    /**
+     * JSON array of the values, the index is the int code
+     */
+    public String toJson() {
+        final StringBuilder sb = new StringBuilder("[");
+        for (int i = 0; i < values.size(); i++) {
+            if (i > 0) {
+                sb.append(',');
+            }
+            sb.append('"');
+            for (char c : values.get(i).toCharArray()) {
+                if (c == '"' || c == '\\') {
+                    sb.append('\\').append(c);
+                } else if (c < 0x20) {
+                    sb.append(String.format("\\u%04x", (int) c));
+                } else {
+                    sb.append(c);
+                }
+            }
+            sb.append('"');
+        }
+        return sb.append(']').toString();
+    }
+
+    public String getField() {
+        return field;
+    }
+}
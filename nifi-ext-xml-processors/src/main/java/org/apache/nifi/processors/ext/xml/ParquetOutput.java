@@ -0,0 +1,40 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.conf.Configuration;
+import org.apache.parquet.avro.AvroParquetWriter;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * Parquet writer settings of one batch, opens writers that stream into the flowfile content.
+ */
+public class ParquetOutput {
+    private final CompressionCodecName codec;
+    private final int rowGroupSize;
+    private final boolean dictionary;
+    private final Configuration conf = new Configuration(false);
+
+    /**
+     * @param rowGroupSize bytes, the writer takes an int so larger sizes are clamped to 2 GB
+     */
+    public ParquetOutput(CompressionCodecName codec, long rowGroupSize, boolean dictionary) {
+        this.codec = codec;
+        this.rowGroupSize = (int) Math.min(Integer.MAX_VALUE, rowGroupSize);
+        this.dictionary = dictionary;
+    }
+
+    public ParquetWriter<GenericRecord> open(Schema schema, OutputStream out) throws IOException {
+        return AvroParquetWriter.<GenericRecord>builder(new FlowFileOutputFile(out))
+                .withSchema(schema)
+                .withConf(conf)
+                .withCompressionCodec(codec)
+                .withRowGroupSize(rowGroupSize)
+                .withDictionaryEncoding(dictionary)
+                .build();
+    }
+}
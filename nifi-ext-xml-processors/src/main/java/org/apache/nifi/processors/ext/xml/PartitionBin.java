@@ -0,0 +1,138 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Collects the encoded records of one partition (type or hash bucket) from many input flowfiles across onTrigger calls
+ * until it is flushed into Avro container flowfiles. The bin remembers which inputs its records came from, they are
+ * the parents of the flushed flowfiles, and the records of one input can be dropped again until it is flushed.
+ */
+public class PartitionBin {
+    private final String attribute;
+    private final String key;
+    private final Schema schema;
+    private final EncodedRecordBuffer buffer;
+    private final Map<String, FlowFile> parents = new LinkedHashMap<>();
+    private final long createdNanos = System.nanoTime();
+
+    /**
+     * @param attribute flowfile attribute that carries the key, type or partition
+     */
+    public PartitionBin(String attribute, String key, Schema schema, DirectBufferArena arena) {
+        this.attribute = attribute;
+        this.key = key;
+        this.schema = schema;
+        this.buffer = new EncodedRecordBuffer(arena);
+    }
+
+    /**
+     * append one record of an input, the input is added to the parents with {@link #addParent(FlowFile)}
+     * once all of its records are in
+     */
+    public void append(EncodedRecordBuffer.RecordEncoder encoder, GenericRecord record) throws IOException {
+        encoder.encode(record, buffer);
+    }
+
+    public void addParent(FlowFile parent) {
+        parents.put(parent.getAttribute(CoreAttributes.UUID.key()), parent);
+    }
+
+    /**
+     * the end of the bin before an input is appended
+     */
+    public EncodedRecordBuffer.Mark mark() {
+        return buffer.mark();
+    }
+
+    /**
+     * drop the records appended after the mark was taken
+     */
+    public void undo(EncodedRecordBuffer.Mark mark) {
+        buffer.truncate(mark);
+    }
+
+    public String getAttribute() {
+        return attribute;
+    }
+
+    public String getKey() {
+        return key;
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    public Collection<FlowFile> getParents() {
+        return new ArrayList<>(parents.values());
+    }
+
+    /**
+     * attributes all parents have in common, except the uuid
+     */
+    public Map<String, String> getCommonAttributes() {
+        final Map<String, String> common = new HashMap<>();
+        boolean first = true;
+        for (FlowFile parent : parents.values()) {
+            if (first) {
+                common.putAll(parent.getAttributes());
+                first = false;
+            } else {
+                common.entrySet().removeIf(entry -> !entry.getValue().equals(parent.getAttribute(entry.getKey())));
+            }
+        }
+        common.remove(CoreAttributes.UUID.key());
+        return common;
+    }
+
+    /**
+     * System.nanoTime() when the bin was created, i.e. of its first record
+     */
+    public long getCreatedNanos() {
+        return createdNanos;
+    }
+
+    public int getRecordCount() {
+        return buffer.getRecordCount();
+    }
+
+    public long getSize() {
+        return buffer.getSize();
+    }
+
+    public boolean isFull(int maxRecords, long maxBytes) {
+        return (maxRecords > 0 && getRecordCount() >= maxRecords) || (maxBytes > 0 && getSize() >= maxBytes);
+    }
+
+    public EncodedRecordBuffer.Cursor cursor() {
+        return buffer.cursor();
+    }
+
+    /**
+     * write up to maxRecords records (all if maxRecords &lt;= 0) from the cursor as one avro container
+     * @return number of records written
+     */
+    public int writeTo(EncodedRecordBuffer.Cursor cursor, int maxRecords, OutputStream out) throws IOException {
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema)).create(schema, out)) {
+            return EncodedRecordBuffer.writeTo(cursor, writer, maxRecords);
+        }
+    }
+
+    public void release() {
+        buffer.release();
+        parents.clear();
+    }
+}
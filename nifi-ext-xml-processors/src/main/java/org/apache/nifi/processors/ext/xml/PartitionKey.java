@@ -0,0 +1,133 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The values a record is partitioned by: xpaths into the XML field and/or plain Avro columns,
+ * joined into one key string in declaration order. Separators and escapes inside a value are
+ * escaped with {@link #ESCAPE}, so different value lists never give the same key.
+ */
+public class PartitionKey {
+    public static final String SEPARATOR = "|";
+    public static final String ESCAPE = "\\";
+
+    private final List<String> sources;
+    private final List<String> xpaths = new ArrayList<>();
+    private final List<String[]> streamingPaths = new ArrayList<>();
+    private final boolean required;
+
+    private PartitionKey(List<String> sources, boolean streaming, boolean required) {
+        this.sources = sources;
+        this.required = required;
+        for (String source : sources) {
+            if (isXPath(source) || required) {
+                xpaths.add(source);
+                streamingPaths.add(streaming ? XmlKeyScanner.compile(source) : null);
+            }
+        }
+    }
+
+    /**
+     * the type field of the processor, relative paths are allowed and the node must exist
+     */
+    public static PartitionKey ofXPath(String xpath, boolean streaming) {
+        return new PartitionKey(Collections.singletonList(xpath), streaming, true);
+    }
+
+    /**
+     * @param spec comma separated sources, entries starting with / are xpaths into the XML field,
+     *             anything else is the name of a column of the input avro. Missing values count as empty
+     */
+    public static PartitionKey parse(String spec, boolean streaming) {
+        List<String> sources = new ArrayList<>();
+        for (String s : spec.split(",")) {
+            if (!s.trim().isEmpty()) {
+                sources.add(s.trim());
+            }
+        }
+        if (sources.isEmpty()) {
+            throw new IllegalArgumentException("no partition key source in '" + spec + "'");
+        }
+        return new PartitionKey(sources, streaming, false);
+    }
+
+    private static boolean isXPath(String source) {
+        return source.startsWith("/");
+    }
+
+    public List<String> getXPaths() {
+        return xpaths;
+    }
+
+    /**
+     * compiled path of the i-th xpath for {@link XmlKeyScanner}, null if it has to be fully parsed
+     */
+    public String[] getStreamingPath(int i) {
+        return streamingPaths.get(i);
+    }
+
+    /**
+     * fail the whole input early on a misspelled column instead of silently putting every record in one partition
+     */
+    public void validate(Schema schema) {
+        for (String source : sources) {
+            if (!isXPath(source) && !required && schema.getField(source) == null) {
+                throw new ProcessException("partition key column '" + source + "' is not a field of the input avro");
+            }
+        }
+    }
+
+    /**
+     * @param xmlValues values of {@link #getXPaths()} for this record, a missing node maps to null
+     */
+    public String valueOf(GenericRecord record, Map<String, String> xmlValues) {
+        if (sources.size() == 1) {
+            return value(sources.get(0), record, xmlValues);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < sources.size(); i++) {
+            if (i > 0) {
+                sb.append(SEPARATOR);
+            }
+            escape(value(sources.get(i), record, xmlValues), sb);
+        }
+        return sb.toString();
+    }
+
+    private static void escape(String value, StringBuilder sb) {
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == SEPARATOR.charAt(0) || c == ESCAPE.charAt(0)) {
+                sb.append(ESCAPE);
+            }
+            sb.append(c);
+        }
+    }
+
+    private String value(String source, GenericRecord record, Map<String, String> xmlValues) {
+        Object value;
+        if (required || isXPath(source)) {
+            value = xmlValues.get(source);
+            if (value == null && required) {
+                throw new ProcessException("node " + source + " not found in the xml");
+            }
+        } else {
+            value = record.get(source);
+        }
+        return value == null ? "" : value.toString();
+    }
+
+    /**
+     * stable across JVMs and nodes, so the same key always lands in the same bucket
+     */
+    public static int bucket(String key, int buckets) {
+        return (int) Math.floorMod(ExtractionResultCache.hash64(key), (long) buckets);
+    }
+}
@@ -4,35 +4,47 @@ import net.sf.saxon.tree.tiny.TinyNodeImpl;
 import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
-import org.apache.avro.file.DataFileStream;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.DatumWriter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.parquet.hadoop.ParquetWriter;
+import org.apache.parquet.hadoop.metadata.CompressionCodecName;
 import org.dom4j.*;
-import org.slf4j.Logger;
-import org.slf4j.LoggerFactory;
+import org.xml.sax.SAXException;
 
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
 
+import static org.apache.nifi.processors.ext.xml.ExtractionResultCache.CACHE_MAX_ENTRIES;
+import static org.apache.nifi.processors.ext.xml.ExtractionResultCache.CACHE_MAX_SIZE;
 import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.CheckUnicodeString;
 import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.UTF8_BOM;
 
 // {[id + basic xml + extend xml + type](每个attr一个ff) -> [id + basic field + extend field(option in dynamic field)]}
+@SupportsBatching
 @Tags({"Avro","XML","process","Sha0w"})
 @CapabilityDescription("通过解析输入的Avro文件中的XML字段内" +
         "（xml field）的指定节点（dynamic field），生成新的Avro文件 更新后版本")
@@ -42,7 +54,7 @@ import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.UTF8_BOM;
                 "the XPath Expression.  If <Destination>='flowfile-content' " +
                 "then the FlowFile content is set to the result of the XPath Expression.")
 public class ProcessXMLInAvro extends AbstractProcessor {
-    Logger logger = LoggerFactory.getLogger(ProcessXMLInAvro.class);
+    public final static String VALIDATION_ERROR = "xml.validation.error";
     public final static Relationship REL_SUCCESS = new Relationship.Builder()
             .name("sucess")
             .build();
@@ -52,6 +64,19 @@ public class ProcessXMLInAvro extends AbstractProcessor {
             .autoTerminateDefault(true)
             .build();
 
+    public final static Relationship REL_FILTERED = new Relationship.Builder()
+            .name("filtered")
+            .description("不满足 record filter 的原始记录，保持输入的schema")
+            .autoTerminateDefault(true)
+            .build();
+
+
+    public final static Relationship REL_INVALID = new Relationship.Builder()
+            .name("invalid")
+            .description("XML字段不是格式正确的XML，或设置了 xml schema file 时不符合XSD的原始记录，保持输入的schema。" +
+                    "属性 " + VALIDATION_ERROR + " 记录第一条的错误")
+            .autoTerminateDefault(true)
+            .build();
 
     public final static PropertyDescriptor NEED_COMPILE_XML_FIELD = new PropertyDescriptor.Builder()
             .name("extend xml field name in avro")
@@ -59,8 +84,152 @@ public class ProcessXMLInAvro extends AbstractProcessor {
             .description("申明avro中需要解析的EXTEND XML字段名称")
             .build();
 
+    public final static String SYNTAX_XPATH = "xpath";
+    public final static String SYNTAX_DOT_PATH = "dot path";
+    public final static PropertyDescriptor EXPRESSION_SYNTAX = new PropertyDescriptor.Builder()
+            .name("expression syntax")
+            .required(true)
+            .allowableValues(SYNTAX_XPATH, SYNTAX_DOT_PATH)
+            .defaultValue(SYNTAX_XPATH)
+            .description("动态字段的表达式写法：xpath 用dom4j解析后逐个求值；dot path 从根节点开始用点分隔的节点名，" +
+                    "例如 product.pub_extend[@pub_type_id=1].doi 或 product.pub_extend.@pub_type_id，支持 * 和单个属性条件，" +
+                    "条件中加引号的值按字符串比较、数字按数值比较，未加引号的名称与xpath一样表示子节点，这时改用dom4j求值，" +
+                    "所有字段在一次流式读取中完成，不构建DOM。两种写法都可以用#连接多个路径")
+            .build();
+
+    public final static PropertyDescriptor EXTRACTION_PLAN_SERVICE = new PropertyDescriptor.Builder()
+            .name("extraction plan service")
+            .required(false)
+            .identifiesControllerService(XmlExtractionPlanService.class)
+            .description("从共享的提取方案服务中取得输出字段、表达式和类型，代替动态属性。方案在服务中编译一次，" +
+                    "多个处理器共用，表达式写法以服务的设置为准")
+            .build();
+
+    public final static PropertyDescriptor EXTRACTION_PLAN = new PropertyDescriptor.Builder()
+            .name("extraction plan")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .description("使用的方案，写 方案名 时取最高版本，写 方案名@版本号 时固定版本")
+            .build();
+
+    public final static PropertyDescriptor XML_SCHEMA = new PropertyDescriptor.Builder()
+            .name("xml schema file")
+            .required(false)
+            .addValidator(StandardValidators.FILE_EXISTS_VALIDATOR)
+            .description("用于校验XML字段的XSD文件。校验在解析XML的同一次读取中完成，不合格的记录输出到 invalid 关系，" +
+                    "此时不再尝试修复非法字符。编译后的schema按文件路径和修改时间缓存，各处理器共用，修改文件后重新编译")
+            .build();
+
+    public final static String COUNTER_PREFILTER_SKIPPED = "Prefilter Skipped Records";
+    public final static PropertyDescriptor TAG_PREFILTER = new PropertyDescriptor.Builder()
+            .name("tag prefilter")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .description("解析前先在XML字段的原始字节中查找各表达式必需的元素名（每个路径最后一个具名元素），" +
+                    "一个都没有出现时不解析，所有字段直接输出为空（#连接的路径输出 null#null），适合大量记录缺少提取节点的数据。" +
+                    "表达式含函数、轴等无法归结到元素名时不生效；设置了 xml schema file 时不生效。跳过的记录数记录在 " +
+                    COUNTER_PREFILTER_SKIPPED + " 计数器中")
+            .build();
+
+    public final static PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .name("batch size")
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("50")
+            .description("每次调度一次性拉取的FlowFile数量，同一批次共用一套解析状态并在一次会话提交中完成")
+            .build();
+
+    public final static PropertyDescriptor BATCH_DURATION = new PropertyDescriptor.Builder()
+            .name("batch duration")
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("0 millis")
+            .description("在一次调度内持续拉取新批次的最长时间，0 表示每次调度只拉取一个批次")
+            .build();
+
+    public final static PropertyDescriptor FILTER_PREDICATE = new PropertyDescriptor.Builder()
+            .name("record filter")
+            .required(false)
+            .addValidator(RecordFilter.VALIDATOR)
+            .description("在提取动态字段之前对每条记录求值的过滤条件，不满足的记录不会进行完整解析。" +
+                    "写法：avro字段名 比较符 值，例如 list_sci = 1；/简单路径 比较符 值，例如 /product/pub_basic/publish_year >= 2015，" +
+                    "流式读取到该节点即停止；其他写法按XPATH布尔表达式在完整解析后求值。比较符为 = != > >= < <=，两边都是数字时按数值比较")
+            .build();
+
+    public final static String FILTERED_ROUTE = "route to filtered";
+    public final static String FILTERED_DROP = "drop";
+    public final static PropertyDescriptor FILTERED_ACTION = new PropertyDescriptor.Builder()
+            .name("filtered records")
+            .required(true)
+            .allowableValues(FILTERED_ROUTE, FILTERED_DROP)
+            .defaultValue(FILTERED_ROUTE)
+            .description("不满足过滤条件的记录的处理方式：输出到 filtered 关系，或直接丢弃")
+            .build();
+
+    public final static PropertyDescriptor DICTIONARY_FIELDS = new PropertyDescriptor.Builder()
+            .name("dictionary encoded fields")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .description("需要字典编码的输出字段，多个用逗号分隔，可以是动态字段或透传的avro字段（例如 type）。" +
+                    "所有取值都是合法的avro枚举名时写为enum，否则写为int编码，编码对应的取值以JSON数组写入avro文件元数据 " +
+                    FieldDictionary.META_PREFIX + "字段名")
+            .build();
+
+    public final static PropertyDescriptor DICTIONARY_AUTO_CARDINALITY = new PropertyDescriptor.Builder()
+            .name("dictionary auto max cardinality")
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .description("自动字典编码：处理器启动后的第一个输入FlowFile中不同取值数量不超过该值的字段按字典编码输出，" +
+                    "之后的输入都编码同样的字段，直到处理器停止，因此输出schema不随每个FlowFile的数据变化。" +
+                    "自动选出的字段总是写为int编码，0 表示只编码上面指定的字段")
+            .build();
+
+    public final static String FORMAT_AVRO = "avro";
+    public final static String FORMAT_PARQUET = "parquet";
+    public final static PropertyDescriptor OUTPUT_FORMAT = new PropertyDescriptor.Builder()
+            .name("output format")
+            .required(true)
+            .allowableValues(FORMAT_AVRO, FORMAT_PARQUET)
+            .defaultValue(FORMAT_AVRO)
+            .description("输出文件格式：avro 行式容器；parquet 列式文件，记录解析后直接写入FlowFile内容，下游只读取少数字段时压缩率和读取效率更高。" +
+                    "parquet 自带字典编码，不使用下面的字典编码设置，也不去除重复记录")
+            .build();
+
+    public final static PropertyDescriptor PARQUET_COMPRESSION = new PropertyDescriptor.Builder()
+            .name("parquet compression")
+            .required(true)
+            .allowableValues("UNCOMPRESSED", "SNAPPY", "GZIP")
+            .defaultValue("SNAPPY")
+            .description("parquet 输出的压缩方式")
+            .build();
+
+    public final static PropertyDescriptor PARQUET_ROW_GROUP_SIZE = new PropertyDescriptor.Builder()
+            .name("parquet row group size")
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("128 MB")
+            .description("parquet 输出中单个row group缓存的最大大小，达到后写出一个row group，超过2 GB时按2 GB计")
+            .build();
+
+    public final static PropertyDescriptor PARQUET_DICTIONARY = new PropertyDescriptor.Builder()
+            .name("parquet dictionary encoding")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("true")
+            .description("parquet 输出是否对列启用字典编码，适合大量重复的书目字段")
+            .build();
+
     private static final List<PropertyDescriptor> propertyDescriptors;
     private static final Set<Relationship> relationships;
+    private volatile ExtractionResultCache resultCache;
+    private volatile RecordPipeline pipeline;
+    private volatile DirectBufferArena arena;
+    private volatile XmlSchemaValidator schemaValidator;
+    private volatile ExtractionPlan extractionPlan;
+    //自动字典编码的字段，由启动后的第一个FlowFile确定
+    private final AtomicReference<Set<String>> autoDictionaryFields = new AtomicReference<>();
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return propertyDescriptors;
@@ -74,10 +243,32 @@ public class ProcessXMLInAvro extends AbstractProcessor {
     static {
         List<PropertyDescriptor> lpd = new ArrayList<>();
         lpd.add(NEED_COMPILE_XML_FIELD);
+        lpd.add(EXPRESSION_SYNTAX);
+        lpd.add(EXTRACTION_PLAN_SERVICE);
+        lpd.add(EXTRACTION_PLAN);
+        lpd.add(XML_SCHEMA);
+        lpd.add(TAG_PREFILTER);
+        lpd.add(FILTER_PREDICATE);
+        lpd.add(FILTERED_ACTION);
+        lpd.add(DICTIONARY_FIELDS);
+        lpd.add(DICTIONARY_AUTO_CARDINALITY);
+        lpd.add(OUTPUT_FORMAT);
+        lpd.add(PARQUET_COMPRESSION);
+        lpd.add(PARQUET_ROW_GROUP_SIZE);
+        lpd.add(PARQUET_DICTIONARY);
+        lpd.add(BATCH_SIZE);
+        lpd.add(BATCH_DURATION);
+        lpd.add(CACHE_MAX_ENTRIES);
+        lpd.add(CACHE_MAX_SIZE);
+        lpd.add(RecordPipeline.WORKER_THREADS);
+        lpd.add(RecordPipeline.QUEUE_SIZE);
+        lpd.add(DirectBufferArena.MAX_DIRECT_MEMORY);
         propertyDescriptors = Collections.unmodifiableList(lpd);
         Set<Relationship> rs = new HashSet<>();
         rs.add(REL_FAILURE);
         rs.add(REL_SUCCESS);
+        rs.add(REL_FILTERED);
+        rs.add(REL_INVALID);
         relationships = Collections.unmodifiableSet(rs);
     }
     @Override
@@ -87,135 +278,565 @@ public class ProcessXMLInAvro extends AbstractProcessor {
                 .addValidator(StandardValidators.NON_BLANK_VALIDATOR).required(false).dynamic(true).build();
     }
     @Override
-    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-        final Map<String, String> dynamicFieldExpressionMap = new HashMap<>();
-        final String extendXmlField = context.getProperty(NEED_COMPILE_XML_FIELD).getValue();
-        //get dynamic field(only with has extend field option)
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(context));
+        validateDotPaths(context, results);
+        validateExtractionPlan(context, results);
+        final String xsd = context.getProperty(XML_SCHEMA).getValue();
+        if (xsd != null && new File(xsd).isFile()) {
+            try {
+                XmlSchemaValidator.load(xsd);
+            } catch (IOException | SAXException e) {
+                results.add(new ValidationResult.Builder().subject(XML_SCHEMA.getName()).input(xsd)
+                        .valid(false).explanation("not a valid XSD: " + e.getMessage()).build());
+            }
+        }
+        return results;
+    }
+
+    /**
+     * with the dot path syntax, check that every dynamic property compiles
+     */
+    static void validateDotPaths(ValidationContext context, List<ValidationResult> results) {
+        if (!SYNTAX_DOT_PATH.equals(context.getProperty(EXPRESSION_SYNTAX).getValue())) {
+            return;
+        }
         for (final Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
-            if (entry.getKey().isDynamic()) { //get dynamic properties
-                dynamicFieldExpressionMap.put(entry.getKey().getName() ,entry.getValue());
+            if (!entry.getKey().isDynamic()) {
+                continue;
+            }
+            try {
+                DotPathExtractor.compile(Collections.singletonMap(entry.getKey().getName(), entry.getValue()));
+            } catch (IllegalArgumentException e) {
+                results.add(new ValidationResult.Builder().subject(entry.getKey().getName()).input(entry.getValue())
+                        .valid(false).explanation(e.getMessage()).build());
             }
         }
+    }
 
-        FlowFile flowFile = session.get();
-        String type = flowFile.getAttribute("type");
-        //{"id","basic xml","extend xml","type"}
-        session.read(flowFile, in -> {
-            final DataFileStream<GenericRecord> reader = new DataFileStream<>(in, new GenericDatumReader<GenericRecord>());
-            GenericRecord currRecord;
-            Schema schema = reader.getSchema();
-            List<Schema.Field> fieldList = schema.getFields();
-            if (schema.getField(extendXmlField) == null) {
-                throw new AvroRuntimeException("Not a record: "+this);
-            }
-            //genericRecord -> map
-            final DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(schema);
-            final DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(datumWriter);
-
-            Set<Map<String, String>> keyValue = new HashSet<>(); //存储所有键值对
-            Map<String, String> basic;//存储单个键值对
-            Set<String> fieldSet = new HashSet<>();//存储所有字段
-            fieldSet.addAll(dynamicFieldExpressionMap.keySet()); //将动态属性内的值加入字段集中
-            while (reader.hasNext()) {
-                currRecord = reader.next();//get single gr
-                String extendXml = currRecord.get(extendXmlField).toString();
-                basic = new HashMap<>();
-                try {
-                    basic.putAll(processExtend(extendXml, dynamicFieldExpressionMap));
-                } catch (DocumentException e) {
-                    e.printStackTrace();
+    /**
+     * a plan service and a plan name go together, and replace the dynamic properties
+     */
+    static void validateExtractionPlan(ValidationContext context, List<ValidationResult> results) {
+        final boolean service = context.getProperty(EXTRACTION_PLAN_SERVICE).isSet();
+        if (service != context.getProperty(EXTRACTION_PLAN).isSet()) {
+            results.add(new ValidationResult.Builder().subject(EXTRACTION_PLAN.getName()).valid(false)
+                    .explanation(EXTRACTION_PLAN_SERVICE.getName() + " and " + EXTRACTION_PLAN.getName() + " must be set together").build());
+        }
+        if (!service) {
+            return;
+        }
+        for (final PropertyDescriptor descriptor : context.getProperties().keySet()) {
+            if (descriptor.isDynamic()) {
+                results.add(new ValidationResult.Builder().subject(descriptor.getName()).valid(false)
+                        .explanation("dynamic fields cannot be used together with an extraction plan").build());
+            }
+        }
+    }
+
+    /**
+     * the plan from the plan service, or one compiled from the dynamic properties
+     * @throws ProcessException if the service has no such plan
+     */
+    static ExtractionPlan extractionPlan(ProcessContext context) {
+        final XmlExtractionPlanService service = context.getProperty(EXTRACTION_PLAN_SERVICE).asControllerService(XmlExtractionPlanService.class);
+        if (service == null) {
+            final Map<String, String> expressionMap = new LinkedHashMap<>();
+            for (final Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+                if (entry.getKey().isDynamic()) {
+                    expressionMap.put(entry.getKey().getName(), entry.getValue());
+                }
+            }
+            return ExtractionPlan.of(expressionMap, context.getProperty(EXPRESSION_SYNTAX).getValue());
+        }
+        final String reference = context.getProperty(EXTRACTION_PLAN).getValue();
+        final ExtractionPlan plan = service.getPlan(reference);
+        if (plan == null) {
+            throw new ProcessException("extraction plan " + reference + " not found, available plans: " + service.getPlanNames());
+        }
+        return plan;
+    }
+
+    @OnScheduled
+    public void setupExtractionPlan(ProcessContext context) {
+        extractionPlan = extractionPlan(context);
+        if (context.getProperty(TAG_PREFILTER).asBoolean() && extractionPlan.getPrefilter() == null) {
+            getLogger().warn("{} can not be used with {}, every record will be parsed",
+                    new Object[]{TAG_PREFILTER.getName(), extractionPlan});
+        }
+    }
+
+    @OnScheduled
+    public void setupResultCache(ProcessContext context) {
+        final int maxEntries = context.getProperty(CACHE_MAX_ENTRIES).asInteger();
+        resultCache = maxEntries > 0
+                ? new ExtractionResultCache(maxEntries, context.getProperty(CACHE_MAX_SIZE).asDataSize(DataUnit.B).longValue())
+                : null;
+    }
+
+    @OnScheduled
+    public void resetAutoDictionaryFields() {
+        autoDictionaryFields.set(null);
+    }
+
+    @OnScheduled
+    public void setupPipeline(ProcessContext context) {
+        pipeline = RecordPipeline.create(context, getIdentifier());
+    }
+
+    @OnScheduled
+    public void setupArena(ProcessContext context) {
+        arena = DirectBufferArena.create(context, getLogger());
+    }
+
+    @OnScheduled
+    public void setupSchemaValidator(ProcessContext context) throws IOException, SAXException {
+        final String xsd = context.getProperty(XML_SCHEMA).getValue();
+        schemaValidator = xsd == null ? null : XmlSchemaValidator.load(xsd);
+    }
+
+    @OnStopped
+    public void clearResultCache() {
+        final ExtractionResultCache cache = resultCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    @OnStopped
+    public void closeSchemaValidator() {
+        final XmlSchemaValidator validator = schemaValidator;
+        if (validator != null) {
+            validator.close();
+            schemaValidator = null;
+        }
+    }
+
+    @OnStopped
+    public void closeArena() {
+        final DirectBufferArena a = arena;
+        if (a != null) {
+            a.close();
+        }
+    }
+
+    @OnStopped
+    public void shutdownPipeline() {
+        final RecordPipeline p = pipeline;
+        if (p != null) {
+            p.shutdown();
+            pipeline = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        List<FlowFile> flowFiles = session.get(batchSize);
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+        final long batchNanos = context.getProperty(BATCH_DURATION).asTimePeriod(TimeUnit.NANOSECONDS);
+        final long start = System.nanoTime();
+
+        final BatchState state = new BatchState(context, extractionPlan, resultCache, schemaValidator, autoDictionaryFields);
+        while (!flowFiles.isEmpty()) {
+            for (FlowFile flowFile : flowFiles) {
+                processFlowFile(session, flowFile, state);
+            }
+            if (System.nanoTime() - start >= batchNanos) {
+                break;
+            }
+            flowFiles = session.get(batchSize);
+        }
+        state.cacheCounts.adjustCounters(session);
+        arena.adjustCounters(session);
+        if (state.prefilterSkipped.get() > 0) {
+            session.adjustCounter(COUNTER_PREFILTER_SKIPPED, state.prefilterSkipped.get(), false);
+        }
+    }
+
+    /**
+     * stage result of one record: the extracted values, or the error if it is not well-formed or failed XSD validation
+     */
+    private static final class StageResult {
+        private final Map<String, String> values;
+        private final String error;
+
+        private StageResult(Map<String, String> values, String error) {
+            this.values = values;
+            this.error = error;
+        }
+    }
+
+    /**
+     * 整个批次共用的解析状态
+     */
+    private static final class BatchState {
+        private final String extendXmlField;
+        private final ExtractionPlan plan;
+        private final RecordFilter filter;
+        private final boolean routeFiltered;
+        private final Set<String> dictionaryFields = new HashSet<>();
+        private final int autoCardinality;
+        private final AtomicReference<Set<String>> autoFields; //null 表示还没有确定
+        private final ParquetOutput parquet; //null 表示输出avro
+        private final ExtractionResultCache cache;
+        private final XmlSchemaValidator validator; //null 表示不校验
+        private final TagPrefilter prefilter; //null 表示不预筛
+        //工作线程并发更新
+        private final ExtractionResultCache.Counts cacheCounts = new ExtractionResultCache.Counts();
+        private final AtomicLong prefilterSkipped = new AtomicLong();
+
+        private BatchState(ProcessContext context, ExtractionPlan plan, ExtractionResultCache cache, XmlSchemaValidator validator,
+                           AtomicReference<Set<String>> autoFields) {
+            extendXmlField = context.getProperty(NEED_COMPILE_XML_FIELD).getValue();
+            this.plan = plan;
+            final String predicate = context.getProperty(FILTER_PREDICATE).getValue();
+            filter = predicate == null ? null : RecordFilter.compile(predicate);
+            routeFiltered = FILTERED_ROUTE.equals(context.getProperty(FILTERED_ACTION).getValue());
+            final String dictionary = context.getProperty(DICTIONARY_FIELDS).getValue();
+            if (dictionary != null) {
+                for (String field : dictionary.split(",")) {
+                    if (!field.trim().isEmpty()) {
+                        dictionaryFields.add(field.trim());
+                    }
                 }
-                for (Schema.Field field : fieldList) {
-                    if (!Objects.equals(field.name(), extendXmlField) || Objects.equals(field.name(), "type")) {
-                        basic.put(field.name(), currRecord.get(field.name()).toString()); //将Avro内其他值加入其中
+            }
+            autoCardinality = context.getProperty(DICTIONARY_AUTO_CARDINALITY).asInteger();
+            this.autoFields = autoFields;
+            parquet = FORMAT_PARQUET.equals(context.getProperty(OUTPUT_FORMAT).getValue())
+                    ? new ParquetOutput(CompressionCodecName.valueOf(context.getProperty(PARQUET_COMPRESSION).getValue()),
+                    context.getProperty(PARQUET_ROW_GROUP_SIZE).asDataSize(DataUnit.B).longValue(),
+                    context.getProperty(PARQUET_DICTIONARY).asBoolean())
+                    : null;
+            this.cache = cache;
+            this.validator = validator;
+            //校验需要完整读取，此时不预筛
+            prefilter = validator == null && context.getProperty(TAG_PREFILTER).asBoolean() ? plan.getPrefilter() : null;
+        }
+
+        /**
+         * @throws SAXException if validation is on and the xml is not valid
+         */
+        private Map<String, String> extract(Object extendXml) throws DocumentException, SAXException, IOException {
+            if (prefilter != null && !prefilter.mayMatch(extendXml)) {
+                prefilterSkipped.incrementAndGet();
+                return plan.getMissingResult();
+            }
+            if (cache == null) {
+                return evaluate(extendXml);
+            }
+            ExtractionResultCache.Key cacheKey = ExtractionResultCache.key(plan.getId(), extendXml);
+            Map<String, String> cached = cache.get(cacheKey, cacheCounts);
+            if (cached == null) {
+                cached = evaluate(extendXml);
+                cache.put(cacheKey, cached);
+            }
+            return cached;
+        }
+
+        private Map<String, String> evaluate(Object extendXml) throws DocumentException, SAXException, IOException {
+            return validator != null ? plan.extract(extendXml, validator) : plan.extract(extendXml);
+        }
+
+        /**
+         * the value written for a field: dictionary code, the plan's output type, or the string itself
+         */
+        private Object value(String field, String value, Map<String, FieldDictionary> encoded) {
+            final FieldDictionary dictionary = encoded.get(field);
+            return dictionary != null ? dictionary.encode(value) : plan.convert(field, value);
+        }
+
+        /**
+         * replace the values of dictionary fields with their interned instance
+         */
+        private void intern(Map<String, String> record, Map<String, FieldDictionary> dictionaries) {
+            if (dictionaryFields.isEmpty() && autoCardinality == 0) {
+                return;
+            }
+            final Set<String> chosen = autoFields.get();
+            for (Map.Entry<String, String> entry : record.entrySet()) {
+                final String field = entry.getKey();
+                if (plan.getType(field) != Schema.Type.STRING) {
+                    continue; //有类型的字段不做字典编码
+                }
+                FieldDictionary dictionary = dictionaries.get(field);
+                if (dictionary == null) {
+                    if (dictionaryFields.contains(field)) {
+                        dictionary = new FieldDictionary(field, 0);
+                    } else if (autoCardinality > 0 && (chosen == null || chosen.contains(field))) {
+                        dictionary = new FieldDictionary(field, chosen == null ? autoCardinality : 0, false);
+                    } else {
+                        continue;
                     }
+                    dictionaries.put(field, dictionary);
                 }
-                keyValue.add(basic);
+                entry.setValue(dictionary.intern(entry.getValue()));
             }
-            for (Schema.Field field : fieldList) {
-                if (!Objects.equals(field.name(), extendXmlField)) {
-                    fieldSet.add(field.name());
+        }
+
+        /**
+         * the dictionaries to write: the listed fields whose values could be collected, and the automatic fields.
+         * The first flowfile chooses the automatic fields, later ones encode the same fields whatever their values.
+         */
+        private Map<String, FieldDictionary> encoded(Map<String, FieldDictionary> dictionaries, Collection<Map<String, String>> records,
+                                                     Set<String> fieldSet) {
+            final Map<String, FieldDictionary> encoded = new HashMap<>();
+            for (String field : dictionaryFields) {
+                final FieldDictionary dictionary = dictionaries.get(field);
+                if (dictionary != null && dictionary.isEncodable() && fieldSet.contains(field)) {
+                    encoded.put(field, dictionary);
                 }
             }
-            Schema newSchema = createSchema(fieldSet, type);
-
-            //passing test
-            FlowFile ff = session.create(flowFile);
-            final GenericRecord rec = new GenericData.Record(newSchema);
-            ff = session.write(ff, out -> {
-                final DataFileWriter<GenericRecord> dfw = dataFileWriter.create(newSchema, out);
-                for (Map<String,String> m : keyValue) {
-                    for (String key : m.keySet()) {
-                        logger.error(key + " : " + m.get(key));
-                        rec.put(key, m.get(key));
+            if (autoCardinality == 0) {
+                return encoded;
+            }
+            if (autoFields.get() == null) {
+                final Set<String> fields = new HashSet<>();
+                for (FieldDictionary dictionary : dictionaries.values()) {
+                    if (!dictionaryFields.contains(dictionary.getField()) && dictionary.isEncodable() && fieldSet.contains(dictionary.getField())) {
+                        fields.add(dictionary.getField());
                     }
-                    dfw.append(rec);
                 }
-                dfw.close();
-            });
-            session.transfer(ff, REL_SUCCESS);
-        });
-        session.remove(flowFile);
+                autoFields.compareAndSet(null, Collections.unmodifiableSet(fields));
+            }
+            for (String field : autoFields.get()) {
+                if (dictionaryFields.contains(field) || !fieldSet.contains(field)) {
+                    continue;
+                }
+                FieldDictionary dictionary = dictionaries.get(field);
+                if (dictionary == null || !dictionary.isEncodable()) {
+                    //读取期间字段才确定，或在限制下溢出，重新收集全部取值
+                    dictionary = new FieldDictionary(field, 0, false);
+                    for (Map<String, String> record : records) {
+                        dictionary.intern(record.get(field));
+                    }
+                }
+                encoded.put(field, dictionary);
+            }
+            return encoded;
+        }
     }
 
-    public static Map<String, String> processExtend(String xml, Map<String,String> expressionMap) throws DocumentException {
-        Document doc;
+    private void processFlowFile(final ProcessSession session, final FlowFile flowFile, final BatchState state) {
+        final String extendXmlField = state.extendXmlField;
+        String type = flowFile.getAttribute("type");
+        final Set<Map<String, String>> keyValue = new HashSet<>(); //存储所有键值对
+        final Set<String> fieldSet = new HashSet<>();//存储所有字段
+        final Map<String, FieldDictionary> dictionaries = new HashMap<>();//字典编码字段
+        //被过滤掉的原始记录
+        final EncodedRecordBuffer filtered = state.filter != null && state.routeFiltered ? new EncodedRecordBuffer(arena) : null;
+        //无法解析或未通过XSD校验的原始记录
+        final EncodedRecordBuffer invalid = new EncodedRecordBuffer(arena);
+        final AtomicReference<String> firstInvalid = new AtomicReference<>();
+        final AtomicReference<Schema> inSchema = new AtomicReference<>();
+        final AtomicReference<FlowFile> outFF = new AtomicReference<>(); //parquet 输出在读取时创建
+        FlowFile ff = null;
+        FlowFile filteredFF = null;
+        FlowFile invalidFF = null;
         try {
-            doc = DocumentHelper.parseText(xml);
-        } catch (Exception e) {
-            String af = CheckUnicodeString(xml);
-            doc = DocumentHelper.parseText(af.replaceAll("&#.", " ").replaceAll(UTF8_BOM," "));
-        }
-        Element rootElem = doc.getRootElement();
-        Map<String, String> keyValue = new HashMap<>();
-        for (String name : expressionMap.keySet()) {
-            String xpath = expressionMap.get(name);
-            StringBuilder sb = new StringBuilder();
-                if (!xpath.contains("#")) {
-                    try {
-                        List no = rootElem.selectNodes(xpath);
-                        if (no.size() > 1) {
-                            for (int i = 0; i < no.size(); i++) {
-                                Object o = no.get(i);
-                                sb.append(((Node) (o)).getText());
-                                if (i < no.size() - 1) {
-                                    sb.append("#");
-                                }
-                            }
-                            keyValue.put(name, sb.toString());
-                        } else {
-                            keyValue.put(name, ((Node) (no.get(0))).getText());
+            //{"id","basic xml","extend xml","type"}
+            session.read(flowFile, in -> {
+                try (AvroBlockReader reader = pipeline.openReader(in)) {
+                    Schema schema = reader.getSchema();
+                    List<Schema.Field> fieldList = schema.getFields();
+                    if (schema.getField(extendXmlField) == null) {
+                        throw new AvroRuntimeException("Not a record: "+this);
+                    }
+                    if (state.filter != null) {
+                        state.filter.validate(schema);
+                    }
+                    inSchema.set(schema);
+                    final EncodedRecordBuffer.RecordEncoder filteredEncoder = filtered == null ? null : new EncodedRecordBuffer.RecordEncoder(schema);
+                    final EncodedRecordBuffer.RecordEncoder invalidEncoder = new EncodedRecordBuffer.RecordEncoder(schema);
+                    //被过滤的和校验失败的原始记录分别写入缓存
+                    final RecordPipeline.Sink<GenericRecord, StageResult> reject = (currRecord, result) -> {
+                        if (result != null) {
+                            //按记录顺序取第一条的错误，与工作线程数无关
+                            firstInvalid.compareAndSet(null, result.error);
+                            invalidEncoder.encode(currRecord, invalid);
+                        } else if (filteredEncoder != null) {
+                            filteredEncoder.encode(currRecord, filtered);
+                        }
+                    };
+                    fieldSet.addAll(state.plan.getFields()); //将动态属性内的值加入字段集中
+                    for (Schema.Field field : fieldList) {
+                        if (!Objects.equals(field.name(), extendXmlField)) {
+                            fieldSet.add(field.name());
                         }
-                    } catch (IndexOutOfBoundsException e) {
-                        keyValue.put(name, null);
-                    } catch (NullPointerException e) {
-                        keyValue.put(name, sb.toString());
                     }
-                } else {
-
-                        String[] xpaths = xpath.split("#");
-                        for (int i = 0; i < xpaths.length; i++) {
-                            try {
-                                sb.append(rootElem.selectSingleNode(xpaths[i]).getText());
-                            } catch (Exception e) {
-                                sb.append("null");
+                    //genericRecord -> map，过滤和XML解析在工作线程上进行，被过滤的记录返回null，校验失败的只带错误信息
+                    final RecordPipeline.Stage<GenericRecord, StageResult> stage = currRecord -> {
+                        Object extendXml = currRecord.get(extendXmlField);
+                        if (state.filter != null && !state.filter.test(currRecord, extendXml)) {
+                            return null;
+                        }
+                        Map<String, String> basic = new HashMap<>();//存储单个键值对
+                        try {
+                            basic.putAll(state.extract(extendXml));
+                        } catch (DocumentException e) {
+                            getLogger().error("A record of {} is not well-formed XML due to {}; routing to invalid", new Object[]{flowFile, e});
+                            return new StageResult(null, e.getMessage());
+                        } catch (SAXException e) {
+                            return new StageResult(null, e.getMessage());
+                        }
+                        for (Schema.Field field : fieldList) {
+                            if (!Objects.equals(field.name(), extendXmlField) || Objects.equals(field.name(), "type")) {
+                                final Object value = currRecord.get(field.name());
+                                basic.put(field.name(), value == null ? null : value.toString()); //将Avro内其他值加入其中
                             }
-                            if (i < xpaths.length - 1) {
-                                sb.append("#");
+                        }
+                        return new StageResult(basic, null);
+                    };
+                    if (state.parquet == null) {
+                        pipeline.run(reader, stage, (currRecord, result) -> {
+                            if (result == null || result.error != null) {
+                                reject.accept(currRecord, result);
+                                return;
                             }
+                            state.intern(result.values, dictionaries);
+                            keyValue.add(result.values);
+                        });
+                        return;
+                    }
+                    //parquet自带字典编码，字段由输入schema和提取计划确定，记录解析后直接写出
+                    final Schema newSchema = createSchema(fieldSet, type, Collections.<String, FieldDictionary>emptyMap(), state.plan);
+                    final GenericRecord rec = new GenericData.Record(newSchema);
+                    FlowFile parquetFF = session.create(flowFile);
+                    outFF.set(parquetFF);
+                    parquetFF = session.write(parquetFF, out -> {
+                        try (ParquetWriter<GenericRecord> writer = state.parquet.open(newSchema, out)) {
+                            pipeline.run(reader, stage, (currRecord, result) -> {
+                                if (result == null || result.error != null) {
+                                    reject.accept(currRecord, result);
+                                    return;
+                                }
+                                for (Schema.Field field : newSchema.getFields()) {
+                                    rec.put(field.pos(), state.value(field.name(), result.values.get(field.name()), Collections.<String, FieldDictionary>emptyMap()));
+                                }
+                                writer.write(rec);
+                            });
                         }
-                        keyValue.put(name, sb.toString());
-
+                    });
+                    outFF.set(parquetFF);
                 }
+            });
+            if (state.parquet == null) {
+                final Map<String, FieldDictionary> encoded = state.encoded(dictionaries, keyValue, fieldSet);
+                final Schema newSchema = createSchema(fieldSet, type, encoded, state.plan);
 
+                //passing test
+                ff = session.create(flowFile);
+                final GenericRecord rec = new GenericData.Record(newSchema);
+                ff = session.write(ff, out -> {
+                    final DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(newSchema));
+                    for (FieldDictionary dictionary : encoded.values()) {
+                        if (!dictionary.isEnum()) {
+                            dfw.setMeta(FieldDictionary.META_PREFIX + dictionary.getField(), dictionary.toJson());
+                        }
+                    }
+                    dfw.create(newSchema, out);
+                    for (Map<String,String> m : keyValue) {
+                        for (String key : m.keySet()) {
+                            rec.put(key, state.value(key, m.get(key), encoded));
+                        }
+                        dfw.append(rec);
+                    }
+                    dfw.close();
+                });
+            } else {
+                ff = outFF.get();
+            }
+            if (filtered != null && filtered.getRecordCount() > 0) {
+                final Schema schema = inSchema.get();
+                filteredFF = session.create(flowFile);
+                filteredFF = session.write(filteredFF, out -> {
+                    try (DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema)).create(schema, out)) {
+                        EncodedRecordBuffer.writeTo(filtered.cursor(), dfw, 0);
+                    }
+                });
+                filteredFF = session.putAttribute(filteredFF, "record.count", String.valueOf(filtered.getRecordCount()));
+                session.transfer(filteredFF, REL_FILTERED);
+            }
+            if (invalid.getRecordCount() > 0) {
+                final Schema schema = inSchema.get();
+                invalidFF = session.create(flowFile);
+                invalidFF = session.write(invalidFF, out -> {
+                    try (DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema)).create(schema, out)) {
+                        EncodedRecordBuffer.writeTo(invalid.cursor(), dfw, 0);
+                    }
+                });
+                final Map<String, String> attributes = new HashMap<>();
+                attributes.put("record.count", String.valueOf(invalid.getRecordCount()));
+                attributes.put(VALIDATION_ERROR, firstInvalid.get());
+                invalidFF = session.putAllAttributes(invalidFF, attributes);
+                session.transfer(invalidFF, REL_INVALID);
+            }
+            if (state.parquet != null) {
+                ff = session.putAttribute(ff, "mime.type", "application/parquet");
+            }
+            session.transfer(ff, REL_SUCCESS);
+            session.remove(flowFile);
+        } catch (Exception e) {
+            if (ff == null) {
+                ff = outFF.get();
+            }
+            if (ff != null) {
+                session.remove(ff);
+            }
+            if (filteredFF != null) {
+                session.remove(filteredFF);
+            }
+            if (invalidFF != null) {
+                session.remove(invalidFF);
+            }
+            getLogger().error("Failed to process {} due to {}; routing to failure", new Object[]{flowFile, e});
+            session.transfer(flowFile, REL_FAILURE);
+        } finally {
+            if (filtered != null) {
+                filtered.release();
+            }
+            invalid.release();
         }
-        return keyValue;
     }
+
+    public static Map<String, String> processExtend(String xml, Map<String,String> expressionMap) throws DocumentException {
+        return processExtend(parse(xml), expressionMap);
+    }
+
+    static Map<String, String> processExtend(Document doc, Map<String,String> expressionMap) {
+        return ExtractionPlan.select(doc.getRootElement(), ExtractionPlan.compile(expressionMap, null));
+    }
+
+    /**
+     * parse with dom4j, replacing invalid characters and the BOM when the first attempt fails
+     */
+    static Document parse(String xml) throws DocumentException {
+        try {
+            return DocumentHelper.parseText(xml);
+        } catch (Exception e) {
+            String af = CheckUnicodeString(xml);
+            return DocumentHelper.parseText(af.replaceAll("&#.", " ").replaceAll(UTF8_BOM," "));
+        }
+    }
+
     public static Schema createSchema(Set<String> set, String type) {
+        return createSchema(set, type, Collections.<String, FieldDictionary>emptyMap(), null);
+    }
+
+    private static Schema createSchema(Set<String> set, String type, Map<String, FieldDictionary> dictionaries, ExtractionPlan plan) {
         String tableName = StringUtils.isEmpty(type) ? "NiFi_ProcessProductXML_Record" :  "NiFi_ProcessProductXML_Record_" + type;
         final SchemaBuilder.FieldAssembler<Schema> builder = SchemaBuilder.record(tableName).namespace("any.data").fields();
         for (String s : set) {
-            builder.name(s).type().unionOf().nullBuilder().endNull().and().stringType().endUnion().noDefault();
+            final FieldDictionary dictionary = dictionaries.get(s);
+            if (dictionary != null) {
+                builder.name(s).type(dictionary.schema("any.data")).noDefault();
+            } else if (plan != null && plan.getType(s) != Schema.Type.STRING) {
+                builder.name(s).type(Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.NULL), Schema.create(plan.getType(s))))).noDefault();
+            } else {
+                builder.name(s).type().unionOf().nullBuilder().endNull().and().stringType().endUnion().noDefault();
+            }
         }
         return builder.endRecord();
     }
@@ -0,0 +1,284 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+import org.dom4j.DocumentException;
+
+import java.io.BufferedInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// {[... + xml field](任意record格式)} -> [... + 动态字段](任意record格式)
+@SupportsBatching
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@Tags({"record", "XML", "Avro", "CSV", "JSON", "Sha0w"})
+@CapabilityDescription("与 ProcessXMLInAvro 相同的XML字段提取，但通过 Record Reader 读取、Record Writer 写出，" +
+        "可以直接处理使用schema registry、不内嵌schema的Avro，以及CSV、JSON等格式。记录逐条读取、提取并写出，不在内存中缓存整个文件")
+@DynamicProperty(name = "输出字段名", value = "XPATH或dot path表达式", description = "从XML字段中提取的节点，多个路径可以用#连接，结果写为字符串字段")
+@WritesAttributes({
+        @WritesAttribute(attribute = "record.count", description = "写出的记录数"),
+        @WritesAttribute(attribute = "mime.type", description = "Record Writer 对应的MIME类型")
+})
+public class ProcessXMLInRecord extends AbstractProcessor {
+
+    public static final PropertyDescriptor RECORD_READER = new PropertyDescriptor.Builder()
+            .required(true)
+            .identifiesControllerService(RecordReaderFactory.class)
+            .description("读取输入记录的 Record Reader")
+            .name("record reader")
+            .build();
+
+    public static final PropertyDescriptor RECORD_WRITER = new PropertyDescriptor.Builder()
+            .required(true)
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .description("写出结果的 Record Writer，其schema需要包含动态字段（字符串，可为空）以及保留的输入字段")
+            .name("record writer")
+            .build();
+
+    public static final PropertyDescriptor XML_FIELD = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .description("记录中保存XML的字段名")
+            .name("xml field")
+            .build();
+
+    public static final PropertyDescriptor KEEP_XML_FIELD = new PropertyDescriptor.Builder()
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .description("是否在输出中保留XML字段，默认与 ProcessXMLInAvro 一致去掉该字段")
+            .name("keep xml field")
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("提取后的记录")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("无法读取或写出的输入FlowFile")
+            .build();
+
+    private static final List<PropertyDescriptor> propertyDescriptors;
+    private static final Set<Relationship> relationships;
+    private volatile ExtractionPlan extractionPlan;
+
+    static {
+        List<PropertyDescriptor> _props = new ArrayList<>();
+        _props.add(RECORD_READER);
+        _props.add(RECORD_WRITER);
+        _props.add(XML_FIELD);
+        _props.add(KEEP_XML_FIELD);
+        _props.add(ProcessXMLInAvro.EXPRESSION_SYNTAX);
+        _props.add(ProcessXMLInAvro.EXTRACTION_PLAN_SERVICE);
+        _props.add(ProcessXMLInAvro.EXTRACTION_PLAN);
+        propertyDescriptors = Collections.unmodifiableList(_props);
+        Set<Relationship> _relationships = new HashSet<>();
+        _relationships.add(REL_SUCCESS);
+        _relationships.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(_relationships);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return propertyDescriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName).expressionLanguageSupported(false)
+                .addValidator(StandardValidators.NON_BLANK_VALIDATOR).required(false).dynamic(true).build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(context));
+        ProcessXMLInAvro.validateDotPaths(context, results);
+        ProcessXMLInAvro.validateExtractionPlan(context, results);
+        return results;
+    }
+
+    @OnScheduled
+    public void setupExtractionPlan(ProcessContext context) {
+        extractionPlan = ProcessXMLInAvro.extractionPlan(context);
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        final FlowFile original = session.get();
+        if (original == null) {
+            return;
+        }
+        final RecordReaderFactory readerFactory = context.getProperty(RECORD_READER).asControllerService(RecordReaderFactory.class);
+        final RecordSetWriterFactory writerFactory = context.getProperty(RECORD_WRITER).asControllerService(RecordSetWriterFactory.class);
+        final Extraction extraction = new Extraction(context, extractionPlan);
+
+        final Map<String, String> attributes = new HashMap<>();
+        try {
+            final FlowFile output = session.write(original, (in, out) -> {
+                //writer 的schema可能要从内容中获得：只保留 writer 读过的开头部分，建好 writer 后从头读取记录，内容只读一次
+                final BufferedInputStream content = new BufferedInputStream(in);
+                content.mark(Integer.MAX_VALUE);
+                final RecordSetWriter writer;
+                try {
+                    writer = writerFactory.createWriter(getLogger(), original, content);
+                } catch (SchemaNotFoundException e) {
+                    throw new ProcessException(e);
+                }
+                content.reset();
+                content.mark(0); //之后读取的内容不再保留
+                try (RecordReader reader = readerFactory.createRecordReader(original, content, getLogger())) {
+                    final WriteResult result = writer.write(extraction.recordSet(reader), out);
+                    attributes.put("record.count", String.valueOf(result.getRecordCount()));
+                    attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                    attributes.putAll(result.getAttributes());
+                } catch (MalformedRecordException | SchemaNotFoundException e) {
+                    throw new ProcessException(e);
+                }
+            });
+            session.transfer(session.putAllAttributes(output, attributes), REL_SUCCESS);
+        } catch (ProcessException e) {
+            getLogger().error("Failed to process {} due to {}; routing to failure", new Object[]{original, e});
+            session.transfer(session.penalize(original), REL_FAILURE);
+        }
+    }
+
+    /**
+     * 一次调度共用的提取设置
+     */
+    private static final class Extraction {
+        private final String xmlField;
+        private final boolean keepXmlField;
+        private final ExtractionPlan plan;
+
+        private Extraction(ProcessContext context, ExtractionPlan plan) {
+            xmlField = context.getProperty(XML_FIELD).getValue().trim();
+            keepXmlField = context.getProperty(KEEP_XML_FIELD).asBoolean();
+            this.plan = plan;
+        }
+
+        /**
+         * 输入字段（去掉XML字段）加上动态字段，同名时以提取结果为准
+         */
+        private RecordSchema outputSchema(RecordSchema input) throws MalformedRecordException {
+            if (!input.getFieldNames().contains(xmlField)) {
+                throw new MalformedRecordException("field " + xmlField + " not found in the record schema");
+            }
+            final List<RecordField> fields = new ArrayList<>();
+            for (RecordField field : input.getFields()) {
+                if ((keepXmlField || !field.getFieldName().equals(xmlField)) && !plan.getFields().contains(field.getFieldName())) {
+                    fields.add(field);
+                }
+            }
+            for (String name : plan.getFields()) {
+                fields.add(new RecordField(name, fieldType(plan.getType(name)).getDataType()));
+            }
+            return new SimpleRecordSchema(fields);
+        }
+
+        /**
+         * 惰性的记录集，writer 每取一条才从 reader 读一条并提取
+         */
+        private RecordSet recordSet(RecordReader reader) throws MalformedRecordException {
+            final RecordSchema schema = outputSchema(reader.getSchema());
+            return new RecordSet() {
+                @Override
+                public RecordSchema getSchema() {
+                    return schema;
+                }
+
+                @Override
+                public Record next() throws IOException {
+                    final Record record;
+                    try {
+                        record = reader.nextRecord();
+                    } catch (MalformedRecordException e) {
+                        throw new IOException(e);
+                    }
+                    return record == null ? null : extract(record, schema);
+                }
+            };
+        }
+
+        private static RecordFieldType fieldType(Schema.Type type) {
+            switch (type) {
+                case INT:
+                    return RecordFieldType.INT;
+                case LONG:
+                    return RecordFieldType.LONG;
+                case DOUBLE:
+                    return RecordFieldType.DOUBLE;
+                case BOOLEAN:
+                    return RecordFieldType.BOOLEAN;
+                default:
+                    return RecordFieldType.STRING;
+            }
+        }
+
+        private Record extract(Record record, RecordSchema schema) throws IOException {
+            final Map<String, Object> values = new HashMap<>();
+            for (RecordField field : schema.getFields()) {
+                if (!plan.getFields().contains(field.getFieldName())) {
+                    values.put(field.getFieldName(), record.getValue(field.getFieldName()));
+                }
+            }
+            final Object xml = record.getValue(xmlField);
+            if (xml != null) {
+                try {
+                    //直接传入字段值，dot path 按字符流读取，不另外转成字符串
+                    for (Map.Entry<String, String> entry : plan.extract(xml).entrySet()) {
+                        values.put(entry.getKey(), plan.convert(entry.getKey(), entry.getValue()));
+                    }
+                } catch (DocumentException e) {
+                    throw new IOException(e);
+                }
+            }
+            return new MapRecord(schema, values);
+        }
+    }
+}
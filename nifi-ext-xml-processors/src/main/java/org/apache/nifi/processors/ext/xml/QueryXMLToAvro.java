@@ -0,0 +1,781 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.dom4j.DocumentException;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.nio.ByteBuffer;
+import java.sql.Clob;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.SQLXML;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+// {select ... xml_clob ... from ...} -> [其他列 + 动态字段]
+@Tags({"Avro", "XML", "SQL", "JDBC", "CLOB", "Sha0w"})
+@InputRequirement(InputRequirement.Requirement.INPUT_ALLOWED)
+@CapabilityDescription("通过数据库连接池执行查询，逐行读取XML CLOB/XMLType字段，按动态字段的XPATH提取节点，" +
+        "与其他列一起写成Avro。结果集按fetch size分批读取，不会整体加载到内存；设置分区列后按键值范围拆成多个查询并行执行，" +
+        "每个分区输出一个FlowFile，分区列为空的行另外输出一个FlowFile。整数、浮点、布尔和二进制列保持原类型，其他列写为字符串")
+@DynamicProperty(name = "输出字段名", value = "XPATH表达式", description = "从XML字段中提取的节点，多个路径可以用#连接")
+@WritesAttributes({
+        @WritesAttribute(attribute = "record.count", description = "FlowFile中的记录数"),
+        @WritesAttribute(attribute = QueryXMLToAvro.PARTITION_INDEX, description = "按分区列拆分时，该FlowFile对应的分区序号")
+})
+public class QueryXMLToAvro extends AbstractProcessor {
+    public static final String PARTITION_INDEX = "xml.query.partition";
+
+    public static final PropertyDescriptor DBCP_SERVICE = new PropertyDescriptor.Builder()
+            .required(true)
+            .identifiesControllerService(DBCPService.class)
+            .description("用于获取数据库连接的连接池服务")
+            .name("database connection pooling service")
+            .build();
+
+    public static final PropertyDescriptor SQL_SELECT_QUERY = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_EMPTY_VALIDATOR)
+            .expressionLanguageSupported(true)
+            .description("查询语句，可以使用输入FlowFile的属性。XMLType列建议在查询中转换为CLOB，例如 XMLTYPE.getClobVal(col) AS product_xml")
+            .name("sql select query")
+            .build();
+
+    public static final PropertyDescriptor XML_COLUMN = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .description("结果集中保存XML的列名，支持CLOB、SQLXML和字符串类型，不区分大小写")
+            .name("xml column")
+            .build();
+
+    public static final PropertyDescriptor FETCH_SIZE = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("500")
+            .description("每次从数据库读取的行数，0 表示使用驱动的默认值")
+            .name("fetch size")
+            .build();
+
+    public static final PropertyDescriptor QUERY_TIMEOUT = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .description("单个查询的超时秒数，0 表示不限制")
+            .name("query timeout")
+            .build();
+
+    public static final PropertyDescriptor PARTITION_COLUMN = new PropertyDescriptor.Builder()
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .description("数值类型的分区列，可以是整数或小数。设置后先查询该列的最小值和最大值，再按范围拆成多个查询并行执行，" +
+                    "该列为空的行由另一个查询读取")
+            .name("partition column")
+            .build();
+
+    public static final PropertyDescriptor PARTITION_COUNT = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .description("按分区列拆分的查询数，也是并行执行的查询数，另有一个读取分区列为空的行的查询与它们同时执行，每个查询占用一个连接")
+            .name("partition count")
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("查询结果转换后的Avro文件")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("查询失败时输入的FlowFile")
+            .build();
+
+    private static final List<PropertyDescriptor> propertyDescriptors;
+    private static final Set<Relationship> relationships;
+
+    static {
+        List<PropertyDescriptor> _props = new ArrayList<>();
+        _props.add(DBCP_SERVICE);
+        _props.add(SQL_SELECT_QUERY);
+        _props.add(XML_COLUMN);
+        _props.add(FETCH_SIZE);
+        _props.add(QUERY_TIMEOUT);
+        _props.add(PARTITION_COLUMN);
+        _props.add(PARTITION_COUNT);
+        _props.add(DirectBufferArena.MAX_DIRECT_MEMORY);
+        propertyDescriptors = Collections.unmodifiableList(_props);
+        Set<Relationship> _relationships = new HashSet<>();
+        _relationships.add(REL_SUCCESS);
+        _relationships.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(_relationships);
+    }
+
+    private volatile ExecutorService partitionExecutor;
+    private volatile DirectBufferArena arena;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return propertyDescriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName).expressionLanguageSupported(false)
+                .addValidator(StandardValidators.NON_BLANK_VALIDATOR).required(false).dynamic(true).build();
+    }
+
+    @OnScheduled
+    public void setupPartitionExecutor(ProcessContext context) {
+        final int partitions = context.getProperty(PARTITION_COUNT).asInteger();
+        //范围分区之外还有读取空值的查询，同时执行
+        partitionExecutor = context.getProperty(PARTITION_COLUMN).isSet() && partitions > 1
+                ? Executors.newFixedThreadPool(partitions + 1) : null;
+    }
+
+    @OnScheduled
+    public void setupArena(ProcessContext context) {
+        arena = DirectBufferArena.create(context, getLogger());
+    }
+
+    @OnStopped
+    public void closeArena() {
+        final DirectBufferArena a = arena;
+        if (a != null) {
+            a.close();
+        }
+    }
+
+    @OnStopped
+    public void shutdownPartitionExecutor() {
+        final ExecutorService executor = partitionExecutor;
+        if (executor != null) {
+            executor.shutdownNow();
+            partitionExecutor = null;
+        }
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        FlowFile input = null;
+        if (context.hasIncomingConnection()) {
+            input = session.get();
+            if (input == null && context.hasNonLoopConnection()) {
+                return;
+            }
+        }
+        final DBCPService dbcp = context.getProperty(DBCP_SERVICE).asControllerService(DBCPService.class);
+        final String sql = context.getProperty(SQL_SELECT_QUERY).evaluateAttributeExpressions(input).getValue();
+        final QueryPlan plan = new QueryPlan(context);
+        final List<FlowFile> output = new ArrayList<>();
+        try {
+            final String partitionColumn = context.getProperty(PARTITION_COLUMN).getValue();
+            final ExecutorService executor = partitionExecutor;
+            if (partitionColumn == null || executor == null) {
+                output.add(queryToFlowFile(session, input, dbcp, sql, plan));
+            } else {
+                queryPartitions(session, input, dbcp, sql, partitionColumn.trim(), plan, executor, output);
+            }
+            for (FlowFile ff : output) {
+                session.getProvenanceReporter().receive(ff, "jdbc:" + sql);
+            }
+            session.transfer(output, REL_SUCCESS);
+            if (input != null) {
+                session.remove(input);
+            }
+            arena.adjustCounters(session);
+        } catch (Exception e) {
+            session.remove(output);
+            if (input == null) {
+                getLogger().error("Unable to execute query {} due to {}", new Object[]{sql, e});
+                context.yield();
+            } else {
+                getLogger().error("Unable to execute query {} for {} due to {}; routing to failure", new Object[]{sql, input, e});
+                session.transfer(session.penalize(input), REL_FAILURE);
+            }
+        }
+    }
+
+    /**
+     * 单个查询：在会话的写入回调中边读结果集边写Avro
+     */
+    private FlowFile queryToFlowFile(ProcessSession session, FlowFile input, DBCPService dbcp, String sql, QueryPlan plan) throws SQLException {
+        FlowFile ff = input == null ? session.create() : session.create(input);
+        final long[] count = new long[1];
+        try (Connection con = dbcp.getConnection();
+             Statement st = con.createStatement()) {
+            plan.configure(st);
+            try (ResultSet rs = st.executeQuery(sql)) {
+                final RowReader rows = new RowReader(rs, plan);
+                ff = session.write(ff, out -> {
+                    try (DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(rows.schema)).create(rows.schema, out)) {
+                        count[0] = rows.writeTo(dfw);
+                    } catch (SQLException | DocumentException e) {
+                        throw new ProcessException(e);
+                    }
+                });
+            }
+        } catch (SQLException | ProcessException e) {
+            session.remove(ff);
+            throw e;
+        }
+        return session.putAttribute(ff, "record.count", String.valueOf(count[0]));
+    }
+
+    /**
+     * 按分区列的取值范围并行查询，另有一个查询读取分区列为空的行。各分区的结果按批放入同一个有界队列，
+     * 当前线程按到达顺序把每一批追加到对应分区的FlowFile，各分区的查询同时进行；队列满时查询暂停，
+     * 内存占用不随结果集大小增长
+     */
+    private void queryPartitions(ProcessSession session, FlowFile input, DBCPService dbcp, String sql, String column,
+                                 QueryPlan plan, ExecutorService executor, List<FlowFile> output) throws Exception {
+        final BigDecimal[] bounds = partitionBounds(dbcp, sql, column, plan.partitions, plan);
+        if (bounds == null) {
+            output.add(queryToFlowFile(session, input, dbcp, sql, plan));
+            return;
+        }
+        final String rangeSql = "SELECT * FROM (" + sql + ") q WHERE " + column + " >= ? AND " + column + " < ?";
+        final String lastSql = "SELECT * FROM (" + sql + ") q WHERE " + column + " >= ? AND " + column + " <= ?";
+        final String nullSql = "SELECT * FROM (" + sql + ") q WHERE " + column + " IS NULL";
+        //每个分区最多 QUEUE_BATCHES 批
+        final BlockingQueue<PartitionEvent> events = new ArrayBlockingQueue<>(PartitionStream.QUEUE_BATCHES * bounds.length);
+        final List<PartitionStream> streams = new ArrayList<>();
+        for (int i = 0; i < bounds.length - 1; i++) {
+            streams.add(new PartitionStream(events, i == bounds.length - 2 ? lastSql : rangeSql, bounds[i], bounds[i + 1]));
+        }
+        streams.add(new PartitionStream(events, nullSql, null, null));
+        try {
+            for (PartitionStream stream : streams) {
+                stream.task = executor.submit(() -> stream.run(dbcp, plan, arena));
+            }
+            for (int running = streams.size(); running > 0; ) {
+                final PartitionEvent event = events.take();
+                final PartitionStream stream = event.stream;
+                if (event.item instanceof Schema) {
+                    stream.open(session, input, (Schema) event.item);
+                } else if (event.item instanceof EncodedRecordBuffer) {
+                    stream.append(session, (EncodedRecordBuffer) event.item);
+                } else if (event.item == PartitionStream.END) {
+                    stream.finish(session);
+                    running--;
+                } else {
+                    throw (Exception) event.item;
+                }
+            }
+            for (int i = 0; i < streams.size(); i++) {
+                final PartitionStream stream = streams.get(i);
+                if (i == streams.size() - 1 && stream.count == 0) {
+                    //没有空值时不输出空值分区
+                    session.remove(stream.flowFile);
+                    continue;
+                }
+                final Map<String, String> attributes = new HashMap<>();
+                attributes.put("record.count", String.valueOf(stream.count));
+                attributes.put(PARTITION_INDEX, String.valueOf(i));
+                output.add(session.putAllAttributes(stream.flowFile, attributes));
+            }
+        } catch (Exception e) {
+            for (PartitionStream stream : streams) {
+                if (stream.flowFile != null) {
+                    session.remove(stream.flowFile);
+                }
+            }
+            throw e;
+        } finally {
+            //异常或中断时停止其他分区的查询并释放已缓存的批次
+            for (PartitionStream stream : streams) {
+                stream.close();
+            }
+            PartitionStream.drain(events);
+        }
+    }
+
+    /**
+     * @return ascending bounds, partition i covers [bounds[i], bounds[i + 1]) and the last one [bounds[n - 1], bounds[n]];
+     * null if the column has no value
+     */
+    private static BigDecimal[] partitionBounds(DBCPService dbcp, String sql, String column, int partitions, QueryPlan plan) throws SQLException {
+        try (Connection con = dbcp.getConnection();
+             Statement st = con.createStatement()) {
+            plan.configure(st);
+            try (ResultSet rs = st.executeQuery("SELECT MIN(" + column + "), MAX(" + column + ") FROM (" + sql + ") q")) {
+                if (!rs.next() || rs.getObject(1) == null) {
+                    return null;
+                }
+                //按BigDecimal计算，小数列不会截断，大整数范围不会溢出
+                final BigDecimal min = rs.getBigDecimal(1);
+                final BigDecimal max = rs.getBigDecimal(2);
+                final boolean integral = min.scale() <= 0 && max.scale() <= 0;
+                final BigDecimal range = integral ? max.subtract(min).add(BigDecimal.ONE) : max.subtract(min);
+                final int n = integral ? range.min(BigDecimal.valueOf(partitions)).intValue() : partitions;
+                final List<BigDecimal> bounds = new ArrayList<>();
+                for (int i = 0; i < n; i++) {
+                    final BigDecimal bound;
+                    if (integral) {
+                        //与整数均分相同：前 range % n 个分区多一个值
+                        final BigDecimal[] qr = range.divideAndRemainder(BigDecimal.valueOf(n));
+                        bound = min.add(qr[0].multiply(BigDecimal.valueOf(i))).add(qr[1].min(BigDecimal.valueOf(i)));
+                    } else {
+                        bound = min.add(range.multiply(BigDecimal.valueOf(i)).divide(BigDecimal.valueOf(n), MathContext.DECIMAL64));
+                    }
+                    if (bounds.isEmpty() || bound.compareTo(bounds.get(bounds.size() - 1)) > 0) {
+                        bounds.add(bound);
+                    }
+                }
+                bounds.add(max);
+                return bounds.toArray(new BigDecimal[bounds.size()]);
+            }
+        }
+    }
+
+    /**
+     * 查询共用的设置
+     */
+    private static final class QueryPlan {
+        private final String xmlColumn;
+        private final int fetchSize;
+        private final int queryTimeout;
+        private final int partitions;
+        private final Map<String, String> expressionMap = new LinkedHashMap<>();
+
+        private QueryPlan(ProcessContext context) {
+            xmlColumn = context.getProperty(XML_COLUMN).getValue().trim();
+            fetchSize = context.getProperty(FETCH_SIZE).asInteger();
+            queryTimeout = context.getProperty(QUERY_TIMEOUT).asInteger();
+            partitions = context.getProperty(PARTITION_COUNT).asInteger();
+            for (final Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+                if (entry.getKey().isDynamic()) {
+                    expressionMap.put(entry.getKey().getName(), entry.getValue());
+                }
+            }
+        }
+
+        private void configure(Statement st) throws SQLException {
+            if (fetchSize > 0) {
+                st.setFetchSize(fetchSize);
+            }
+            if (queryTimeout > 0) {
+                st.setQueryTimeout(queryTimeout);
+            }
+        }
+    }
+
+    /**
+     * 放入共用队列的一项分区结果
+     */
+    private static final class PartitionEvent {
+        private final PartitionStream stream;
+        private final Object item;
+
+        private PartitionEvent(PartitionStream stream, Object item) {
+            this.stream = stream;
+            this.item = item;
+        }
+    }
+
+    /**
+     * 一个分区查询：工作线程先放入schema，再按批放入编码后的记录，最后放入结束标记或异常；
+     * 当前线程把这些结果依次追加到本分区的FlowFile
+     */
+    private static final class PartitionStream {
+        private static final Object END = new Object();
+        private static final int QUEUE_BATCHES = 4;
+        private static final long BATCH_BYTES = 1024 * 1024;
+
+        private final BlockingQueue<PartitionEvent> events;
+        private final String sql;
+        private final BigDecimal low;
+        private final BigDecimal high;
+        private volatile boolean closed;
+        private Future<?> task;
+        //以下只由当前线程访问
+        private final AppendTarget target = new AppendTarget();
+        private DataFileWriter<GenericRecord> writer;
+        private FlowFile flowFile;
+        private long count;
+
+        private PartitionStream(BlockingQueue<PartitionEvent> events, String sql, BigDecimal low, BigDecimal high) {
+            this.events = events;
+            this.sql = sql;
+            this.low = low;
+            this.high = high;
+        }
+
+        private void run(DBCPService dbcp, QueryPlan plan, DirectBufferArena arena) {
+            Object last = END;
+            try (Connection con = dbcp.getConnection();
+                 PreparedStatement st = con.prepareStatement(sql)) {
+                plan.configure(st);
+                if (low != null) {
+                    st.setBigDecimal(1, low);
+                    st.setBigDecimal(2, high);
+                }
+                try (ResultSet rs = st.executeQuery()) {
+                    final RowReader rows = new RowReader(rs, plan);
+                    put(rows.schema);
+                    final int batchRows = plan.fetchSize > 0 ? plan.fetchSize : 500;
+                    final GenericRecord rec = new GenericData.Record(rows.schema);
+                    final EncodedRecordBuffer.RecordEncoder encoder = new EncodedRecordBuffer.RecordEncoder(rows.schema);
+                    EncodedRecordBuffer batch = new EncodedRecordBuffer(arena);
+                    try {
+                        while (rows.next(rec)) {
+                            encoder.encode(rec, batch);
+                            if (batch.getRecordCount() >= batchRows || batch.getSize() >= BATCH_BYTES) {
+                                final EncodedRecordBuffer full = batch;
+                                batch = null;
+                                put(full);
+                                batch = new EncodedRecordBuffer(arena);
+                            }
+                        }
+                        final EncodedRecordBuffer rest = batch;
+                        batch = null;
+                        put(rest);
+                    } finally {
+                        if (batch != null) {
+                            batch.release();
+                        }
+                    }
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                last = e;
+            }
+            try {
+                put(last);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+
+        // 放入队列，队列满时等待；读取方已关闭时释放
+        private void put(Object item) throws InterruptedException {
+            try {
+                events.put(new PartitionEvent(this, item));
+            } catch (InterruptedException e) {
+                discard(item);
+                throw e;
+            }
+            if (closed) {
+                drain(events);
+            }
+        }
+
+        /**
+         * create the flowfile of the partition and write the avro header
+         */
+        private void open(ProcessSession session, FlowFile input, Schema schema) {
+            flowFile = input == null ? session.create() : session.create(input);
+            writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema));
+            flowFile = session.write(flowFile, out -> {
+                target.out = out;
+                try {
+                    writer.create(schema, target);
+                    writer.flush();
+                } finally {
+                    target.out = null;
+                }
+            });
+        }
+
+        /**
+         * append one batch as an avro block, the writer keeps nothing buffered between appends
+         */
+        private void append(ProcessSession session, EncodedRecordBuffer batch) {
+            try {
+                flowFile = session.append(flowFile, out -> {
+                    target.out = out;
+                    try {
+                        count += EncodedRecordBuffer.writeTo(batch.cursor(), writer, 0);
+                        writer.flush();
+                    } finally {
+                        target.out = null;
+                    }
+                });
+            } finally {
+                batch.release();
+            }
+        }
+
+        private void finish(ProcessSession session) {
+            flowFile = session.append(flowFile, out -> {
+                target.out = out;
+                try {
+                    writer.close();
+                } finally {
+                    target.out = null;
+                }
+            });
+        }
+
+        private void close() {
+            closed = true;
+            if (task != null) {
+                task.cancel(true);
+            }
+        }
+
+        private static void drain(BlockingQueue<PartitionEvent> events) {
+            for (PartitionEvent event = events.poll(); event != null; event = events.poll()) {
+                discard(event.item);
+            }
+        }
+
+        private static void discard(Object item) {
+            if (item instanceof EncodedRecordBuffer) {
+                ((EncodedRecordBuffer) item).release();
+            }
+        }
+    }
+
+    /**
+     * 分区的avro写入器跨多次追加保持打开，每次追加时指向会话给出的输出流；关闭写入器时不关闭该输出流
+     */
+    private static final class AppendTarget extends OutputStream {
+        private OutputStream out;
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            flush();
+        }
+    }
+
+    /**
+     * 逐行读取结果集，每行只保留当前行的XML
+     */
+    private static final class RowReader {
+        private final ResultSet rs;
+        private final QueryPlan plan;
+        private final Schema schema;
+        private final int xmlIndex;
+        private final int[] types;
+        private final Schema.Type[] avroTypes;
+        private final String[] fieldNames; //其他列对应的avro字段名，下标为列序号
+
+        private RowReader(ResultSet rs, QueryPlan plan) throws SQLException {
+            this.rs = rs;
+            this.plan = plan;
+            final ResultSetMetaData meta = rs.getMetaData();
+            final int columns = meta.getColumnCount();
+            types = new int[columns + 1];
+            avroTypes = new Schema.Type[columns + 1];
+            fieldNames = new String[columns + 1];
+            int xml = -1;
+            final Set<String> used = new HashSet<>(plan.expressionMap.keySet());
+            final SchemaBuilder.FieldAssembler<Schema> builder = SchemaBuilder.record("NiFi_QueryXMLToAvro_Record").namespace("any.data").fields();
+            for (String field : plan.expressionMap.keySet()) {
+                builder.name(field).type().unionOf().nullBuilder().endNull().and().stringType().endUnion().noDefault();
+            }
+            for (int i = 1; i <= columns; i++) {
+                types[i] = meta.getColumnType(i);
+                final String label = meta.getColumnLabel(i);
+                if (xml < 0 && plan.xmlColumn.equalsIgnoreCase(label)) {
+                    xml = i;
+                    continue;
+                }
+                final String name = label.replaceAll("[^A-Za-z0-9_]", "_");
+                if (!used.add(name)) {
+                    continue; //与动态字段同名的列以提取结果为准
+                }
+                fieldNames[i] = name;
+                avroTypes[i] = avroType(types[i], meta.isSigned(i));
+                builder.name(name).type(Schema.createUnion(Arrays.asList(Schema.create(Schema.Type.NULL), Schema.create(avroTypes[i])))).noDefault();
+            }
+            if (xml < 0) {
+                throw new SQLException("column " + plan.xmlColumn + " not found in the result set");
+            }
+            xmlIndex = xml;
+            schema = builder.endRecord();
+        }
+
+        private long writeTo(DataFileWriter<GenericRecord> dfw) throws SQLException, IOException, DocumentException {
+            final GenericRecord rec = new GenericData.Record(schema);
+            long count = 0;
+            while (next(rec)) {
+                dfw.append(rec);
+                count++;
+            }
+            return count;
+        }
+
+        /**
+         * 整数、浮点和布尔列保持原类型，二进制列写为bytes；DECIMAL/NUMERIC、无符号BIGINT和日期时间等其他列
+         * 按驱动的字符串形式写出，不丢失精度也不依赖时区
+         */
+        private static Schema.Type avroType(int sqlType, boolean signed) {
+            switch (sqlType) {
+                case Types.BOOLEAN:
+                    return Schema.Type.BOOLEAN;
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                    return Schema.Type.INT;
+                case Types.INTEGER:
+                    return signed ? Schema.Type.INT : Schema.Type.LONG;
+                case Types.BIGINT:
+                    return signed ? Schema.Type.LONG : Schema.Type.STRING;
+                case Types.REAL:
+                    return Schema.Type.FLOAT;
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    return Schema.Type.DOUBLE;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    return Schema.Type.BYTES;
+                default:
+                    return Schema.Type.STRING;
+            }
+        }
+
+        private Object value(int i) throws SQLException {
+            final Object value;
+            switch (avroTypes[i]) {
+                case BOOLEAN:
+                    value = rs.getBoolean(i);
+                    break;
+                case INT:
+                    value = rs.getInt(i);
+                    break;
+                case LONG:
+                    value = rs.getLong(i);
+                    break;
+                case FLOAT:
+                    value = rs.getFloat(i);
+                    break;
+                case DOUBLE:
+                    value = rs.getDouble(i);
+                    break;
+                case BYTES: {
+                    final byte[] bytes = rs.getBytes(i);
+                    return bytes == null ? null : ByteBuffer.wrap(bytes);
+                }
+                default: {
+                    final Object object = rs.getObject(i);
+                    return object == null ? null : object.toString();
+                }
+            }
+            return rs.wasNull() ? null : value;
+        }
+
+        private boolean next(GenericRecord rec) throws SQLException, IOException, DocumentException {
+            if (!rs.next()) {
+                return false;
+            }
+            for (int i = 1; i < fieldNames.length; i++) {
+                if (fieldNames[i] != null) {
+                    rec.put(fieldNames[i], value(i));
+                }
+            }
+            final String xml = readXml();
+            if (xml == null) {
+                for (String field : plan.expressionMap.keySet()) {
+                    rec.put(field, null);
+                }
+                return true;
+            }
+            for (Map.Entry<String, String> entry : ProcessXMLInAvro.processExtend(xml, plan.expressionMap).entrySet()) {
+                rec.put(entry.getKey(), entry.getValue());
+            }
+            return true;
+        }
+
+        private String readXml() throws SQLException, IOException {
+            switch (types[xmlIndex]) {
+                case Types.CLOB:
+                case Types.NCLOB: {
+                    final Clob clob = rs.getClob(xmlIndex);
+                    if (clob == null) {
+                        return null;
+                    }
+                    try (Reader reader = clob.getCharacterStream()) {
+                        final StringBuilder sb = new StringBuilder((int) Math.min(clob.length(), Integer.MAX_VALUE));
+                        final char[] buf = new char[8192];
+                        for (int n = reader.read(buf); n >= 0; n = reader.read(buf)) {
+                            sb.append(buf, 0, n);
+                        }
+                        return sb.toString();
+                    } finally {
+                        clob.free();
+                    }
+                }
+                case Types.SQLXML: {
+                    final SQLXML sqlxml = rs.getSQLXML(xmlIndex);
+                    if (sqlxml == null) {
+                        return null;
+                    }
+                    try {
+                        return sqlxml.getString();
+                    } finally {
+                        sqlxml.free();
+                    }
+                }
+                default:
+                    return rs.getString(xmlIndex);
+            }
+        }
+    }
+}
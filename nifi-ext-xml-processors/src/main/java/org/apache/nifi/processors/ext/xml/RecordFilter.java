@@ -0,0 +1,173 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.components.Validator;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.InvalidXPathException;
+import org.dom4j.Node;
+import org.dom4j.XPath;
+
+import java.util.regex.Pattern;
+
+/**
+ * A boolean record predicate evaluated before the extraction plan, so rejected records never pay for the full parse.
+ * <ul>
+ *     <li>{@code column op literal} compares an avro column directly, no XML is touched</li>
+ *     <li>{@code /simple/path op literal} streams the XML with {@link XmlKeyScanner} up to the node</li>
+ *     <li>anything else is evaluated as a dom4j XPath boolean expression on the parsed XML</li>
+ * </ul>
+ * op is one of = != &gt; &gt;= &lt; &lt;= and literal a number or a quoted string; values are compared as numbers when
+ * both sides are numeric and as strings otherwise. A missing value never matches. Compound predicates (and, or,
+ * parentheses) and unquoted names, which XPath reads as element paths, always go to dom4j. Not thread safe, compile
+ * one per batch.
+ */
+public class RecordFilter {
+    private static final Pattern COLUMN = Pattern.compile("[A-Za-z_][\\w.\\-]*");
+    private static final String[] OPERATORS = {">=", "<=", "!=", "=", ">", "<"};
+    private static final Pattern LITERAL = Pattern.compile("-?(\\d+(\\.\\d*)?|\\.\\d+)|'[^']*'|\"[^\"]*\"");
+
+    private final String column;
+    private final String xpath;
+    private final String[] streamingPath;
+    private final String operator;
+    private final String literal;
+    private final XPath booleanXPath;
+
+    private RecordFilter(String column, String xpath, String operator, String literal, XPath booleanXPath) {
+        this.column = column;
+        this.xpath = xpath;
+        this.streamingPath = xpath == null ? null : XmlKeyScanner.compile(xpath);
+        this.operator = operator;
+        this.literal = literal;
+        this.booleanXPath = booleanXPath;
+    }
+
+    /**
+     * @throws InvalidXPathException if the predicate has to be evaluated by dom4j and is not a valid XPath
+     */
+    public static RecordFilter compile(String predicate) {
+        final String p = predicate.trim();
+        final int[] op = findOperator(p);
+        if (op != null) {
+            final String lhs = p.substring(0, op[0]).trim();
+            final String operator = p.substring(op[0], op[0] + op[1]);
+            final String rhs = p.substring(op[0] + op[1]).trim();
+            //右边不是单个字面量时（例如 a >= 1 and b = 2）交给XPath
+            if (!LITERAL.matcher(rhs).matches()) {
+                return new RecordFilter(null, null, null, null, DocumentHelper.createXPath(p));
+            }
+            final String literal = unquote(rhs);
+            if (COLUMN.matcher(lhs).matches()) {
+                return new RecordFilter(lhs, null, operator, literal, null);
+            }
+            if (lhs.startsWith("/") && XmlKeyScanner.compile(lhs) != null) {
+                return new RecordFilter(null, lhs, operator, literal, null);
+            }
+        }
+        return new RecordFilter(null, null, null, null, DocumentHelper.createXPath(p));
+    }
+
+    public void validate(Schema schema) {
+        if (column != null && schema.getField(column) == null) {
+            throw new ProcessException("filter column '" + column + "' is not a field of the input avro");
+        }
+    }
+
+    /**
+     * @param xml the XML field of the record, Utf8 or any CharSequence
+     */
+    public boolean test(GenericRecord record, Object xml) {
+        if (column != null) {
+            final Object value = record.get(column);
+            return value != null && compare(value.toString());
+        }
+        if (xml == null) {
+            return false;
+        }
+        if (xpath != null) {
+            String value = XmlKeyScanner.extract(xml, streamingPath);
+            if (value == null) {
+                //节点不存在或无法流式读取时，用完整解析确认
+                final Node node = SeparateAvroInXML.parseRoot(xml.toString()).selectSingleNode(xpath);
+                value = node == null ? null : node.getText();
+            }
+            return value != null && compare(value);
+        }
+        return booleanXPath.booleanValueOf(SeparateAvroInXML.parseRoot(xml.toString()));
+    }
+
+    private boolean compare(String value) {
+        int c;
+        try {
+            c = Double.compare(Double.parseDouble(value.trim()), Double.parseDouble(literal));
+        } catch (NumberFormatException e) {
+            c = value.compareTo(literal);
+        }
+        switch (operator) {
+            case "=":
+                return c == 0;
+            case "!=":
+                return c != 0;
+            case ">":
+                return c > 0;
+            case ">=":
+                return c >= 0;
+            case "<":
+                return c < 0;
+            default:
+                return c <= 0;
+        }
+    }
+
+    // first comparison operator outside of [] () and quotes, {index, length}
+    private static int[] findOperator(String p) {
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < p.length(); i++) {
+            final char ch = p.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (ch == '\'' || ch == '"') {
+                quote = ch;
+            } else if (ch == '[' || ch == '(') {
+                depth++;
+            } else if (ch == ']' || ch == ')') {
+                depth--;
+            } else if (depth == 0) {
+                for (String op : OPERATORS) {
+                    if (p.startsWith(op, i)) {
+                        return new int[]{i, op.length()};
+                    }
+                }
+            }
+        }
+        return null;
+    }
+
+    private static String unquote(String s) {
+        if (s.length() >= 2 && (s.charAt(0) == '\'' || s.charAt(0) == '"') && s.charAt(s.length() - 1) == s.charAt(0)) {
+            return s.substring(1, s.length() - 1);
+        }
+        return s;
+    }
+
+    public static final Validator VALIDATOR = new Validator() {
+        @Override
+        public ValidationResult validate(String subject, String input, ValidationContext context) {
+            String explanation = null;
+            try {
+                compile(input);
+            } catch (InvalidXPathException e) {
+                explanation = e.getMessage();
+            }
+            return new ValidationResult.Builder().subject(subject).input(input)
+                    .valid(explanation == null).explanation(explanation).build();
+        }
+    };
+}
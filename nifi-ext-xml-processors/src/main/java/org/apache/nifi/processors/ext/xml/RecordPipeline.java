@@ -0,0 +1,198 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the XML stage of a processor on a worker pool while the calling thread keeps decoding input records and
+ * encoding results. Records are handed to the workers in chunks through a bounded window, so at most
+ * {@link #QUEUE_SIZE} records are in flight, and results reach the sink in input order.
+ * Input containers opened with {@link #openReader(InputStream)} are decompressed and decoded block by block on the same pool.
+ * With one worker thread there is no pool and every record is processed inline on the calling thread.
+ */
+public class RecordPipeline {
+    static final int CHUNK_SIZE = 32;
+
+    public static final PropertyDescriptor WORKER_THREADS = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1")
+            .description("解析XML的工作线程数，调度线程负责avro解码和编码，与XML解析并行进行。" +
+                    "1 表示不使用工作线程，全部在调度线程上依次完成。同一处理器的所有并发任务共用这些线程")
+            .name("xml worker threads")
+            .build();
+
+    public static final PropertyDescriptor QUEUE_SIZE = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("1024")
+            .description("每个任务已解码但尚未写出的最大记录数，达到后解码等待XML解析完成")
+            .name("pipeline queue size")
+            .build();
+
+    /**
+     * the XML work done for one record, called concurrently from the worker threads
+     */
+    public interface Stage<I, O> {
+        O apply(I item) throws Exception;
+    }
+
+    /**
+     * receives every record with its stage result in input order, always on the calling thread
+     */
+    public interface Sink<I, O> {
+        void accept(I item, O result) throws IOException;
+    }
+
+    private final ExecutorService executor;
+    private final int threads;
+    private final int window;
+
+    private RecordPipeline(ExecutorService executor, int threads, int queueSize) {
+        this.executor = executor;
+        this.threads = threads;
+        this.window = Math.max(1, queueSize / CHUNK_SIZE);
+    }
+
+    public static RecordPipeline create(ProcessContext context, String name) {
+        final int threads = context.getProperty(WORKER_THREADS).asInteger();
+        final int queueSize = context.getProperty(QUEUE_SIZE).asInteger();
+        if (threads <= 1) {
+            return new RecordPipeline(null, 1, queueSize);
+        }
+        final AtomicInteger count = new AtomicInteger();
+        final ThreadFactory threadFactory = r -> {
+            final Thread t = new Thread(r, name + "-xml-worker-" + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        };
+        return new RecordPipeline(Executors.newFixedThreadPool(threads, threadFactory), threads, queueSize);
+    }
+
+    /**
+     * avro container reader that decodes up to two blocks per worker thread ahead of the caller
+     */
+    public AvroBlockReader openReader(InputStream in) throws IOException {
+        return new AvroBlockReader(in, executor, threads * 2);
+    }
+
+    public void shutdown() {
+        if (executor == null) {
+            return;
+        }
+        executor.shutdownNow();
+        try {
+            executor.awaitTermination(10, TimeUnit.SECONDS);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * pull every item from source, apply stage to it and pass it to sink in source order.
+     * The source must not reuse its items, e.g. a DataFileStream is iterated with next() instead of next(reuse).
+     */
+    public <I, O> void run(Iterator<I> source, Stage<I, O> stage, Sink<I, O> sink) throws IOException {
+        if (executor == null) {
+            while (source.hasNext()) {
+                final I item = source.next();
+                sink.accept(item, apply(stage, item));
+            }
+            return;
+        }
+        final ArrayDeque<Chunk<I, O>> inFlight = new ArrayDeque<>(window);
+        try {
+            while (source.hasNext()) {
+                final Chunk<I, O> chunk = new Chunk<>(stage);
+                while (chunk.items.size() < CHUNK_SIZE && source.hasNext()) {
+                    chunk.items.add(source.next());
+                }
+                chunk.future = executor.submit(chunk);
+                inFlight.addLast(chunk);
+                //窗口满了或者最早的块已经完成时先写出，保持输入顺序
+                while (inFlight.size() >= window || (!inFlight.isEmpty() && inFlight.peekFirst().future.isDone())) {
+                    drain(inFlight.pollFirst(), sink);
+                }
+            }
+            while (!inFlight.isEmpty()) {
+                drain(inFlight.pollFirst(), sink);
+            }
+        } finally {
+            for (Chunk<I, O> chunk : inFlight) {
+                chunk.future.cancel(true);
+            }
+        }
+    }
+
+    private static <I, O> void drain(Chunk<I, O> chunk, Sink<I, O> sink) throws IOException {
+        final List<O> results;
+        try {
+            results = chunk.future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new ProcessException("interrupted while waiting for xml workers", e);
+        } catch (ExecutionException e) {
+            throw rethrow(e.getCause());
+        }
+        for (int i = 0; i < results.size(); i++) {
+            sink.accept(chunk.items.get(i), results.get(i));
+        }
+    }
+
+    private static <I, O> O apply(Stage<I, O> stage, I item) throws IOException {
+        try {
+            return stage.apply(item);
+        } catch (Exception e) {
+            throw rethrow(e);
+        }
+    }
+
+    private static IOException rethrow(Throwable t) {
+        if (t instanceof IOException) {
+            return (IOException) t;
+        }
+        if (t instanceof RuntimeException) {
+            throw (RuntimeException) t;
+        }
+        if (t instanceof Error) {
+            throw (Error) t;
+        }
+        throw new ProcessException(t);
+    }
+
+    private static final class Chunk<I, O> implements Callable<List<O>> {
+        private final Stage<I, O> stage;
+        private final List<I> items = new ArrayList<>(CHUNK_SIZE);
+        private Future<List<O>> future;
+
+        private Chunk(Stage<I, O> stage) {
+            this.stage = stage;
+        }
+
+        @Override
+        public List<O> call() throws Exception {
+            final List<O> results = new ArrayList<>(items.size());
+            for (I item : items) {
+                results.add(stage.apply(item));
+            }
+            return results;
+        }
+    }
+}
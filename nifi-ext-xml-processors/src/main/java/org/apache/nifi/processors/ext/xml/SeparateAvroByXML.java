@@ -4,18 +4,21 @@ import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
 import org.apache.avro.file.DataFileReader;
-import org.apache.avro.file.DataFileStream;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericData;
 import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.DatumWriter;
+import org.apache.avro.io.BinaryDecoder;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.avro.util.Utf8;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.nifi.annotation.behavior.DynamicProperty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
 import org.apache.nifi.processor.AbstractProcessor;
@@ -28,12 +31,17 @@ import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
+import org.dom4j.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
 // {id+xml -> [id + basic xml + extend xml + type](每个attr一个ff)}
 @Tags({"Avro","XML","Split","sha0w"})
 @CapabilityDescription("从其他地方得到一个AVRO流，通过这个处理器，你可以指定这个Avro中的一个XML字段，该处理器会解析这个XML" +
@@ -74,6 +82,32 @@ public class SeparateAvroByXML extends AbstractProcessor{
             .description("这个字段代表该XML中的通用的XML，要求使用XPATH语法")
             .name("xml common type")
             .build();
+
+    public static final String SUBTREE_XML = "xml string";
+    public static final String SUBTREE_NESTED = "nested record";
+    public static final PropertyDescriptor SUBTREE_FORMAT = new PropertyDescriptor.Builder()
+            .required(true)
+            .allowableValues(SUBTREE_XML, SUBTREE_NESTED)
+            .defaultValue(SUBTREE_XML)
+            .description("通用和特定XML片段的输出方式：xml string 序列化为XML字符串；nested record 直接映射为嵌套的avro记录，" +
+                    "有子节点或属性的节点为记录，叶子节点为字符串，同一父节点下重复出现的节点为数组，属性字段以 _ 开头，节点文本为 _text。" +
+                    "每组片段路径的schema由遇到的记录推断并缓存，之后的输入出现新的节点、属性或重复节点时合并进schema并重新写出该输出，" +
+                    "因此同一类型后面的输出的schema可能包含更多字段；路径选中的不是节点（例如属性或文本）时输入转到failure。处理器停止时清空缓存")
+            .name("subtree output format")
+            .build();
+
+    public static final String FRAGMENT_DOM = "dom4j";
+    public static final String FRAGMENT_SLICE = "slice";
+    public static final PropertyDescriptor FRAGMENT_EXTRACTION = new PropertyDescriptor.Builder()
+            .required(true)
+            .allowableValues(FRAGMENT_DOM, FRAGMENT_SLICE)
+            .defaultValue(FRAGMENT_DOM)
+            .description("xml string 输出时XML片段的提取方式：dom4j 解析整个XML后用asXML()重新序列化节点；" +
+                    "slice 直接在原始字节中定位节点，原样截取该段XML写入输出，不构建DOM，输出与dom4j相同。" +
+                    "只支持形如 /product/pub_extend[@pub_type_id=\"1\"] 的路径；其他写法、找不到节点、文档声明了命名空间或DOCTYPE、" +
+                    "片段的引号、空白或实体写法与asXML()不同时自动退回dom4j")
+            .name("fragment extraction")
+            .build();
     // Relationships
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
@@ -93,6 +127,11 @@ public class SeparateAvroByXML extends AbstractProcessor{
         _props.add(XML_COMMON_FIELD);
         _props.add(XML_UNIQUE_FIELD);
         _props.add(XML_TYPE_FIELD_NAME);
+        _props.add(SUBTREE_FORMAT);
+        _props.add(FRAGMENT_EXTRACTION);
+        _props.add(RecordPipeline.WORKER_THREADS);
+        _props.add(RecordPipeline.QUEUE_SIZE);
+        _props.add(DirectBufferArena.MAX_DIRECT_MEMORY);
         propertyDescriptors = Collections.unmodifiableList(_props);
         Set<Relationship> _relationships = new HashSet<>();
         _relationships.add(REL_FAILURE);
@@ -100,6 +139,43 @@ public class SeparateAvroByXML extends AbstractProcessor{
         relationships = Collections.unmodifiableSet(_relationships);
     }
 
+    //nested record 模式下每组片段路径的 {通用片段, 特定片段} 采样结果，键为两个路径
+    private final ConcurrentMap<String, XmlShredder[]> shredders = new ConcurrentHashMap<>();
+    private volatile RecordPipeline pipeline;
+    private volatile DirectBufferArena arena;
+
+    @OnScheduled
+    public void setupPipeline(ProcessContext context) {
+        pipeline = RecordPipeline.create(context, getIdentifier());
+    }
+
+    @OnScheduled
+    public void setupArena(ProcessContext context) {
+        arena = DirectBufferArena.create(context, getLogger());
+    }
+
+    @OnStopped
+    public void clearSubtreeSchemas() {
+        shredders.clear();
+    }
+
+    @OnStopped
+    public void closeArena() {
+        final DirectBufferArena a = arena;
+        if (a != null) {
+            a.close();
+        }
+    }
+
+    @OnStopped
+    public void shutdownPipeline() {
+        final RecordPipeline p = pipeline;
+        if (p != null) {
+            p.shutdown();
+            pipeline = null;
+        }
+    }
+
     @Override
     protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
         return propertyDescriptors;
@@ -119,6 +195,8 @@ public class SeparateAvroByXML extends AbstractProcessor{
        final String xmlUniqueField = context.getProperty(XML_UNIQUE_FIELD).getValue();
        final String xmlCommonField = context.getProperty(XML_COMMON_FIELD).getValue();
        final String xmlTypeFieldName = context.getProperty(XML_TYPE_FIELD_NAME).getValue();
+       final boolean nested = SUBTREE_NESTED.equals(context.getProperty(SUBTREE_FORMAT).getValue());
+       final boolean slice = FRAGMENT_SLICE.equals(context.getProperty(FRAGMENT_EXTRACTION).getValue());
        //build new avro schema
        Set<String> newSchema = new HashSet<>();
        newSchema.add("xmlCommonField");
@@ -127,66 +205,219 @@ public class SeparateAvroByXML extends AbstractProcessor{
        final String xmlField = context.getProperty(XML_DECODE_FIELD).getValue();
        final String xmlTypeField = context.getProperty(XML_TYPE_FIELD).getValue();
        final List<FlowFile> ffList = new ArrayList<>();
-       final Map<String, ConcurrentLinkedQueue<GenericRecord>> grMap = new ConcurrentHashMap<>();
+       //按类型分组的已编码记录，存放在堆外内存中
+       final Map<String, EncodedRecordBuffer> grMap = new LinkedHashMap<>();
+       final AtomicReference<Schema> inSchema = new AtomicReference<>();
        try {
            session.read(flowFile, in -> {
-               final DataFileStream<GenericRecord> reader = new DataFileStream<>(in, new GenericDatumReader<GenericRecord>());
-               GenericRecord currRecord;
-
-               Schema schema = reader.getSchema();
+               try (AvroBlockReader reader = pipeline.openReader(in)) {
 
-               if (schema.getField(xmlField) == null) {
-                   throw new AvroRuntimeException("Not a record: "+this);
-               }
+                   Schema schema = reader.getSchema();
 
-               while (reader.hasNext()) {
-                   currRecord = reader.next();
-                   String xml = currRecord.get(xmlField).toString();
-                   String key = getXmlValue(xml,xmlTypeField);
-                   if (grMap.get(key) != null) {
-                       grMap.get(key).add(currRecord);
-                   } else {
-                      grMap.put(key,new ConcurrentLinkedQueue<>());
-                      grMap.get(key).add(currRecord);
+                   if (schema.getField(xmlField) == null) {
+                       throw new AvroRuntimeException("Not a record: "+this);
                    }
-               }
-               final DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(schema);
-               final DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(datumWriter);
-               for (String key : grMap.keySet()) {
-                   ConcurrentLinkedQueue<GenericRecord> gr = grMap.get(key);
-                   Schema newBuildSchema = mkNewSchema(schema,newSchema,null,xmlField);
-                   FlowFile ff = session.create(flowFile);
-                   final GenericRecord rec = new GenericData.Record(newBuildSchema);
-                   ff = session.write(ff, out -> {
-                       final DataFileWriter<GenericRecord> dfw = dataFileWriter.create(newBuildSchema, out);
-                       for (GenericRecord genericRecord : gr) {
-                           String xml = genericRecord.get(xmlField).toString();
-                           rec.put("xmlCommonField", getXml(xml, xmlCommonField));
-                           rec.put("xmlUniqueField", getXml(xml, xmlUniqueField + "[@" + xmlTypeFieldName+ "=\"" + key + "\"]"));
-                           rec.put("type", key);
-                           for (Schema.Field field : schema.getFields()) {
-                               if (!Objects.equals(field.name(), xmlField)) {
-                                   rec.put(field.name(),genericRecord.get(field.name()));
-                               }
-                           }
-                           dfw.append(rec);
+                   final EncodedRecordBuffer.RecordEncoder encoder = new EncodedRecordBuffer.RecordEncoder(schema);
+
+                   //类型字段的XML解析在工作线程上进行
+                   pipeline.run(reader, currRecord -> getXmlValue(currRecord.get(xmlField).toString(), xmlTypeField), (currRecord, key) -> {
+                       EncodedRecordBuffer buffer = grMap.get(key);
+                       if (buffer == null) {
+                           buffer = new EncodedRecordBuffer(arena);
+                           grMap.put(key, buffer);
                        }
-                       dfw.close();
+                       encoder.encode(currRecord, buffer);
                    });
-                   ff = session.putAttribute(ff, "type", key); // 一定要赋值回一个flowFile变量：
-                   ffList.add(ff);
+                   inSchema.set(schema);
                }
            });
+           final Schema schema = inSchema.get();
+           final GenericDatumReader<GenericRecord> datumReader = new GenericDatumReader<>(schema);
+           for (String key : grMap.keySet()) {
+               final EncodedRecordBuffer gr = grMap.get(key);
+               final String uniquePath = xmlUniqueField + "[@" + xmlTypeFieldName + "=\"" + key + "\"]";
+               final XmlShredder[] subtrees = nested ? shredders(key, gr, datumReader, xmlField, xmlCommonField, uniquePath) : null;
+               FlowFile ff = session.create(flowFile);
+               if (nested) {
+                   final AtomicBoolean learned = new AtomicBoolean();
+                   try {
+                       do {
+                           //写出时遇到schema没有的结构会合并进去，此时用新的schema重写一次
+                           final Schema commonSchema = subtrees[0].schema();
+                           final Schema uniqueSchema = subtrees[1].schema();
+                           final Schema newBuildSchema = mkNestedSchema(schema, xmlField, commonSchema, uniqueSchema);
+                           final GenericRecord rec = new GenericData.Record(newBuildSchema);
+                           ff = session.write(ff, out -> {
+                               try (DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(newBuildSchema)).create(newBuildSchema, out)) {
+                                   final RecordDecoder decoder = new RecordDecoder(gr, datumReader);
+                                   while (decoder.hasNext()) {
+                                       final GenericRecord genericRecord = decoder.next();
+                                       //每条记录只解析一次
+                                       final Element root = getRoot(genericRecord.get(xmlField).toString());
+                                       final Element common = selectElement(root, xmlCommonField);
+                                       final Element unique = selectElement(root, uniquePath);
+                                       if (subtrees[0].learn(common) | subtrees[1].learn(unique)) {
+                                           learned.set(true);
+                                       }
+                                       rec.put("xmlCommonField", XmlShredder.convert(common, commonSchema));
+                                       rec.put("xmlUniqueField", XmlShredder.convert(unique, uniqueSchema));
+                                       rec.put("type", key);
+                                       for (Schema.Field field : schema.getFields()) {
+                                           if (!Objects.equals(field.name(), xmlField)) {
+                                               rec.put(field.name(), genericRecord.get(field.name()));
+                                           }
+                                       }
+                                       dfw.append(rec);
+                                   }
+                               }
+                           });
+                       } while (learned.getAndSet(false));
+                   } catch (ProcessException e) {
+                       session.remove(ff); //还没有加入ffList
+                       throw e;
+                   }
+                   ff = session.putAttribute(ff, "type", key);
+                   ffList.add(ff);
+                   continue;
+               }
+               Schema newBuildSchema = mkNewSchema(schema,newSchema,null,xmlField);
+               final GenericRecord rec = new GenericData.Record(newBuildSchema);
+               final XmlFragmentSlicer commonSlicer = slice ? XmlFragmentSlicer.compile(xmlCommonField) : null;
+               final XmlFragmentSlicer uniqueSlicer = slice ? XmlFragmentSlicer.compile(uniquePath) : null;
+               final Utf8 commonSlice = new Utf8();
+               final Utf8 uniqueSlice = new Utf8();
+               ff = session.write(ff, out -> {
+                   final DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(newBuildSchema)).create(newBuildSchema, out);
+                   final RecordDecoder decoder = new RecordDecoder(gr, datumReader);
+                   while (decoder.hasNext()) {
+                       final GenericRecord genericRecord = decoder.next();
+                       final Object xml = genericRecord.get(xmlField);
+                       //截取的片段放在复用的Utf8中，append时立即编码
+                       rec.put("xmlCommonField", commonSlicer != null && commonSlicer.slice(xml, commonSlice)
+                               ? commonSlice : getXml(xml.toString(), xmlCommonField));
+                       rec.put("xmlUniqueField", uniqueSlicer != null && uniqueSlicer.slice(xml, uniqueSlice)
+                               ? uniqueSlice : getXml(xml.toString(), uniquePath));
+                       rec.put("type", key);
+                       for (Schema.Field field : schema.getFields()) {
+                           if (!Objects.equals(field.name(), xmlField)) {
+                               rec.put(field.name(),genericRecord.get(field.name()));
+                           }
+                       }
+                       dfw.append(rec);
+                   }
+                   dfw.close();
+               });
+               ff = session.putAttribute(ff, "type", key); // 一定要赋值回一个flowFile变量：
+               ffList.add(ff);
+           }
            session.transfer(ffList,REL_SUCCESS);
            session.remove(flowFile);
        } catch (Exception e) {
            session.remove(ffList);
            session.transfer(flowFile, REL_FAILURE);
            e.printStackTrace();
+       } finally {
+           for (EncodedRecordBuffer buffer : grMap.values()) {
+               buffer.release();
+           }
+           arena.adjustCounters(session);
        }
     }
 
 
+    /**
+     * the shared shredders of the two paths, sampled from all records of this input when they have no samples yet
+     */
+    private XmlShredder[] shredders(String key, EncodedRecordBuffer records, GenericDatumReader<GenericRecord> datumReader,
+                                    String xmlField, String commonPath, String uniquePath) throws IOException {
+        XmlShredder[] pair = shredders.get(commonPath + "\n" + uniquePath);
+        if (pair == null) {
+            pair = new XmlShredder[]{new XmlShredder("any.data.common"), new XmlShredder("any.data.unique")};
+            final XmlShredder[] existing = shredders.putIfAbsent(commonPath + "\n" + uniquePath, pair);
+            if (existing != null) {
+                pair = existing;
+            }
+        }
+        if (!pair[0].hasSamples() || !pair[1].hasSamples()) {
+            final RecordDecoder decoder = new RecordDecoder(records, datumReader);
+            while (decoder.hasNext()) {
+                final Element root = getRoot(decoder.next().get(xmlField).toString());
+                pair[0].sample(selectElement(root, commonPath));
+                pair[1].sample(selectElement(root, uniquePath));
+            }
+            if (!pair[0].hasSamples() || !pair[1].hasSamples()) {
+                throw new ProcessException("no " + (pair[0].hasSamples() ? uniquePath : commonPath) + " node found for type " + key);
+            }
+        }
+        return pair;
+    }
+
+    /**
+     * @return the element the path selects, null if it selects nothing
+     * @throws ProcessException if the path selects an attribute, text or anything else that is not an element
+     */
+    private static Element selectElement(Element root, String path) {
+        final Node node = root.selectSingleNode(path);
+        if (node == null || node instanceof Element) {
+            return (Element) node;
+        }
+        throw new ProcessException(path + " selects a " + node.getNodeTypeName() + " node, nested record output needs an element");
+    }
+
+    public static Schema mkNestedSchema(Schema old, String notuse, Schema commonSchema, Schema uniqueSchema) {
+        final List<Schema.Field> fields = new ArrayList<>();
+        final Schema string = Schema.createUnion(Schema.create(Schema.Type.NULL), Schema.create(Schema.Type.STRING));
+        for (Schema.Field field : old.getFields()) {
+            if (!Objects.equals(field.name(), notuse) && !Objects.equals(field.name(), "type")) {
+                fields.add(new Schema.Field(field.name(), string, null, (Object) null));
+            }
+        }
+        fields.add(new Schema.Field("type", string, null, (Object) null));
+        fields.add(new Schema.Field("xmlCommonField", commonSchema, null, (Object) null));
+        fields.add(new Schema.Field("xmlUniqueField", uniqueSchema, null, (Object) null));
+        return Schema.createRecord("NiFi_SeparateAvroByXML_Record", null, "any.data", false, fields);
+    }
+
+    // 逐条解码缓存中的已编码记录，复用解码器和记录对象
+    private static final class RecordDecoder {
+        private final EncodedRecordBuffer.Cursor cursor;
+        private final GenericDatumReader<GenericRecord> datumReader;
+        private BinaryDecoder decoder;
+        private GenericRecord record;
+
+        private RecordDecoder(EncodedRecordBuffer records, GenericDatumReader<GenericRecord> datumReader) {
+            this.cursor = records.cursor();
+            this.datumReader = datumReader;
+        }
+
+        private boolean hasNext() {
+            return cursor.hasNext();
+        }
+
+        private GenericRecord next() throws IOException {
+            final ByteBuffer encoded = cursor.next();
+            decoder = DecoderFactory.get().binaryDecoder(encoded.array(), encoded.arrayOffset() + encoded.position(), encoded.remaining(), decoder);
+            record = datumReader.read(record, decoder);
+            return record;
+        }
+    }
+
+    private static Element getRoot(String xml) {
+        Document doc = null;
+        try {
+            doc = DocumentHelper.parseText(xml);
+        } catch (DocumentException e) {
+            try {
+                String af = CheckUnicodeString(xml);
+                doc = DocumentHelper.parseText(af.replaceAll("&#.", " ").replaceAll(UTF8_BOM," "));
+            } catch (DocumentException e1) {
+                logger.error(e1.getMessage());
+            }
+        }
+        assert doc != null;
+        return doc.getRootElement();
+    }
+
     //using xpath test pass
     private static String getXmlValue(String xml, String path) {
         Document doc = null;
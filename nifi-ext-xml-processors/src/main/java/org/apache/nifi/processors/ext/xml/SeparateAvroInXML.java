@@ -3,24 +3,30 @@ package org.apache.nifi.processors.ext.xml;
 import org.apache.avro.AvroRuntimeException;
 import org.apache.avro.Schema;
 import org.apache.avro.SchemaBuilder;
+import org.apache.avro.SchemaNormalization;
 import org.apache.avro.file.DataFileReader;
-import org.apache.avro.file.DataFileStream;
 import org.apache.avro.file.DataFileWriter;
 import org.apache.avro.generic.GenericData;
-import org.apache.avro.generic.GenericDatumReader;
 import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
-import org.apache.avro.io.DatumWriter;
 import org.apache.commons.lang3.StringUtils;
 import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.SupportsBatching;
+import org.apache.nifi.annotation.behavior.TriggerWhenEmpty;
 import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.flowfile.FlowFile;
-import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
+import org.apache.nifi.processor.AbstractSessionFactoryProcessor;
+import org.apache.nifi.processor.DataUnit;
 import org.apache.nifi.processor.ProcessContext;
 import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.ProcessSessionFactory;
 import org.apache.nifi.processor.Relationship;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
@@ -28,18 +34,33 @@ import org.dom4j.Document;
 import org.dom4j.DocumentException;
 import org.dom4j.DocumentHelper;
 import org.dom4j.Element;
+import org.dom4j.Node;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import java.io.IOException;
 import java.util.*;
-import java.util.concurrent.ConcurrentHashMap;
-import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.apache.nifi.processors.ext.xml.ExtractionResultCache.CACHE_MAX_ENTRIES;
+import static org.apache.nifi.processors.ext.xml.ExtractionResultCache.CACHE_MAX_SIZE;
 // {id+xml -> [id + basic xml + extend xml + type](每个attr一个ff)}
+@SupportsBatching
+@TriggerWhenEmpty
 @Tags({"Avro","XML","Split","sha0w"})
 @CapabilityDescription("从其他地方得到一个AVRO流，通过这个处理器，你可以指定这个Avro中的一个XML字段，该处理器会解析这个XML" +
         "字段，并在该XML中寻找一个你输入的代表路径的XML字段名称，并通过这个字段名称将输入的Avro文件分成不同的几份 更新后版本")
-@WritesAttribute(attribute = "type", description = "This processor adds user-defined attributes if the <Destination> property is set to flowfile-attribute.")
-public class SeparateAvroInXML extends AbstractProcessor{
+@WritesAttributes({
+        @WritesAttribute(attribute = "type", description = "This processor adds user-defined attributes if the <Destination> property is set to flowfile-attribute."),
+        @WritesAttribute(attribute = "partition", description = "composite key 分区模式下为分区键的组合取值，hash bucket 分区模式下为所属的桶编号，可用于按属性负载均衡的连接"),
+        @WritesAttribute(attribute = "record.count", description = "合并输出模式下，输出FlowFile中的记录条数"),
+        @WritesAttribute(attribute = "fragment.identifier", description = "设置了最大记录数或同一类型因打开的分区过多被分成多次输出时，同一输入中同一类型拆分出的所有FlowFile具有相同的值"),
+        @WritesAttribute(attribute = "fragment.index", description = "拆分出的FlowFile在同一类型中的序号，从0开始"),
+        @WritesAttribute(attribute = "fragment.count", description = "同一输入中同一类型拆分出的FlowFile总数")
+})
+public class SeparateAvroInXML extends AbstractSessionFactoryProcessor {
     public static final String UTF8_BOM = "\uFEFF";     //http://www.rgagnon.com/javadetails/java-handle-utf8-file-with-bom.html
     private static Logger logger = LoggerFactory.getLogger(SeparateAvroInXML.class);
     public static final PropertyDescriptor XML_DECODE_FIELD = new PropertyDescriptor.Builder()
@@ -55,6 +76,122 @@ public class SeparateAvroInXML extends AbstractProcessor{
             .description("输入这个字段中代表类型的字段，要求使用XPATH语法")
             .name("xml type field")
             .build();
+
+    public static final String KEY_EXTRACT_FULL = "full parse";
+    public static final String KEY_EXTRACT_STREAMING = "streaming";
+    public static final PropertyDescriptor KEY_EXTRACT_MODE = new PropertyDescriptor.Builder()
+            .required(true)
+            .allowableValues(KEY_EXTRACT_FULL, KEY_EXTRACT_STREAMING)
+            .defaultValue(KEY_EXTRACT_FULL)
+            .description("类型字段的提取方式：full parse 解析整个XML后再用XPATH取值；streaming 流式读取XML，读到类型节点后立即停止解析，" +
+                    "只支持形如 /product/pub_basic/pub_type_id 的简单路径，其他写法或找不到节点时自动退回完整解析")
+            .name("type key extract mode")
+            .build();
+
+    public static final String PARTITION_BY_TYPE = "type value";
+    public static final String PARTITION_BY_HASH = "hash bucket";
+    public static final String PARTITION_BY_KEY = "composite key";
+    public static final String PARTITION_ATTRIBUTE = "partition";
+    public static final PropertyDescriptor PARTITION_MODE = new PropertyDescriptor.Builder()
+            .required(true)
+            .allowableValues(PARTITION_BY_TYPE, PARTITION_BY_KEY, PARTITION_BY_HASH)
+            .defaultValue(PARTITION_BY_TYPE)
+            .description("分区方式：type value 按类型字段的取值拆分，每个取值一个输出；" +
+                    "composite key 按分区键的组合取值（用 | 连接）拆分，一次遍历完成多个字段的拆分，取值写入 partition 属性；hash bucket 将分区键的取值哈希到固定数量的桶中，" +
+                    "每个桶一个输出并写入 partition 属性，输出数量不随键的基数增长。type 字段写入分区键的原始取值")
+            .name("partition mode")
+            .build();
+
+    public static final PropertyDescriptor PARTITION_KEY_FIELDS = new PropertyDescriptor.Builder()
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .description("composite key 和 hash bucket 模式下的分区键，多个用逗号分隔：以 / 开头的按XPATH从XML字段中取值，其他视为输入avro中的字段名，" +
+                    "取不到的值按空字符串处理。不填时使用类型字段")
+            .name("partition key fields")
+            .build();
+
+    public static final PropertyDescriptor PARTITION_BUCKETS = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("16")
+            .description("hash bucket 模式下的桶数量，同一个键在任何节点上都落在同一个桶中")
+            .name("partition bucket count")
+            .build();
+
+    public static final PropertyDescriptor MAX_OPEN_PARTITIONS = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .description("同时保持打开的分区写入器数量上限：每个输入内的分组缓存超过时，最久未使用的分区立即输出为一个FlowFile，" +
+                    "同一分区之后的数据输出到新的FlowFile并带有fragment属性；合并输出模式下缓存的分区数超过时输出最早的分区。" +
+                    "使内存占用不随分区数量增长；0 表示不限制")
+            .name("max open partitions")
+            .build();
+    public static final PropertyDescriptor BATCH_SIZE = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("50")
+            .description("每次调度一次性拉取的FlowFile数量，同一批次共用一套解析状态并在一次会话提交中完成")
+            .name("batch size")
+            .build();
+
+    public static final PropertyDescriptor BATCH_DURATION = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("0 millis")
+            .description("在一次调度内持续拉取新批次的最长时间，0 表示每次调度只拉取一个批次")
+            .name("batch duration")
+            .build();
+
+    public static final String FRAGMENT_ID = "fragment.identifier";
+    public static final String FRAGMENT_INDEX = "fragment.index";
+    public static final String FRAGMENT_COUNT = "fragment.count";
+
+    public static final PropertyDescriptor MAX_RECORDS_PER_FLOWFILE = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("0")
+            .description("单个输出FlowFile的最大记录数，同一类型超过该数量时拆分为多个FlowFile，写满的FlowFile立即输出，只缓存未写满的记录，" +
+                    "并写入 fragment.identifier、fragment.index、fragment.count 属性，便于下游并行处理同一类型的数据；" +
+                    "0 表示不拆分。合并输出模式下同样作为每个输出的记录数上限，但不写入fragment属性")
+            .name("max records per flowfile")
+            .build();
+
+    public static final PropertyDescriptor COALESCE = new PropertyDescriptor.Builder()
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .description("是否跨多个输入FlowFile合并同一类型的输出：开启后各类型的记录先缓存起来，达到记录数或大小阈值、或超过存在时间的类型单独输出" +
+                    "（每个FlowFile不超过 coalesce max records 条），缓存的类型数超过 max open partitions 时输出最早的类型，没有新输入时同样按存在时间输出。" +
+                    "每个输入在自己的会话中，它贡献过记录的类型都输出后才提交；处理器停止时丢弃缓存，尚未提交的输入回到队列重新处理。" +
+                    "输出先于输入提交，节点在两者之间异常退出时这些输入会再次处理，数据不会丢失但可能重复。" +
+                    "该模式下同一处理器的并发任务依次执行，多配置并发任务不会提高吞吐")
+            .name("coalesce outputs")
+            .build();
+
+    public static final PropertyDescriptor COALESCE_MAX_RECORDS = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .description("合并输出模式下单个输出FlowFile的最大记录数，0 表示不限制")
+            .name("coalesce max records")
+            .build();
+
+    public static final PropertyDescriptor COALESCE_MAX_SIZE = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.DATA_SIZE_VALIDATOR)
+            .defaultValue("10 MB")
+            .description("合并输出模式下单个输出FlowFile的最大大小（按已编码的Avro块估算）")
+            .name("coalesce max size")
+            .build();
+
+    public static final PropertyDescriptor COALESCE_MAX_AGE = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .defaultValue("1 min")
+            .description("合并输出模式下一个类型的数据从第一条记录起最多缓存多久，超过后即使未达到记录数和大小阈值也会输出")
+            .name("coalesce max age")
+            .build();
     // Relationships
     public static final Relationship REL_SUCCESS = new Relationship.Builder()
             .name("success")
@@ -67,10 +204,34 @@ public class SeparateAvroInXML extends AbstractProcessor{
 
     private static final List<PropertyDescriptor> propertyDescriptors;
     private static final Set<Relationship> relationships;
+    private volatile ExtractionResultCache resultCache;
+    private volatile RecordPipeline pipeline;
+    private volatile DirectBufferArena arena;
+    //合并输出模式下跨调度保持的各分区缓存，键为 schema指纹/分区，按创建顺序排列；以下字段都由 bins 加锁
+    private final Map<String, PartitionBin> bins = new LinkedHashMap<>();
+    //记录还在缓存中的输入，键为uuid
+    private final Map<String, BinnedInput> binnedInputs = new HashMap<>();
     static {
         List<PropertyDescriptor> _props = new ArrayList<>();
         _props.add(XML_DECODE_FIELD);
         _props.add(XML_TYPE_FIELD);
+        _props.add(KEY_EXTRACT_MODE);
+        _props.add(PARTITION_MODE);
+        _props.add(PARTITION_KEY_FIELDS);
+        _props.add(PARTITION_BUCKETS);
+        _props.add(MAX_OPEN_PARTITIONS);
+        _props.add(BATCH_SIZE);
+        _props.add(BATCH_DURATION);
+        _props.add(MAX_RECORDS_PER_FLOWFILE);
+        _props.add(COALESCE);
+        _props.add(COALESCE_MAX_RECORDS);
+        _props.add(COALESCE_MAX_SIZE);
+        _props.add(COALESCE_MAX_AGE);
+        _props.add(CACHE_MAX_ENTRIES);
+        _props.add(CACHE_MAX_SIZE);
+        _props.add(RecordPipeline.WORKER_THREADS);
+        _props.add(RecordPipeline.QUEUE_SIZE);
+        _props.add(DirectBufferArena.MAX_DIRECT_MEMORY);
         propertyDescriptors = Collections.unmodifiableList(_props);
         Set<Relationship> _relationships = new HashSet<>();
         _relationships.add(REL_FAILURE);
@@ -88,75 +249,528 @@ public class SeparateAvroInXML extends AbstractProcessor{
         return relationships;
     }
 
+    @OnScheduled
+    public void setupResultCache(ProcessContext context) {
+        final int maxEntries = context.getProperty(CACHE_MAX_ENTRIES).asInteger();
+        resultCache = maxEntries > 0
+                ? new ExtractionResultCache(maxEntries, context.getProperty(CACHE_MAX_SIZE).asDataSize(DataUnit.B).longValue())
+                : null;
+    }
+
+    @OnScheduled
+    public void setupPipeline(ProcessContext context) {
+        pipeline = RecordPipeline.create(context, getIdentifier());
+    }
+
+    @OnScheduled
+    public void setupArena(ProcessContext context) {
+        arena = DirectBufferArena.create(context, getLogger());
+    }
+
+    @OnScheduled
+    public void checkCoalesceTasks(ProcessContext context) {
+        if (context.getProperty(COALESCE).asBoolean() && context.getMaxConcurrentTasks() > 1) {
+            getLogger().warn("{} tasks are scheduled, but with {} they run one at a time",
+                    new Object[]{context.getMaxConcurrentTasks(), COALESCE.getName()});
+        }
+    }
+
+    @OnStopped
+    public void clearResultCache() {
+        final ExtractionResultCache cache = resultCache;
+        if (cache != null) {
+            cache.clear();
+        }
+    }
+
+    @OnStopped
+    public void closeArena() {
+        final DirectBufferArena a = arena;
+        if (a != null) {
+            a.close();
+        }
+    }
+
+    @OnStopped
+    public void shutdownPipeline() {
+        final RecordPipeline p = pipeline;
+        if (p != null) {
+            p.shutdown();
+            pipeline = null;
+        }
+    }
+
+    /**
+     * drop the bins, the inputs still waiting for them are rolled back into the queue and split again once scheduled
+     */
+    @OnStopped
+    public void releaseBins() {
+        synchronized (bins) {
+            rollbackBins(false);
+        }
+    }
+
+    // 与AbstractProcessor相同；合并输出模式下每个输入的会话跨调度保持，直到它所在的缓存都输出后才提交
     @Override
+    public void onTrigger(ProcessContext context, ProcessSessionFactory sessionFactory) throws ProcessException {
+        if (context.getProperty(COALESCE).asBoolean()) {
+            //缓存由所有任务共用，并发任务在这里依次执行
+            synchronized (bins) {
+                try {
+                    onTriggerCoalesce(context, sessionFactory);
+                } catch (final Throwable t) {
+                    rollbackBins(true);
+                    throw t;
+                }
+            }
+            return;
+        }
+        final ProcessSession session = sessionFactory.createSession();
+        try {
+            onTrigger(context, session);
+            session.commit();
+        } catch (final Throwable t) {
+            session.rollback(true);
+            throw t;
+        }
+    }
+
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
-        FlowFile flowFile = session.get();
-        if (flowFile == null) {
+        final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        List<FlowFile> flowFiles = session.get(batchSize);
+        if (flowFiles.isEmpty()) {
+            context.yield(); //因 TriggerWhenEmpty 在队列为空时也会调度
             return;
         }
-        //build new avro schema
-        Set<String> newSchema = new HashSet<>();
-        newSchema.add("type");
-        final String xmlField = context.getProperty(XML_DECODE_FIELD).getValue();
-        final String xmlTypeField = context.getProperty(XML_TYPE_FIELD).getValue();
-        final List<FlowFile> ffList = new ArrayList<>();
-        final Map<String, ConcurrentLinkedQueue<GenericRecord>> grMap = new ConcurrentHashMap<>();
+        final long batchNanos = context.getProperty(BATCH_DURATION).asTimePeriod(TimeUnit.NANOSECONDS);
+        final long start = System.nanoTime();
+
+        final BatchState state = new BatchState(context, resultCache);
+        while (!flowFiles.isEmpty()) {
+            for (FlowFile flowFile : flowFiles) {
+                processFlowFile(session, flowFile, state);
+            }
+            if (System.nanoTime() - start >= batchNanos) {
+                break;
+            }
+            flowFiles = session.get(batchSize);
+        }
+        state.cacheCounts.adjustCounters(session);
+        arena.adjustCounters(session);
+    }
+
+    private void onTriggerCoalesce(ProcessContext context, ProcessSessionFactory sessionFactory) {
+        final int batchSize = context.getProperty(BATCH_SIZE).asInteger();
+        final long batchNanos = context.getProperty(BATCH_DURATION).asTimePeriod(TimeUnit.NANOSECONDS);
+        final long maxAge = context.getProperty(COALESCE_MAX_AGE).asTimePeriod(TimeUnit.NANOSECONDS);
+        final long start = System.nanoTime();
+        final BatchState state = new BatchState(context, resultCache);
+        while (true) {
+            int received = 0;
+            for (; received < batchSize; received++) {
+                //每个输入一个会话，可以与其他缓存的输入分开提交
+                final ProcessSession session = sessionFactory.createSession();
+                final FlowFile flowFile = session.get();
+                if (flowFile == null) {
+                    break;
+                }
+                coalesceFlowFile(session, flowFile, state);
+            }
+            //整批处理完后才检查，缓存最多超出阈值一个批次
+            final int flushed = flushBins(sessionFactory, readyBins(state, maxAge), state);
+            if (received == 0 && flushed == 0) {
+                context.yield(); //没有新输入，也没有到期的缓存
+            }
+            if (received == 0 || System.nanoTime() - start >= batchNanos) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * keys of the bins to flush: full or older than the max age, and the oldest ones while too many bins are open
+     */
+    private Set<String> readyBins(BatchState state, long maxAgeNanos) {
+        final long now = System.nanoTime();
+        final Set<String> ready = new LinkedHashSet<>();
+        for (Map.Entry<String, PartitionBin> entry : bins.entrySet()) {
+            final PartitionBin bin = entry.getValue();
+            if (bin.isFull(state.coalesceMaxRecords, state.coalesceMaxBytes) || now - bin.getCreatedNanos() >= maxAgeNanos) {
+                ready.add(entry.getKey());
+            }
+        }
+        if (state.maxOpenPartitions > 0) {
+            int open = bins.size() - ready.size();
+            for (Iterator<String> it = bins.keySet().iterator(); open > state.maxOpenPartitions && it.hasNext(); ) {
+                if (ready.add(it.next())) {
+                    open--;
+                }
+            }
+        }
+        return ready;
+    }
+
+    /**
+     * Write the given bins out in a session of their own and commit it, then remove and commit every input whose
+     * bins have all been flushed. Inputs that still have records in other bins stay in their sessions. Must hold bins.
+     * @return number of bins flushed
+     */
+    private int flushBins(ProcessSessionFactory sessionFactory, Set<String> keys, BatchState state) {
+        final ProcessSession session = sessionFactory.createSession();
         try {
-            session.read(flowFile, in -> {
-                final DataFileStream<GenericRecord> reader = new DataFileStream<>(in, new GenericDatumReader<GenericRecord>());
-                GenericRecord currRecord;
+            for (String key : keys) {
+                session.transfer(flushBin(session, bins.get(key), state.coalesceMaxRecords), REL_SUCCESS);
+            }
+            state.cacheCounts.adjustCounters(session);
+            arena.adjustCounters(session);
+            session.commit();
+        } catch (final Throwable t) {
+            session.rollback();
+            throw t;
+        }
+        for (String key : keys) {
+            final PartitionBin bin = bins.remove(key);
+            for (FlowFile parent : bin.getParents()) {
+                final String uuid = parent.getAttribute(CoreAttributes.UUID.key());
+                final BinnedInput input = binnedInputs.get(uuid);
+                if (--input.openBins == 0) {
+                    binnedInputs.remove(uuid);
+                    input.session.remove(input.flowFile);
+                    input.session.commit();
+                }
+            }
+            bin.release();
+        }
+        return keys.size();
+    }
+
+    private void rollbackBins(boolean penalize) {
+        for (BinnedInput input : binnedInputs.values()) {
+            input.session.rollback(penalize);
+        }
+        binnedInputs.clear();
+        for (PartitionBin bin : bins.values()) {
+            bin.release();
+        }
+        bins.clear();
+    }
+
+    /**
+     * one or more flowfiles of at most maxRecords records each, created from the inputs of the bin
+     */
+    private List<FlowFile> flushBin(ProcessSession session, PartitionBin bin, int maxRecords) {
+        final List<FlowFile> flushed = new ArrayList<>();
+        final Collection<FlowFile> parents = bin.getParents();
+        final Map<String, String> inherited = bin.getCommonAttributes();
+        final EncodedRecordBuffer.Cursor cursor = bin.cursor();
+        do {
+            final AtomicInteger count = new AtomicInteger();
+            //输入在各自的会话中，这里只继承共同的属性并记录JOIN事件
+            FlowFile ff = session.putAllAttributes(session.create(), inherited);
+            ff = session.write(ff, out -> count.set(bin.writeTo(cursor, maxRecords, out)));
+            session.getProvenanceReporter().join(parents, ff);
+            ff = session.putAttribute(ff, bin.getAttribute(), bin.getKey());
+            ff = session.putAttribute(ff, "record.count", String.valueOf(count.get()));
+            flushed.add(ff);
+        } while (cursor.hasNext());
+        return flushed;
+    }
+
+    static int coalesceMaxRecords(ProcessContext context) {
+        final int maxRecords = context.getProperty(MAX_RECORDS_PER_FLOWFILE).asInteger();
+        final int binMaxRecords = context.getProperty(COALESCE_MAX_RECORDS).asInteger();
+        return maxRecords > 0 && (binMaxRecords <= 0 || maxRecords < binMaxRecords) ? maxRecords : binMaxRecords;
+    }
+
+    /**
+     * 整个批次共用的解析状态
+     */
+    private static final class BatchState {
+        private final Set<String> newSchema = new HashSet<>();
+        private final String xmlField;
+        private final PartitionKey partitionKey;
+        private final int buckets; //0 表示按取值分区
+        private final String keyAttribute;
+        private final ExtractionResultCache cache;
+        private final long planId;
+        private final int maxRecords;
+        private final int maxOpenPartitions;
+        private final int coalesceMaxRecords;
+        private final long coalesceMaxBytes;
+        //工作线程并发更新
+        private final ExtractionResultCache.Counts cacheCounts = new ExtractionResultCache.Counts();
+
+        private BatchState(ProcessContext context, ExtractionResultCache cache) {
+            maxRecords = context.getProperty(MAX_RECORDS_PER_FLOWFILE).asInteger();
+            maxOpenPartitions = context.getProperty(MAX_OPEN_PARTITIONS).asInteger();
+            coalesceMaxRecords = coalesceMaxRecords(context);
+            coalesceMaxBytes = context.getProperty(COALESCE_MAX_SIZE).asDataSize(DataUnit.B).longValue();
+            //build new avro schema
+            newSchema.add("type");
+            xmlField = context.getProperty(XML_DECODE_FIELD).getValue();
+            final String xmlTypeField = context.getProperty(XML_TYPE_FIELD).getValue();
+            final boolean streaming = KEY_EXTRACT_STREAMING.equals(context.getProperty(KEY_EXTRACT_MODE).getValue());
+            final String partitionMode = context.getProperty(PARTITION_MODE).getValue();
+            if (PARTITION_BY_HASH.equals(partitionMode) || PARTITION_BY_KEY.equals(partitionMode)) {
+                final String keyFields = context.getProperty(PARTITION_KEY_FIELDS).getValue();
+                partitionKey = keyFields == null
+                        ? PartitionKey.ofXPath(xmlTypeField, streaming) : PartitionKey.parse(keyFields, streaming);
+                buckets = PARTITION_BY_HASH.equals(partitionMode) ? context.getProperty(PARTITION_BUCKETS).asInteger() : 0;
+                keyAttribute = PARTITION_ATTRIBUTE;
+            } else {
+                partitionKey = PartitionKey.ofXPath(xmlTypeField, streaming);
+                buckets = 0;
+                keyAttribute = "type";
+            }
+            this.cache = cache;
+            planId = ExtractionResultCache.planId("partition:" + partitionKey.getXPaths());
+        }
+
+        private Map<String, String> xmlValues(Object xml) {
+            if (partitionKey.getXPaths().isEmpty()) {
+                return Collections.emptyMap();
+            }
+            if (cache == null) {
+                return extractXmlValues(xml, partitionKey);
+            }
+            ExtractionResultCache.Key cacheKey = ExtractionResultCache.key(planId, xml);
+            Map<String, String> cached = cache.get(cacheKey, cacheCounts);
+            if (cached == null) {
+                Map<String, String> values = extractXmlValues(xml, partitionKey);
+                cache.put(cacheKey, values);
+                return values;
+            }
+            return cached;
+        }
+
+        /**
+         * the output partition of a record whose type column is value
+         */
+        private String partition(String value) {
+            return buckets > 0 ? String.valueOf(PartitionKey.bucket(value, buckets)) : value;
+        }
+    }
+
+    /**
+     * receives the records of one input with the type field set, and their partition
+     */
+    private interface PartitionSink {
+        void accept(String key, GenericRecord rec) throws IOException;
+    }
+
+    private interface PartitionSinkFactory {
+        PartitionSink open(Schema newBuildSchema) throws IOException;
+    }
+
+    private void split(final ProcessSession session, final FlowFile flowFile, final BatchState state, final PartitionSinkFactory sinks) {
+        final String xmlField = state.xmlField;
+        session.read(flowFile, in -> {
+            try (AvroBlockReader reader = pipeline.openReader(in)) {
 
                 Schema schema = reader.getSchema();
 
                 if (schema.getField(xmlField) == null) {
                     throw new AvroRuntimeException("Not a record: "+this);
                 }
+                state.partitionKey.validate(schema);
+                final Schema newBuildSchema = mkNewSchema(schema,state.newSchema,null);
+                final PartitionSink sink = sinks.open(newBuildSchema);
+                final GenericRecord rec = new GenericData.Record(newBuildSchema);
 
-                while (reader.hasNext()) {
-                    currRecord = reader.next();
-                    String xml = currRecord.get(xmlField).toString();
-                    String key = getXmlValue(xml,xmlTypeField);
-                    if (grMap.get(key) != null) {
-                        grMap.get(key).add(currRecord);
-                    } else {
-                        grMap.put(key,new ConcurrentLinkedQueue<>());
-                        grMap.get(key).add(currRecord);
+                //分区键的XML提取在工作线程上进行
+                pipeline.run(reader, currRecord -> state.partitionKey.valueOf(currRecord, state.xmlValues(currRecord.get(xmlField))),
+                        (currRecord, value) -> {
+                    for (Schema.Field field : schema.getFields()) {
+                        rec.put(field.name(),currRecord.get(field.name()));
                     }
-                }
-                final DatumWriter<GenericRecord> datumWriter = new GenericDatumWriter<>(schema);
-                final DataFileWriter<GenericRecord> dataFileWriter = new DataFileWriter<>(datumWriter);
-                for (String key : grMap.keySet()) {
-                    ConcurrentLinkedQueue<GenericRecord> gr = grMap.get(key);
-                    Schema newBuildSchema = mkNewSchema(schema,newSchema,null);
-                    FlowFile ff = session.create(flowFile);
-                    final GenericRecord rec = new GenericData.Record(newBuildSchema);
-                    ff = session.write(ff, out -> {
-                        final DataFileWriter<GenericRecord> dfw = dataFileWriter.create(newBuildSchema, out);
-                        for (GenericRecord genericRecord : gr) {
-                            for (Schema.Field field : schema.getFields()) {
-                                rec.put(field.name(),genericRecord.get(field.name()));
+                    rec.put("type", value);//只多了一个type字段
+                    sink.accept(state.partition(value), rec);
+                });
+            }
+        });
+    }
+
+    private void processFlowFile(final ProcessSession session, final FlowFile flowFile, final BatchState state) {
+        //按类型分组的已编码记录，存放在堆外内存中，按最近使用排序
+        final LinkedHashMap<String, EncodedRecordBuffer> grMap = new LinkedHashMap<>(16, 0.75f, true);
+        //每个分区已输出的FlowFile，用于最后写入fragment属性
+        final Map<String, List<FlowFile>> fragmentsByKey = new LinkedHashMap<>();
+        final AtomicReference<Schema> outSchema = new AtomicReference<>();
+        try {
+            split(session, flowFile, state, newBuildSchema -> {
+                outSchema.set(newBuildSchema);
+                final EncodedRecordBuffer.RecordEncoder encoder = new EncodedRecordBuffer.RecordEncoder(newBuildSchema);
+                return (key, rec) -> {
+                    EncodedRecordBuffer buffer = grMap.get(key);
+                    if (buffer == null) {
+                        if (state.maxOpenPartitions > 0 && grMap.size() >= state.maxOpenPartitions) {
+                            //打开的分区过多时先输出最久未使用的分区
+                            final Iterator<Map.Entry<String, EncodedRecordBuffer>> eldest = grMap.entrySet().iterator();
+                            final Map.Entry<String, EncodedRecordBuffer> entry = eldest.next();
+                            eldest.remove();
+                            try {
+                                closePartition(session, flowFile, entry.getKey(), entry.getValue(), newBuildSchema, state, fragmentsByKey);
+                            } finally {
+                                entry.getValue().release();
                             }
-                            rec.put("type", key);//只多了一个type字段
-                            dfw.append(rec);
                         }
-                        dfw.close();
-                    });
-                    ff = session.putAttribute(ff, "type", key); // 一定要赋值回一个flowFile变量：
-                    ffList.add(ff);
-                }
+                        buffer = new EncodedRecordBuffer(arena);
+                        grMap.put(key, buffer);
+                    }
+                    encoder.encode(rec, buffer);
+                    if (state.maxRecords > 0 && buffer.getRecordCount() >= state.maxRecords) {
+                        //分区写满一个FlowFile后立即输出，堆外缓存不随输入增长
+                        grMap.remove(key);
+                        try {
+                            closePartition(session, flowFile, key, buffer, newBuildSchema, state, fragmentsByKey);
+                        } finally {
+                            buffer.release();
+                        }
+                    }
+                };
             });
-            session.transfer(ffList,REL_SUCCESS);
+            final Schema newBuildSchema = outSchema.get();
+            for (Map.Entry<String, EncodedRecordBuffer> entry : grMap.entrySet()) {
+                closePartition(session, flowFile, entry.getKey(), entry.getValue(), newBuildSchema, state, fragmentsByKey);
+            }
+            for (List<FlowFile> fragments : fragmentsByKey.values()) {
+                if (state.maxRecords > 0 || fragments.size() > 1) {
+                    final String fragmentId = UUID.randomUUID().toString();
+                    for (int i = 0; i < fragments.size(); i++) {
+                        final Map<String, String> attributes = new HashMap<>();
+                        attributes.put(FRAGMENT_ID, fragmentId);
+                        attributes.put(FRAGMENT_INDEX, String.valueOf(i));
+                        attributes.put(FRAGMENT_COUNT, String.valueOf(fragments.size()));
+                        fragments.set(i, session.putAllAttributes(fragments.get(i), attributes));
+                    }
+                }
+            }
+            for (List<FlowFile> fragments : fragmentsByKey.values()) {
+                session.transfer(fragments, REL_SUCCESS);
+            }
             session.remove(flowFile);
         } catch (Exception e) {
-            session.remove(ffList);
+            //只移除这个输入自己的输出
+            for (List<FlowFile> fragments : fragmentsByKey.values()) {
+                session.remove(fragments);
+            }
+            getLogger().error("Failed to split {} due to {}; routing to failure", new Object[]{flowFile, e});
             session.transfer(flowFile, REL_FAILURE);
-            e.printStackTrace();
+        } finally {
+            for (EncodedRecordBuffer buffer : grMap.values()) {
+                buffer.release();
+            }
         }
     }
 
+    /**
+     * add the records of one input, held by its own session, to the shared bins; if the input fails, only what it
+     * appended is dropped again and the input goes to failure. Must hold bins.
+     */
+    private void coalesceFlowFile(final ProcessSession session, final FlowFile flowFile, final BatchState state) {
+        //本输入写入过的缓存及写入前的位置，新建的缓存记为null
+        final Map<String, EncodedRecordBuffer.Mark> touched = new LinkedHashMap<>();
+        try {
+            split(session, flowFile, state, newBuildSchema -> {
+                final EncodedRecordBuffer.RecordEncoder encoder = new EncodedRecordBuffer.RecordEncoder(newBuildSchema);
+                //schema不同的记录不能写入同一个容器
+                final String prefix = Long.toHexString(SchemaNormalization.parsingFingerprint64(newBuildSchema)) + "/";
+                return (key, rec) -> {
+                    final String binKey = prefix + key;
+                    PartitionBin bin = bins.get(binKey);
+                    if (bin == null) {
+                        bin = new PartitionBin(state.keyAttribute, key, newBuildSchema, arena);
+                        bins.put(binKey, bin);
+                        touched.put(binKey, null);
+                    } else if (!touched.containsKey(binKey)) {
+                        touched.put(binKey, bin.mark());
+                    }
+                    bin.append(encoder, rec);
+                };
+            });
+            if (touched.isEmpty()) {
+                session.remove(flowFile); //没有记录
+                session.commit();
+                return;
+            }
+            for (String binKey : touched.keySet()) {
+                bins.get(binKey).addParent(flowFile);
+            }
+            binnedInputs.put(flowFile.getAttribute(CoreAttributes.UUID.key()), new BinnedInput(flowFile, session, touched.size()));
+        } catch (Exception e) {
+            for (Map.Entry<String, EncodedRecordBuffer.Mark> entry : touched.entrySet()) {
+                if (entry.getValue() == null) {
+                    bins.remove(entry.getKey()).release();
+                } else {
+                    bins.get(entry.getKey()).undo(entry.getValue());
+                }
+            }
+            getLogger().error("Failed to split {} due to {}; routing to failure", new Object[]{flowFile, e});
+            session.transfer(flowFile, REL_FAILURE);
+            session.commit();
+        }
+    }
+
+    /**
+     * an input whose records are in the bins, held by its own session until openBins of them are flushed
+     */
+    private static final class BinnedInput {
+        private final FlowFile flowFile;
+        private final ProcessSession session;
+        private int openBins;
+
+        private BinnedInput(FlowFile flowFile, ProcessSession session, int openBins) {
+            this.flowFile = flowFile;
+            this.session = session;
+            this.openBins = openBins;
+        }
+    }
+
+    /**
+     * write the records of one partition as one or more fragments of the input (collected per key in fragmentsByKey)
+     */
+    private void closePartition(ProcessSession session, FlowFile flowFile, String key, EncodedRecordBuffer buffer,
+                                Schema newBuildSchema, BatchState state, Map<String, List<FlowFile>> fragmentsByKey) {
+        List<FlowFile> fragments = fragmentsByKey.get(key);
+        if (fragments == null) {
+            fragments = new ArrayList<>();
+            fragmentsByKey.put(key, fragments);
+        }
+        final EncodedRecordBuffer.Cursor gr = buffer.cursor();
+        do {
+            FlowFile ff = session.create(flowFile);
+            ff = session.write(ff, out -> {
+                try (DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(newBuildSchema)).create(newBuildSchema, out)) {
+                    //超过单个FlowFile最大记录数时换一个新的写入器
+                    EncodedRecordBuffer.writeTo(gr, dfw, state.maxRecords);
+                }
+            });
+            ff = session.putAttribute(ff, state.keyAttribute, key); // 一定要赋值回一个flowFile变量：
+            fragments.add(ff);
+        } while (gr.hasNext());
+    }
+
+    // 先尝试流式提取，剩下的xpath共用一次完整解析
+    private static Map<String, String> extractXmlValues(Object xml, PartitionKey partitionKey) {
+        final List<String> xpaths = partitionKey.getXPaths();
+        final Map<String, String> values = new HashMap<>();
+        Element root = null;
+        for (int i = 0; i < xpaths.size(); i++) {
+            String value = XmlKeyScanner.extract(xml, partitionKey.getStreamingPath(i));
+            if (value == null) {
+                if (root == null) {
+                    root = parseRoot(xml.toString());
+                }
+                Node node = root.selectSingleNode(xpaths.get(i));
+                value = node == null ? null : node.getText();
+            }
+            values.put(xpaths.get(i), value);
+        }
+        return values;
+    }
 
     //using xpath test pass
-    private static String getXmlValue(String xml, String path) {
+    static Element parseRoot(String xml) {
         Document doc = null;
         try {
             doc = DocumentHelper.parseText(xml);
@@ -172,8 +786,7 @@ public class SeparateAvroInXML extends AbstractProcessor{
             logger.error(e.getMessage());
         }
         assert doc != null;
-        Element temp = doc.getRootElement();
-        return temp.selectSingleNode(path).getText();
+        return doc.getRootElement();
     }
     //using xpath test pass
     private static String getXml(String xml, String path) {
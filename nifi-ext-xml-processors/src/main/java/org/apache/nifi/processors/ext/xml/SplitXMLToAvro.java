@@ -0,0 +1,324 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.behavior.InputRequirement;
+import org.apache.nifi.annotation.behavior.WritesAttribute;
+import org.apache.nifi.annotation.behavior.WritesAttributes;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.processor.AbstractProcessor;
+import org.apache.nifi.processor.ProcessContext;
+import org.apache.nifi.processor.ProcessSession;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.dom4j.DocumentException;
+
+import javax.xml.stream.XMLOutputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.XMLStreamWriter;
+import java.io.BufferedInputStream;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.FRAGMENT_COUNT;
+import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.FRAGMENT_ID;
+import static org.apache.nifi.processors.ext.xml.SeparateAvroInXML.FRAGMENT_INDEX;
+
+// {<export><product>...</product><product>...</product></export>} -> [动态字段](每批一个ff)
+@Tags({"Avro", "XML", "split", "StAX", "Sha0w"})
+@InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@CapabilityDescription("用StAX流式读取整个XML文件，在每个记录节点（record element）处切分，对每个节点按动态字段提取，" +
+        "按批次输出Avro。每次只在内存中保留一个记录节点，内存占用与文件大小无关")
+@DynamicProperty(name = "输出字段名", value = "XPATH或dot path表达式",
+        description = "相对记录节点求值，例如记录节点为product时 /product/pub_basic/pub_id 或 product.pub_basic.pub_id，多个路径可以用#连接")
+@WritesAttributes({
+        @WritesAttribute(attribute = "record.count", description = "FlowFile中的记录数"),
+        @WritesAttribute(attribute = "fragment.identifier", description = "同一输入拆分出的所有FlowFile具有相同的值"),
+        @WritesAttribute(attribute = "fragment.index", description = "拆分出的FlowFile的序号，从0开始"),
+        @WritesAttribute(attribute = "fragment.count", description = "同一输入拆分出的FlowFile总数")
+})
+public class SplitXMLToAvro extends AbstractProcessor {
+    private static final XMLOutputFactory outputFactory = XMLOutputFactory.newInstance();
+
+    public static final PropertyDescriptor RECORD_ELEMENT = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .description("重复出现的记录节点名（不含前缀），任意深度第一次出现的该节点及其子树作为一条记录，例如 product")
+            .name("record element")
+            .build();
+
+    public static final PropertyDescriptor RECORDS_PER_FLOWFILE = new PropertyDescriptor.Builder()
+            .required(true)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .defaultValue("10000")
+            .description("单个输出FlowFile的最大记录数")
+            .name("records per flowfile")
+            .build();
+
+    public static final Relationship REL_SUCCESS = new Relationship.Builder()
+            .name("success")
+            .description("按批次输出的Avro文件")
+            .build();
+    public static final Relationship REL_FAILURE = new Relationship.Builder()
+            .name("failure")
+            .description("不是合法XML或提取失败的输入FlowFile")
+            .build();
+
+    private static final List<PropertyDescriptor> propertyDescriptors;
+    private static final Set<Relationship> relationships;
+
+    static {
+        List<PropertyDescriptor> _props = new ArrayList<>();
+        _props.add(RECORD_ELEMENT);
+        _props.add(ProcessXMLInAvro.EXPRESSION_SYNTAX);
+        _props.add(RECORDS_PER_FLOWFILE);
+        propertyDescriptors = Collections.unmodifiableList(_props);
+        Set<Relationship> _relationships = new HashSet<>();
+        _relationships.add(REL_SUCCESS);
+        _relationships.add(REL_FAILURE);
+        relationships = Collections.unmodifiableSet(_relationships);
+    }
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return propertyDescriptors;
+    }
+
+    @Override
+    public Set<Relationship> getRelationships() {
+        return relationships;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName).expressionLanguageSupported(false)
+                .addValidator(StandardValidators.NON_BLANK_VALIDATOR).required(false).dynamic(true).build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(context));
+        ProcessXMLInAvro.validateDotPaths(context, results);
+        return results;
+    }
+
+    @Override
+    public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
+        final FlowFile original = session.get();
+        if (original == null) {
+            return;
+        }
+        final String recordElement = context.getProperty(RECORD_ELEMENT).getValue().trim();
+        final int maxRecords = context.getProperty(RECORDS_PER_FLOWFILE).asInteger();
+        final Map<String, String> expressionMap = new LinkedHashMap<>();
+        for (final Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+            if (entry.getKey().isDynamic()) {
+                expressionMap.put(entry.getKey().getName(), entry.getValue());
+            }
+        }
+        final DotPathExtractor dotPath = ProcessXMLInAvro.SYNTAX_DOT_PATH.equals(context.getProperty(ProcessXMLInAvro.EXPRESSION_SYNTAX).getValue())
+                ? DotPathExtractor.compile(expressionMap) : null;
+        final SchemaBuilder.FieldAssembler<Schema> builder = SchemaBuilder.record("NiFi_SplitXMLToAvro_Record").namespace("any.data").fields();
+        for (String field : expressionMap.keySet()) {
+            builder.name(field).type().unionOf().nullBuilder().endNull().and().stringType().endUnion().noDefault();
+        }
+        final Schema schema = builder.endRecord();
+
+        final List<FlowFile> splits = new ArrayList<>();
+        try {
+            session.read(original, rawIn -> {
+                XMLStreamReader reader = null;
+                try {
+                    reader = XmlKeyScanner.createReader(new BufferedInputStream(rawIn));
+                    final RecordCursor cursor = new RecordCursor(reader, recordElement);
+                    final GenericRecord rec = new GenericData.Record(schema);
+                    while (cursor.advance()) {
+                        final long[] count = new long[1];
+                        FlowFile split = session.create(original);
+                        splits.add(split);
+                        split = session.write(split, out -> {
+                            try (DataFileWriter<GenericRecord> dfw = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(schema)).create(schema, out)) {
+                                do {
+                                    final String xml = cursor.copy();
+                                    final Map<String, String> values = dotPath != null
+                                            ? dotPath.extract(xml) : ProcessXMLInAvro.processExtend(xml, expressionMap);
+                                    for (String field : expressionMap.keySet()) {
+                                        rec.put(field, values.get(field));
+                                    }
+                                    dfw.append(rec);
+                                } while (++count[0] < maxRecords && cursor.advance());
+                            } catch (XMLStreamException | DocumentException e) {
+                                throw new ProcessException(e);
+                            }
+                        });
+                        splits.set(splits.size() - 1, session.putAttribute(split, "record.count", String.valueOf(count[0])));
+                    }
+                } catch (XMLStreamException e) {
+                    throw new ProcessException(e);
+                } finally {
+                    if (reader != null) {
+                        try {
+                            reader.close();
+                        } catch (XMLStreamException ignored) {
+                        }
+                    }
+                }
+            });
+        } catch (ProcessException e) {
+            getLogger().error("Failed to split {} at <{}> due to {}; routing to failure", new Object[]{original, recordElement, e});
+            session.remove(splits);
+            session.transfer(session.penalize(original), REL_FAILURE);
+            return;
+        }
+
+        final String fragmentId = UUID.randomUUID().toString();
+        for (int i = 0; i < splits.size(); i++) {
+            final Map<String, String> attributes = new HashMap<>();
+            attributes.put(FRAGMENT_ID, fragmentId);
+            attributes.put(FRAGMENT_INDEX, String.valueOf(i));
+            attributes.put(FRAGMENT_COUNT, String.valueOf(splits.size()));
+            splits.set(i, session.putAllAttributes(splits.get(i), attributes));
+        }
+        session.getProvenanceReporter().fork(original, splits);
+        session.transfer(splits, REL_SUCCESS);
+        session.remove(original);
+    }
+
+    /**
+     * 在文档中逐个定位记录节点，并把当前节点的子树复制成独立的XML字符串
+     */
+    private static final class RecordCursor {
+        private final XMLStreamReader reader;
+        private final String recordElement;
+        //记录节点外层祖先声明的命名空间，复制时补到记录根节点上
+        private final List<String> prefixes = new ArrayList<>();
+        private final List<String> uris = new ArrayList<>();
+        private final List<Integer> declared = new ArrayList<>();
+
+        private RecordCursor(XMLStreamReader reader, String recordElement) {
+            this.reader = reader;
+            this.recordElement = recordElement;
+        }
+
+        /**
+         * move to the start of the next record element
+         * @return false at the end of the document
+         */
+        private boolean advance() throws XMLStreamException {
+            while (reader.hasNext()) {
+                final int event = reader.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    if (recordElement.equals(reader.getLocalName())) {
+                        return true;
+                    }
+                    final int n = reader.getNamespaceCount();
+                    for (int i = 0; i < n; i++) {
+                        prefixes.add(reader.getNamespacePrefix(i));
+                        uris.add(reader.getNamespaceURI(i));
+                    }
+                    declared.add(n);
+                } else if (event == XMLStreamConstants.END_ELEMENT && !declared.isEmpty()) {
+                    final int n = declared.remove(declared.size() - 1);
+                    for (int i = 0; i < n; i++) {
+                        prefixes.remove(prefixes.size() - 1);
+                        uris.remove(uris.size() - 1);
+                    }
+                }
+            }
+            return false;
+        }
+
+        /**
+         * copy the record element the reader is positioned on, leaving the reader on its end element
+         */
+        private String copy() throws XMLStreamException {
+            final StringWriter sw = new StringWriter();
+            final XMLStreamWriter writer = outputFactory.createXMLStreamWriter(sw);
+            int depth = 0;
+            while (true) {
+                switch (reader.getEventType()) {
+                    case XMLStreamConstants.START_ELEMENT:
+                        writeStartElement(writer, depth == 0);
+                        depth++;
+                        break;
+                    case XMLStreamConstants.END_ELEMENT:
+                        writer.writeEndElement();
+                        depth--;
+                        break;
+                    case XMLStreamConstants.CHARACTERS:
+                    case XMLStreamConstants.CDATA:
+                    case XMLStreamConstants.SPACE:
+                        writer.writeCharacters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+                        break;
+                    default:
+                        break;
+                }
+                if (depth == 0) {
+                    break;
+                }
+                reader.next();
+            }
+            writer.close();
+            return sw.toString();
+        }
+
+        private void writeStartElement(XMLStreamWriter writer, boolean root) throws XMLStreamException {
+            final String prefix = reader.getPrefix();
+            final String ns = reader.getNamespaceURI();
+            writer.writeStartElement(prefix == null ? "" : prefix, reader.getLocalName(), ns == null ? "" : ns);
+            final Set<String> written = new HashSet<>();
+            for (int i = 0; i < reader.getNamespaceCount(); i++) {
+                writeNamespace(writer, reader.getNamespacePrefix(i), reader.getNamespaceURI(i), written);
+            }
+            if (root) {
+                //内层的声明覆盖外层，所以从后往前写
+                for (int i = prefixes.size() - 1; i >= 0; i--) {
+                    writeNamespace(writer, prefixes.get(i), uris.get(i), written);
+                }
+            }
+            for (int i = 0; i < reader.getAttributeCount(); i++) {
+                final String attrPrefix = reader.getAttributePrefix(i);
+                if (attrPrefix == null || attrPrefix.isEmpty()) {
+                    writer.writeAttribute(reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                } else {
+                    writer.writeAttribute(attrPrefix, reader.getAttributeNamespace(i), reader.getAttributeLocalName(i), reader.getAttributeValue(i));
+                }
+            }
+        }
+
+        private static void writeNamespace(XMLStreamWriter writer, String prefix, String uri, Set<String> written) throws XMLStreamException {
+            final String p = prefix == null ? "" : prefix;
+            if (!written.add(p)) {
+                return;
+            }
+            if (p.isEmpty()) {
+                writer.writeDefaultNamespace(uri == null ? "" : uri);
+            } else {
+                writer.writeNamespace(p, uri);
+            }
+        }
+    }
+}
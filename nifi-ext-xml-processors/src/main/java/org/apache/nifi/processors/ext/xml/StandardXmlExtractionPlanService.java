@@ -0,0 +1,130 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.nifi.annotation.behavior.DynamicProperty;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.components.ValidationContext;
+import org.apache.nifi.components.ValidationResult;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.processor.util.StandardValidators;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+@Tags({"XML", "XPath", "extraction plan", "Sha0w"})
+@CapabilityDescription("集中管理XML字段提取方案，每个动态属性是一个方案，属性名为 方案名@版本号（省略版本号即为版本1）。" +
+        "方案在启用服务时编译一次，引用它的处理器共用同一份编译结果；处理器只写方案名时使用最高版本")
+@DynamicProperty(name = "方案名@版本号", value = "每行一个 字段名[:类型] = 表达式",
+        description = "类型为 string、int、long、double、boolean，默认 string；xpath中用到的前缀用 xmlns:前缀 = URI 一行声明")
+public class StandardXmlExtractionPlanService extends AbstractControllerService implements XmlExtractionPlanService {
+    private static final Pattern REFERENCE = Pattern.compile("([^@\\s]+)(?:@(\\d+))?");
+
+    private static final List<PropertyDescriptor> propertyDescriptors =
+            Collections.singletonList(ProcessXMLInAvro.EXPRESSION_SYNTAX);
+
+    //方案名@版本号 和 方案名（最高版本）都指向同一个方案
+    private volatile Map<String, ExtractionPlan> plans = Collections.emptyMap();
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return propertyDescriptors;
+    }
+
+    @Override
+    protected PropertyDescriptor getSupportedDynamicPropertyDescriptor(final String propertyDescriptorName) {
+        return new PropertyDescriptor.Builder()
+                .name(propertyDescriptorName).expressionLanguageSupported(false)
+                .addValidator(StandardValidators.NON_BLANK_VALIDATOR).required(false).dynamic(true).build();
+    }
+
+    @Override
+    protected Collection<ValidationResult> customValidate(final ValidationContext context) {
+        final List<ValidationResult> results = new ArrayList<>(super.customValidate(context));
+        final String syntax = context.getProperty(ProcessXMLInAvro.EXPRESSION_SYNTAX).getValue();
+        final Set<String> references = new TreeSet<>();
+        for (final Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+            if (!entry.getKey().isDynamic() || entry.getValue() == null) {
+                continue;
+            }
+            final String property = entry.getKey().getName();
+            try {
+                final ExtractionPlan plan = compile(property, entry.getValue(), syntax);
+                if (!references.add(plan.toString())) {
+                    throw new IllegalArgumentException(plan + " is defined twice");
+                }
+            } catch (IllegalArgumentException e) {
+                results.add(new ValidationResult.Builder().subject(property).input(entry.getValue())
+                        .valid(false).explanation(e.getMessage()).build());
+            }
+        }
+        return results;
+    }
+
+    @OnEnabled
+    public void compilePlans(ConfigurationContext context) {
+        final String syntax = context.getProperty(ProcessXMLInAvro.EXPRESSION_SYNTAX).getValue();
+        final Map<String, ExtractionPlan> compiled = new HashMap<>();
+        for (final Map.Entry<PropertyDescriptor, String> entry : context.getProperties().entrySet()) {
+            if (entry.getKey().isDynamic() && entry.getValue() != null) {
+                final ExtractionPlan plan = compile(entry.getKey().getName(), entry.getValue(), syntax);
+                compiled.put(plan.toString(), plan);
+                final ExtractionPlan latest = compiled.get(plan.getName());
+                if (latest == null || latest.getVersion() < plan.getVersion()) {
+                    compiled.put(plan.getName(), plan);
+                }
+            }
+        }
+        plans = Collections.unmodifiableMap(compiled);
+        getLogger().info("Compiled {} extraction plans", new Object[]{getPlanNames().size()});
+    }
+
+    @OnDisabled
+    public void clearPlans() {
+        plans = Collections.emptyMap();
+    }
+
+    @Override
+    public ExtractionPlan getPlan(String reference) {
+        return reference == null ? null : plans.get(reference.trim());
+    }
+
+    @Override
+    public Set<String> getPlanNames() {
+        final Set<String> names = new TreeSet<>();
+        for (Map.Entry<String, ExtractionPlan> entry : plans.entrySet()) {
+            if (entry.getKey().indexOf('@') > 0) {
+                names.add(entry.getKey());
+            }
+        }
+        return names;
+    }
+
+    /**
+     * @throws IllegalArgumentException if the property name is not name[@version] or the definition is not valid
+     */
+    private static ExtractionPlan compile(String property, String definition, String syntax) {
+        final Matcher matcher = REFERENCE.matcher(property.trim());
+        if (!matcher.matches()) {
+            throw new IllegalArgumentException(property + " is not <plan name>[@<version>]");
+        }
+        final int version;
+        try {
+            version = matcher.group(2) == null ? 1 : Integer.parseInt(matcher.group(2));
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(matcher.group(2) + " is not a valid version");
+        }
+        return ExtractionPlan.parse(matcher.group(1), version, syntax, definition);
+    }
+}
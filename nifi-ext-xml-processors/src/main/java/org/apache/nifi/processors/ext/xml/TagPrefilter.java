@@ -0,0 +1,255 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.util.Utf8;
+
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Tells from the raw bytes of a payload whether any of the xpaths of a plan can match, before it is parsed. Each path
+ * needs its last named element step to be present, so the local names of those elements are compiled into one
+ * Aho-Corasick automaton and a payload is only parsed when one of them occurs as a tag name, that is after &lt; or a
+ * namespace prefix and before whitespace, &gt; or /. Names that occur in comments, CDATA or text only cost a parse;
+ * a payload without any of them can not match any path. A DOCTYPE, whose entities could expand to elements, always
+ * counts as a match.
+ */
+public final class TagPrefilter {
+    private static final String DOCTYPE = "!DOCTYPE";
+    private static final Pattern NAME_STEP = Pattern.compile("(?:[A-Za-z_][\\w.\\-]*:)?([A-Za-z_][\\w.\\-]*)");
+    private static final Pattern NODE_TEST = Pattern.compile("(?:text|node)\\(\\)");
+
+    private final Set<String> names;
+    private final int classes;
+    private final int[] byteClass = new int[256]; //模式中出现过的字节各占一类，其余字节为0类
+    private final int[] next; //状态 * classes + 字节类 -> 状态，已展开失败链接
+    private final int[][] matches; //每个状态结束的模式长度，包括失败链接上的
+
+    private TagPrefilter(Set<String> names) {
+        this.names = names;
+        final List<byte[]> patterns = new ArrayList<>();
+        patterns.add(DOCTYPE.getBytes(StandardCharsets.UTF_8));
+        for (String name : names) {
+            patterns.add(name.getBytes(StandardCharsets.UTF_8));
+        }
+        int c = 1;
+        for (byte[] pattern : patterns) {
+            for (byte b : pattern) {
+                if (byteClass[b & 0xff] == 0) {
+                    byteClass[b & 0xff] = c++;
+                }
+            }
+        }
+        classes = c;
+
+        //先建字典树
+        final List<int[]> trie = new ArrayList<>();
+        final List<int[]> ends = new ArrayList<>();
+        trie.add(newState());
+        ends.add(new int[0]);
+        for (byte[] pattern : patterns) {
+            int state = 0;
+            for (byte b : pattern) {
+                final int cls = byteClass[b & 0xff];
+                if (trie.get(state)[cls] < 0) {
+                    trie.get(state)[cls] = trie.size();
+                    trie.add(newState());
+                    ends.add(new int[0]);
+                }
+                state = trie.get(state)[cls];
+            }
+            ends.set(state, append(ends.get(state), pattern.length));
+        }
+
+        //按层补全失败转移，得到确定自动机
+        final int states = trie.size();
+        next = new int[states * classes];
+        matches = new int[states][];
+        final int[] fail = new int[states];
+        final Deque<Integer> queue = new ArrayDeque<>();
+        matches[0] = ends.get(0);
+        for (int cls = 0; cls < classes; cls++) {
+            final int child = trie.get(0)[cls];
+            next[cls] = child < 0 ? 0 : child;
+            if (child > 0) {
+                fail[child] = 0;
+                queue.add(child);
+            }
+        }
+        while (!queue.isEmpty()) {
+            final int state = queue.poll();
+            matches[state] = concat(ends.get(state), matches[fail[state]]);
+            for (int cls = 0; cls < classes; cls++) {
+                final int child = trie.get(state)[cls];
+                if (child < 0) {
+                    next[state * classes + cls] = next[fail[state] * classes + cls];
+                } else {
+                    next[state * classes + cls] = child;
+                    fail[child] = next[fail[state] * classes + cls];
+                    queue.add(child);
+                }
+            }
+        }
+    }
+
+    private int[] newState() {
+        final int[] state = new int[classes];
+        Arrays.fill(state, -1);
+        return state;
+    }
+
+    private static int[] append(int[] a, int v) {
+        final int[] r = Arrays.copyOf(a, a.length + 1);
+        r[a.length] = v;
+        return r;
+    }
+
+    private static int[] concat(int[] a, int[] b) {
+        if (b.length == 0) {
+            return a;
+        }
+        final int[] r = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, r, a.length, b.length);
+        return r;
+    }
+
+    /**
+     * @param xpaths the expressions of every output field, several paths can be joined with #
+     * @return null if a path can not be reduced to a required element, the prefilter can not be used then
+     */
+    public static TagPrefilter compile(Collection<String> xpaths) {
+        final Set<String> names = new TreeSet<>();
+        for (String xpath : xpaths) {
+            for (String part : xpath.split("#")) {
+                for (String branch : stripPredicates(part).split("\\|", -1)) {
+                    final String name = requiredElement(branch);
+                    if (name == null) {
+                        return null;
+                    }
+                    names.add(name);
+                }
+            }
+        }
+        return names.isEmpty() ? null : new TagPrefilter(names);
+    }
+
+    /**
+     * remove [...] predicates, they only narrow a step down; empty if the brackets or quotes do not balance
+     */
+    private static String stripPredicates(String xpath) {
+        final StringBuilder sb = new StringBuilder(xpath.length());
+        int depth = 0;
+        char quote = 0;
+        for (int i = 0; i < xpath.length(); i++) {
+            final char ch = xpath.charAt(i);
+            if (quote != 0) {
+                if (ch == quote) {
+                    quote = 0;
+                }
+            } else if (depth > 0 && (ch == '\'' || ch == '"')) {
+                quote = ch;
+            } else if (ch == '[') {
+                depth++;
+            } else if (ch == ']') {
+                depth--;
+                if (depth < 0) {
+                    return "";
+                }
+            } else if (depth == 0) {
+                sb.append(ch);
+            }
+        }
+        return depth == 0 && quote == 0 ? sb.toString() : "";
+    }
+
+    /**
+     * the local name of the last named element step of a location path, null for anything else
+     * (functions, axes, variables, paths made of wildcards only)
+     */
+    static String requiredElement(String path) {
+        String p = path.trim();
+        final int slash = p.lastIndexOf('/');
+        if (slash >= 0 && NODE_TEST.matcher(p.substring(slash + 1).trim()).matches()) {
+            p = p.substring(0, slash);
+        }
+        if (p.isEmpty() || p.contains("(") || p.contains("::") || p.contains("$")) {
+            return null;
+        }
+        String name = null;
+        for (String step : p.split("/")) {
+            step = step.trim();
+            if (step.isEmpty() || step.startsWith("@") || step.equals(".") || step.equals("..")
+                    || step.equals("*") || step.endsWith(":*")) {
+                continue;
+            }
+            final Matcher matcher = NAME_STEP.matcher(step);
+            if (!matcher.matches()) {
+                return null;
+            }
+            name = matcher.group(1);
+        }
+        return name;
+    }
+
+    /**
+     * the element local names looked for
+     */
+    public Set<String> getNames() {
+        return names;
+    }
+
+    /**
+     * @param xml Utf8 or any CharSequence taken from the record
+     * @return false only if none of the required elements occurs as a tag, so no path can match
+     */
+    public boolean mayMatch(Object xml) {
+        if (xml == null) {
+            return false;
+        }
+        if (xml instanceof Utf8) {
+            final Utf8 utf8 = (Utf8) xml;
+            return mayMatch(utf8.getBytes(), utf8.getByteLength());
+        }
+        final byte[] bytes = xml.toString().getBytes(StandardCharsets.UTF_8);
+        return mayMatch(bytes, bytes.length);
+    }
+
+    public boolean mayMatch(byte[] bytes, int length) {
+        int state = 0;
+        for (int i = 0; i < length; i++) {
+            state = next[state * classes + byteClass[bytes[i] & 0xff]];
+            for (int len : matches[state]) {
+                if (isTag(bytes, length, i - len + 1, i + 1)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * the name at [start, end) follows &lt; or a prefix and ends the name
+     */
+    private static boolean isTag(byte[] bytes, int length, int start, int end) {
+        if (start == 0) {
+            return false;
+        }
+        final byte before = bytes[start - 1];
+        if (before != '<' && before != ':') {
+            return false;
+        }
+        if (end == length) {
+            return true; //截断的内容交给解析器处理
+        }
+        final byte after = bytes[end];
+        return after == '>' || after == '/' || after == ' ' || after == '\t' || after == '\n' || after == '\r';
+    }
+}
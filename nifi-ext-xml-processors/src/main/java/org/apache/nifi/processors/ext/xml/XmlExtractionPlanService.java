@@ -0,0 +1,26 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.controller.ControllerService;
+
+import java.util.Set;
+
+/**
+ * Holds named, versioned extraction plans compiled once and shared by every processor that references the service.
+ */
+@Tags({"XML", "XPath", "extraction plan", "Sha0w"})
+@CapabilityDescription("集中管理XML字段提取方案（输出字段、路径表达式和类型），编译一次后供多个处理器共用")
+public interface XmlExtractionPlanService extends ControllerService {
+
+    /**
+     * @param reference a plan name for its highest version, or name@version for that exact version
+     * @return null if there is no such plan or the service is not enabled
+     */
+    ExtractionPlan getPlan(String reference);
+
+    /**
+     * every plan held by the service as name@version
+     */
+    Set<String> getPlanNames();
+}
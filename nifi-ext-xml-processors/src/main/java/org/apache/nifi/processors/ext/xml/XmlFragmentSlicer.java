@@ -0,0 +1,356 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.util.Utf8;
+
+import java.nio.charset.StandardCharsets;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Finds one element in the raw UTF-8 bytes of an XML payload and returns it as a slice of the original markup,
+ * without building a DOM or re-serializing the subtree the way dom4j asXML() does.
+ * Supports plain child steps with an optional attribute test, for example /product/pub_extend[@pub_type_id="1"].
+ * The slice is the source text verbatim, so it is only returned when it is already written the way asXML() writes
+ * it: double quoted attributes separated by single spaces, &lt;x/&gt; for empty elements, no references except
+ * &amp;amp; &amp;lt; &amp;gt; and no raw &gt; or carriage returns. Documents that declare namespaces or have a DOCTYPE
+ * are never sliced, dom4j resolves their paths and subtrees differently. Otherwise the caller has to fall back to DOM.
+ */
+public class XmlFragmentSlicer {
+    private static final Pattern STEP = Pattern.compile("([A-Za-z_][\\w.\\-]*|\\*)(?:\\[@([A-Za-z_][\\w.\\-]*)\\s*=\\s*(?:\"([^\"&<]*)\"|'([^'&<]*)')\\])?");
+    private static final byte[] ANY = {'*'};
+    private static final byte[] XMLNS = {'x', 'm', 'l', 'n', 's'};
+
+    private final byte[][] names;
+    private final byte[][] attributes;
+    private final byte[][] values;
+
+    private XmlFragmentSlicer(byte[][] names, byte[][] attributes, byte[][] values) {
+        this.names = names;
+        this.attributes = attributes;
+        this.values = values;
+    }
+
+    /**
+     * relative paths are resolved against the root element the same way dom4j does
+     * @return null if the xpath uses anything except child steps with an optional [@attr="value"]
+     */
+    public static XmlFragmentSlicer compile(String xpath) {
+        if (xpath == null) {
+            return null;
+        }
+        String p = xpath.trim();
+        final boolean absolute = p.startsWith("/");
+        if (absolute) {
+            p = p.substring(1);
+        }
+        if (p.isEmpty()) {
+            return null;
+        }
+        final String[] steps = p.split("/(?=(?:[^\"']*[\"'][^\"']*[\"'])*[^\"']*$)", -1);
+        final int offset = absolute ? 0 : 1;
+        final byte[][] names = new byte[steps.length + offset][];
+        final byte[][] attributes = new byte[names.length][];
+        final byte[][] values = new byte[names.length][];
+        if (!absolute) {
+            names[0] = ANY;
+        }
+        for (int i = 0; i < steps.length; i++) {
+            final Matcher m = STEP.matcher(steps[i]);
+            if (!m.matches()) {
+                return null;
+            }
+            names[i + offset] = bytes(m.group(1));
+            if (m.group(2) != null) {
+                attributes[i + offset] = bytes(m.group(2));
+                values[i + offset] = bytes(m.group(3) != null ? m.group(3) : m.group(4));
+            }
+        }
+        return new XmlFragmentSlicer(names, attributes, values);
+    }
+
+    /**
+     * copy the matching element of xml into target
+     * @param xml Utf8 taken from the avro record (scanned in place) or any CharSequence
+     * @return false if the element is absent, the markup could not be scanned or the slice would differ from asXML()
+     */
+    public boolean slice(Object xml, Utf8 target) {
+        final byte[] b;
+        final int len;
+        if (xml instanceof Utf8) {
+            b = ((Utf8) xml).getBytes();
+            len = ((Utf8) xml).getByteLength();
+        } else {
+            b = xml.toString().getBytes(StandardCharsets.UTF_8);
+            len = b.length;
+        }
+        if (indexOf(b, len, XMLNS) >= 0) {
+            return false; //命名空间下dom4j的路径匹配和输出都不同
+        }
+        final long range = find(b, len);
+        if (range < 0) {
+            return false;
+        }
+        final int start = (int) (range >>> 32);
+        final int end = (int) range;
+        if (!canonical(b, start, end)) {
+            return false;
+        }
+        target.setByteLength(end - start);
+        System.arraycopy(b, start, target.getBytes(), 0, end - start);
+        return true;
+    }
+
+    // start << 32 | end of the element, or -1
+    private long find(byte[] b, int len) {
+        int depth = 0;
+        int matched = 0; //当前祖先链上已匹配的步数
+        int start = -1;
+        int i = 0;
+        while (i < len) {
+            if (b[i] != '<') {
+                i++;
+                continue;
+            }
+            final int tagStart = i;
+            if (startsWith(b, len, i, "<!--")) {
+                i = skipPast(b, len, i + 4, "-->");
+            } else if (startsWith(b, len, i, "<![CDATA[")) {
+                i = skipPast(b, len, i + 9, "]]>");
+            } else if (startsWith(b, len, i, "<?")) {
+                i = skipPast(b, len, i + 2, "?>");
+            } else if (startsWith(b, len, i, "<!")) {
+                return -1; //DOCTYPE 中的实体和默认属性只有解析器知道
+            } else if (startsWith(b, len, i, "</")) {
+                i = skipPast(b, len, i + 2, ">");
+                if (i < 0) {
+                    return -1;
+                }
+                if (start >= 0 && depth == names.length) {
+                    return (long) start << 32 | i;
+                }
+                if (matched == depth) {
+                    matched--;
+                }
+                depth--;
+            } else {
+                depth++;
+                final boolean candidate = start < 0 && matched == depth - 1 && depth <= names.length;
+                final int tagEnd = scanStartTag(b, len, i + 1, candidate ? depth - 1 : -1);
+                if (tagEnd == -1) {
+                    return -1;
+                }
+                i = Math.abs(tagEnd);
+                final boolean selfClosing = b[i - 2] == '/';
+                if (candidate && tagEnd > 0) {
+                    matched = depth;
+                    if (matched == names.length) {
+                        if (selfClosing) {
+                            return (long) tagStart << 32 | i;
+                        }
+                        start = tagStart;
+                    }
+                }
+                if (selfClosing) {
+                    if (matched == depth) {
+                        matched--;
+                    }
+                    depth--;
+                }
+            }
+            if (i < 0) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @param step index of the step to test, -1 to only skip the tag
+     * @return index after '&gt;', negated if the tag does not match the step, -1 if the tag is not closed
+     */
+    private int scanStartTag(byte[] b, int len, int i, int step) {
+        final int nameStart = i;
+        while (i < len && !isSpace(b[i]) && b[i] != '>' && b[i] != '/') {
+            i++;
+        }
+        boolean match = step >= 0 && (names[step] == ANY || equals(b, nameStart, i, names[step]));
+        boolean attributeFound = step < 0 || attributes[step] == null;
+        while (i < len && b[i] != '>') {
+            if (isSpace(b[i]) || b[i] == '/') {
+                i++;
+                continue;
+            }
+            final int attrStart = i;
+            while (i < len && b[i] != '=' && !isSpace(b[i]) && b[i] != '>') {
+                i++;
+            }
+            final int attrEnd = i;
+            while (i < len && b[i] != '\'' && b[i] != '"' && b[i] != '>') {
+                i++;
+            }
+            if (i >= len || b[i] == '>') {
+                break;
+            }
+            final byte quote = b[i++];
+            final int valueStart = i;
+            while (i < len && b[i] != quote) {
+                i++;
+            }
+            if (i >= len) {
+                return -1;
+            }
+            if (match && !attributeFound && equals(b, attrStart, attrEnd, attributes[step])) {
+                attributeFound = equals(b, valueStart, i, values[step]);
+            }
+            i++;
+        }
+        if (i >= len) {
+            return -1;
+        }
+        return match && attributeFound ? i + 1 : -(i + 1);
+    }
+
+    /**
+     * true if the element at [start, end) is written exactly as dom4j asXML() would write it again
+     */
+    private static boolean canonical(byte[] b, int start, int end) {
+        int i = start;
+        while (i < end) {
+            final byte c = b[i];
+            if (c == '<') {
+                if (startsWith(b, end, i, "<!--")) {
+                    i = skipPast(b, end, i + 4, "-->");
+                } else if (startsWith(b, end, i, "<![CDATA[")) {
+                    i = skipPast(b, end, i + 9, "]]>");
+                } else if (i + 1 >= end || b[i + 1] == '?' || b[i + 1] == '!') {
+                    return false;
+                } else if (b[i + 1] == '/') {
+                    i = skipName(b, end, i + 2);
+                    if (i >= end || b[i] != '>') {
+                        return false; //</x >
+                    }
+                    i++;
+                } else {
+                    i = canonicalStartTag(b, end, i + 1);
+                    if (i > 0 && b[i - 2] != '/' && startsWith(b, end, i, "</")) {
+                        return false; //<x></x> 会写成 <x/>
+                    }
+                }
+                if (i < 0) {
+                    return false;
+                }
+            } else if (c == '&') {
+                i = reference(b, end, i);
+                if (i < 0) {
+                    return false;
+                }
+            } else if (c == '>' || c == '\r') {
+                return false;
+            } else {
+                i++;
+            }
+        }
+        return true;
+    }
+
+    // index after the start tag whose name begins at i, -1 if it is not in the form asXML() writes
+    private static int canonicalStartTag(byte[] b, int len, int i) {
+        i = skipName(b, len, i);
+        while (i < len) {
+            if (b[i] == '>') {
+                return i + 1;
+            }
+            if (b[i] == '/') {
+                return i + 1 < len && b[i + 1] == '>' ? i + 2 : -1;
+            }
+            if (b[i] != ' ' || i + 1 >= len || b[i + 1] == ' ' || b[i + 1] == '/' || b[i + 1] == '>') {
+                return -1;
+            }
+            i = skipName(b, len, i + 1);
+            if (i + 1 >= len || b[i] != '=' || b[i + 1] != '"') {
+                return -1;
+            }
+            i += 2;
+            while (i < len && b[i] != '"') {
+                if (b[i] == '&') {
+                    i = reference(b, len, i);
+                    if (i < 0) {
+                        return -1;
+                    }
+                } else if (b[i] == '<' || b[i] == '>' || b[i] == '\t' || b[i] == '\n' || b[i] == '\r') {
+                    return -1; //dom4j 会转义或规范化这些字符
+                } else {
+                    i++;
+                }
+            }
+            i++;
+        }
+        return -1;
+    }
+
+    // index after &amp;amp; &amp;lt; or &amp;gt; at i, -1 for any other reference since dom4j writes it differently
+    private static int reference(byte[] b, int len, int i) {
+        if (startsWith(b, len, i, "&amp;") || startsWith(b, len, i, "&lt;") || startsWith(b, len, i, "&gt;")) {
+            return skipPast(b, len, i, ";");
+        }
+        return -1;
+    }
+
+    private static int skipName(byte[] b, int len, int i) {
+        while (i < len && !isSpace(b[i]) && b[i] != '>' && b[i] != '/' && b[i] != '=') {
+            i++;
+        }
+        return i;
+    }
+
+    private static int indexOf(byte[] b, int len, byte[] s) {
+        for (int i = 0; i + s.length <= len; i++) {
+            if (equals(b, i, i + s.length, s)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    private static boolean isSpace(byte c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
+
+    private static boolean equals(byte[] b, int from, int to, byte[] expected) {
+        if (to - from != expected.length) {
+            return false;
+        }
+        for (int i = 0; i < expected.length; i++) {
+            if (b[from + i] != expected[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean startsWith(byte[] b, int len, int i, String prefix) {
+        if (i + prefix.length() > len) {
+            return false;
+        }
+        for (int j = 0; j < prefix.length(); j++) {
+            if (b[i + j] != prefix.charAt(j)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // index after the first s at or after i, -1 if absent
+    private static int skipPast(byte[] b, int len, int i, String s) {
+        for (; i + s.length() <= len; i++) {
+            if (startsWith(b, len, i, s)) {
+                return i + s.length();
+            }
+        }
+        return -1;
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
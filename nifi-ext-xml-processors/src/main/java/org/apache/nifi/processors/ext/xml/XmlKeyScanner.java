@@ -0,0 +1,166 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.util.Utf8;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.util.regex.Pattern;
+
+/**
+ * Streams an XML payload with StAX only until a single node is found and returns its text,
+ * so keys near the top of a large document do not pay for a full dom4j parse.
+ */
+public class XmlKeyScanner {
+    private static final Pattern SIMPLE_STEP = Pattern.compile("[A-Za-z_][\\w.\\-]*");
+    private static final String ANY = "*";
+    private static final XMLInputFactory factory = XMLInputFactory.newInstance();
+
+    static {
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, false);
+        factory.setProperty(XMLInputFactory.IS_COALESCING, true);
+    }
+
+    private XmlKeyScanner() {
+    }
+
+    /**
+     * compile an xpath such as /product/pub_basic/pub_type_id into element steps,
+     * relative paths are resolved against the root element the same way dom4j does
+     * @return null if the xpath uses anything except plain child steps
+     */
+    public static String[] compile(String xpath) {
+        if (xpath == null) {
+            return null;
+        }
+        String p = xpath.trim();
+        boolean absolute = p.startsWith("/");
+        if (absolute) {
+            p = p.substring(1);
+        }
+        if (p.isEmpty()) {
+            return null;
+        }
+        String[] steps = p.split("/", -1);
+        for (String step : steps) {
+            if (!SIMPLE_STEP.matcher(step).matches()) {
+                return null;
+            }
+        }
+        if (absolute) {
+            return steps;
+        }
+        String[] path = new String[steps.length + 1];
+        path[0] = ANY;
+        System.arraycopy(steps, 0, path, 1, steps.length);
+        return path;
+    }
+
+    /**
+     * @param xml Utf8 or any CharSequence taken from the avro record
+     * @return the text of the first matching node, or null if it is absent or the payload can not be streamed
+     */
+    public static String extract(Object xml, String[] path) {
+        if (xml == null || path == null) {
+            return null;
+        }
+        XMLStreamReader reader = null;
+        try {
+            reader = createReader(xml);
+            return scan(reader, path);
+        } catch (XMLStreamException e) {
+            return null;
+        } finally {
+            if (reader != null) {
+                try {
+                    reader.close();
+                } catch (XMLStreamException ignored) {
+                }
+            }
+        }
+    }
+
+    /**
+     * a reader over the raw bytes of a Utf8, or the chars of any other CharSequence, with DTDs disabled
+     */
+    static XMLStreamReader createReader(Object xml) throws XMLStreamException {
+        if (xml instanceof Utf8) {
+            Utf8 utf8 = (Utf8) xml;
+            return factory.createXMLStreamReader(new ByteArrayInputStream(utf8.getBytes(), 0, utf8.getByteLength()), "UTF-8");
+        }
+        return factory.createXMLStreamReader(new StringReader(xml.toString()));
+    }
+
+    /**
+     * a reader over a whole document, the encoding is taken from the XML declaration
+     */
+    static XMLStreamReader createReader(InputStream in) throws XMLStreamException {
+        return factory.createXMLStreamReader(in);
+    }
+
+    private static String scan(XMLStreamReader reader, String[] path) throws XMLStreamException {
+        int depth = 0;
+        int matched = 0; //当前祖先链上已匹配的步数
+        while (reader.hasNext()) {
+            int event = reader.next();
+            if (event == XMLStreamConstants.START_ELEMENT) {
+                depth++;
+                if (matched == depth - 1 && depth <= path.length && matches(reader, path[depth - 1])) {
+                    matched = depth;
+                    if (matched == path.length) {
+                        return readText(reader);
+                    }
+                }
+            } else if (event == XMLStreamConstants.END_ELEMENT) {
+                if (matched == depth) {
+                    matched--;
+                }
+                depth--;
+            }
+        }
+        return null;
+    }
+
+    private static boolean matches(XMLStreamReader reader, String step) {
+        String ns = reader.getNamespaceURI();
+        if (ns != null && !ns.isEmpty()) {
+            return false;
+        }
+        return ANY.equals(step) || step.equals(reader.getLocalName());
+    }
+
+    // same as dom4j Element.getText(): only the direct text children are concatenated
+    private static String readText(XMLStreamReader reader) throws XMLStreamException {
+        StringBuilder sb = new StringBuilder();
+        int nested = 0;
+        while (reader.hasNext()) {
+            int event = reader.next();
+            switch (event) {
+                case XMLStreamConstants.START_ELEMENT:
+                    nested++;
+                    break;
+                case XMLStreamConstants.END_ELEMENT:
+                    if (nested == 0) {
+                        return sb.toString();
+                    }
+                    nested--;
+                    break;
+                case XMLStreamConstants.CHARACTERS:
+                case XMLStreamConstants.CDATA:
+                case XMLStreamConstants.SPACE:
+                    if (nested == 0) {
+                        sb.append(reader.getText());
+                    }
+                    break;
+                default:
+                    break;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,183 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.util.Utf8;
+import org.dom4j.Document;
+import org.dom4j.io.SAXContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+
+import javax.xml.XMLConstants;
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParserFactory;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.transform.stax.StAXSource;
+import javax.xml.transform.stream.StreamSource;
+import javax.xml.validation.Schema;
+import javax.xml.validation.SchemaFactory;
+import javax.xml.validation.Validator;
+import javax.xml.validation.ValidatorHandler;
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Validates XML payloads against an XSD while they are parsed, so validation costs no extra pass.
+ * Compiled schemas are shared by all processors in a small LRU cache keyed by the path, modification time and size
+ * of the XSD file, so an edited file is compiled again and old versions are evicted; files pulled in with
+ * xs:include or xs:import are not part of the key. Validators are not thread safe, idle ones are pooled per
+ * instance and dropped with {@link #close()}.
+ */
+public class XmlSchemaValidator {
+    static final int MAX_CACHED_SCHEMAS = 16;
+    private static final Map<String, Schema> schemas = new SchemaCache();
+    private static final SAXParserFactory parserFactory = SAXParserFactory.newInstance();
+
+    static {
+        parserFactory.setNamespaceAware(true);
+        try {
+            parserFactory.setFeature("http://apache.org/xml/features/disallow-doctype-decl", true);
+        } catch (ParserConfigurationException | SAXException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private final Schema schema;
+    private final Queue<Validator> validators = new ConcurrentLinkedQueue<>();
+    private final Queue<ValidatingReader> readers = new ConcurrentLinkedQueue<>();
+
+    private XmlSchemaValidator(Schema schema) {
+        this.schema = schema;
+    }
+
+    /**
+     * @throws SAXException if the file is not a valid XSD
+     */
+    public static XmlSchemaValidator load(String path) throws IOException, SAXException {
+        final File file = new File(path).getCanonicalFile();
+        final String key = file.getPath() + "|" + file.lastModified() + "|" + file.length();
+        Schema schema;
+        synchronized (schemas) {
+            schema = schemas.get(key);
+        }
+        if (schema == null) {
+            final SchemaFactory factory = SchemaFactory.newInstance(XMLConstants.W3C_XML_SCHEMA_NS_URI);
+            //systemId 用于解析相对路径的 include/import
+            schema = factory.newSchema(new StreamSource(file));
+            synchronized (schemas) {
+                final Schema existing = schemas.get(key);
+                if (existing != null) {
+                    schema = existing;
+                } else {
+                    schemas.put(key, schema);
+                }
+            }
+        }
+        return new XmlSchemaValidator(schema);
+    }
+
+    /**
+     * number of distinct compiled schemas held by the cache
+     */
+    public static int cachedSchemaCount() {
+        synchronized (schemas) {
+            return schemas.size();
+        }
+    }
+
+    /**
+     * drop the idle validators, call when the processor stops
+     */
+    public void close() {
+        validators.clear();
+        readers.clear();
+    }
+
+    public Schema getSchema() {
+        return schema;
+    }
+
+    /**
+     * parse a Utf8 or any other CharSequence into a dom4j document, validating it on the way
+     * @throws SAXException if the payload is not well formed or not valid
+     */
+    public Document parse(Object xml) throws SAXException, IOException {
+        ValidatingReader reader = readers.poll();
+        if (reader == null) {
+            reader = new ValidatingReader(schema.newValidatorHandler());
+        }
+        final SAXContentHandler document = new SAXContentHandler();
+        reader.handler.setContentHandler(document);
+        try {
+            reader.reader.parse(inputSource(xml));
+        } finally {
+            reader.handler.setContentHandler(null);
+            readers.offer(reader);
+        }
+        return document.getDocument();
+    }
+
+    /**
+     * validate by pulling every event from reader, a caller that wraps the reader sees each event once
+     * @throws SAXException if the payload is not well formed or not valid
+     */
+    public void validate(XMLStreamReader reader) throws SAXException, IOException {
+        Validator validator = validators.poll();
+        if (validator == null) {
+            validator = schema.newValidator();
+        }
+        try {
+            validator.validate(new StAXSource(reader));
+        } finally {
+            validator.reset();
+            validators.offer(validator);
+        }
+    }
+
+    private static InputSource inputSource(Object xml) {
+        if (xml instanceof Utf8) {
+            final Utf8 utf8 = (Utf8) xml;
+            final InputSource source = new InputSource(new ByteArrayInputStream(utf8.getBytes(), 0, utf8.getByteLength()));
+            source.setEncoding("UTF-8");
+            return source;
+        }
+        return new InputSource(new StringReader(xml.toString()));
+    }
+
+    /**
+     * SAX 解析器把事件交给校验器，校验器再转发给 dom4j
+     */
+    private static final class ValidatingReader {
+        private final ValidatorHandler handler;
+        private final XMLReader reader;
+
+        private ValidatingReader(ValidatorHandler handler) {
+            this.handler = handler;
+            try {
+                reader = parserFactory.newSAXParser().getXMLReader();
+            } catch (ParserConfigurationException | SAXException e) {
+                throw new IllegalStateException(e);
+            }
+            reader.setContentHandler(handler);
+        }
+    }
+
+    // 按访问顺序淘汰的已编译XSD
+    private static final class SchemaCache extends LinkedHashMap<String, Schema> {
+        private static final long serialVersionUID = 1L;
+
+        private SchemaCache() {
+            super(16, 0.75f, true);
+        }
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Schema> eldest) {
+            return size() > MAX_CACHED_SCHEMAS;
+        }
+    }
+}
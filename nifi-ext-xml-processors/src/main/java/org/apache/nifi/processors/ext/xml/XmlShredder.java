@@ -0,0 +1,250 @@
+package org.apache.nifi.processors.ext.xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericRecord;
+import org.dom4j.Attribute;
+import org.dom4j.Element;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Maps an XML subtree to a nested avro record: elements with children or attributes become records,
+ * leaf elements become nullable strings and elements that repeat under one parent become arrays.
+ * The schema is inferred from sample subtrees with {@link #sample(Element)} and then used by {@link #convert}.
+ * Elements and attributes that were never sampled are skipped; {@link #learn(Element)} merges a subtree into the
+ * samples when the current schema does not cover it. Sampling is synchronized, one shredder can be shared.
+ */
+public class XmlShredder {
+    public static final String TEXT_FIELD = "_text";
+    static final String XML_NAME = "xml.name";
+    static final String XML_ATTRIBUTE = "xml.attribute";
+
+    private final String namespace;
+    private Shape root;
+
+    /**
+     * @param namespace avro namespace of the generated records, must differ between subtrees of one output schema
+     */
+    public XmlShredder(String namespace) {
+        this.namespace = namespace;
+    }
+
+    public synchronized void sample(Element element) {
+        if (element == null) {
+            return;
+        }
+        if (root == null) {
+            root = new Shape(element.getName());
+        }
+        root.merge(element);
+    }
+
+    public synchronized boolean hasSamples() {
+        return root != null;
+    }
+
+    /**
+     * sample the subtree if it has elements, attributes, text or repetitions the schema does not have yet
+     * @return true if the schema changed
+     */
+    public synchronized boolean learn(Element element) {
+        if (element == null || root != null && root.covers(element)) {
+            return false;
+        }
+        sample(element);
+        return true;
+    }
+
+    /**
+     * @return nullable record schema of the sampled subtrees
+     */
+    public synchronized Schema schema() {
+        final Set<String> recordNames = new HashSet<>();
+        return nullable(root.toSchema(namespace, Shape.unique(recordNames, avroName(root.name)), recordNames));
+    }
+
+    public static GenericRecord convert(Element element, Schema nullableSchema) {
+        return element == null ? null : convertRecord(element, nonNull(nullableSchema));
+    }
+
+    private static GenericRecord convertRecord(Element element, Schema schema) {
+        final GenericRecord rec = new GenericData.Record(schema);
+        Map<String, List<Element>> children = null;
+        for (Schema.Field field : schema.getFields()) {
+            final String attribute = field.getProp(XML_ATTRIBUTE);
+            if (attribute != null) {
+                rec.put(field.pos(), element.attributeValue(attribute));
+                continue;
+            }
+            if (TEXT_FIELD.equals(field.name())) {
+                rec.put(field.pos(), element.getText());
+                continue;
+            }
+            if (children == null) {
+                children = childrenByName(element);
+            }
+            final List<Element> matched = children.get(field.getProp(XML_NAME));
+            if (matched == null) {
+                continue;
+            }
+            final Schema type = nonNull(field.schema());
+            if (type.getType() == Schema.Type.ARRAY) {
+                final List<Object> items = new ArrayList<>(matched.size());
+                for (Element child : matched) {
+                    items.add(convertValue(child, type.getElementType()));
+                }
+                rec.put(field.pos(), items);
+            } else {
+                rec.put(field.pos(), convertValue(matched.get(0), type));
+            }
+        }
+        return rec;
+    }
+
+    private static Object convertValue(Element element, Schema schema) {
+        final Schema type = nonNull(schema);
+        return type.getType() == Schema.Type.RECORD ? convertRecord(element, type) : element.getText();
+    }
+
+    private static Map<String, List<Element>> childrenByName(Element element) {
+        final Map<String, List<Element>> children = new HashMap<>();
+        for (Object o : element.elements()) {
+            final Element child = (Element) o;
+            List<Element> list = children.get(child.getName());
+            if (list == null) {
+                list = new ArrayList<>(1);
+                children.put(child.getName(), list);
+            }
+            list.add(child);
+        }
+        return children;
+    }
+
+    private static Schema nullable(Schema schema) {
+        return Schema.createUnion(Schema.create(Schema.Type.NULL), schema);
+    }
+
+    private static Schema nonNull(Schema schema) {
+        return schema.getType() == Schema.Type.UNION ? schema.getTypes().get(1) : schema;
+    }
+
+    private static String avroName(String xmlName) {
+        final String name = xmlName.replaceAll("[^A-Za-z0-9_]", "_");
+        return Character.isDigit(name.charAt(0)) ? "_" + name : name;
+    }
+
+    // 采样得到的元素结构
+    private static final class Shape {
+        private final String name;
+        private final Set<String> attributes = new LinkedHashSet<>();
+        private final Map<String, Shape> children = new LinkedHashMap<>();
+        private boolean repeated;
+        private boolean text;
+
+        private Shape(String name) {
+            this.name = name;
+        }
+
+        private void merge(Element element) {
+            for (Object o : element.attributes()) {
+                attributes.add(((Attribute) o).getName());
+            }
+            final Map<String, Integer> counts = new HashMap<>();
+            for (Object o : element.elements()) {
+                final Element child = (Element) o;
+                Shape shape = children.get(child.getName());
+                if (shape == null) {
+                    shape = new Shape(child.getName());
+                    children.put(child.getName(), shape);
+                }
+                shape.merge(child);
+                final int count = counts.containsKey(child.getName()) ? counts.get(child.getName()) + 1 : 1;
+                counts.put(child.getName(), count);
+                if (count > 1) {
+                    shape.repeated = true;
+                }
+            }
+            if (!element.getTextTrim().isEmpty()) {
+                text = true;
+            }
+        }
+
+        private boolean covers(Element element) {
+            for (Object o : element.attributes()) {
+                if (!attributes.contains(((Attribute) o).getName())) {
+                    return false;
+                }
+            }
+            if (!text && !children.isEmpty() && !element.getTextTrim().isEmpty()) {
+                return false; //没有 _text 字段
+            }
+            final Map<String, Integer> counts = new HashMap<>();
+            for (Object o : element.elements()) {
+                final Element child = (Element) o;
+                final Shape shape = children.get(child.getName());
+                if (shape == null) {
+                    return false;
+                }
+                final int count = counts.containsKey(child.getName()) ? counts.get(child.getName()) + 1 : 1;
+                counts.put(child.getName(), count);
+                if (count > 1 && !shape.repeated || !shape.covers(child)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private boolean isLeaf() {
+            return children.isEmpty() && attributes.isEmpty();
+        }
+
+        /**
+         * @param recordNames record names already defined in this schema, recordName included
+         */
+        private Schema toSchema(String namespace, String recordName, Set<String> recordNames) {
+            if (isLeaf()) {
+                return Schema.create(Schema.Type.STRING);
+            }
+            final List<Schema.Field> fields = new ArrayList<>();
+            final Set<String> used = new LinkedHashSet<>();
+            used.add(TEXT_FIELD);
+            for (String attribute : attributes) {
+                final Schema.Field field = new Schema.Field(unique(used, "_" + avroName(attribute)),
+                        nullable(Schema.create(Schema.Type.STRING)), null, (Object) null);
+                field.addProp(XML_ATTRIBUTE, attribute);
+                fields.add(field);
+            }
+            if (text || children.isEmpty()) {
+                fields.add(new Schema.Field(TEXT_FIELD, nullable(Schema.create(Schema.Type.STRING)), null, (Object) null));
+            }
+            for (Shape child : children.values()) {
+                final String fieldName = unique(used, avroName(child.name));
+                //子节点 a_b 与 a 下的 b 会拼出同名记录
+                Schema type = child.toSchema(namespace, unique(recordNames, recordName + "_" + fieldName), recordNames);
+                if (child.repeated) {
+                    type = Schema.createArray(type);
+                }
+                final Schema.Field field = new Schema.Field(fieldName, nullable(type), null, (Object) null);
+                field.addProp(XML_NAME, child.name);
+                fields.add(field);
+            }
+            return Schema.createRecord(recordName, null, namespace, false, fields);
+        }
+
+        private static String unique(Set<String> used, String name) {
+            String candidate = name;
+            for (int i = 2; !used.add(candidate); i++) {
+                candidate = name + "_" + i;
+            }
+            return candidate;
+        }
+    }
+}
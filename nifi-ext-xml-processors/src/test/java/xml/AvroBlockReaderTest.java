@@ -0,0 +1,73 @@
+package xml;
+
+import org.apache.avro.file.CodecFactory;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.processors.ext.xml.AvroBlockReader;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.fail;
+
+public class AvroBlockReaderTest {
+
+    private static byte[] container(CodecFactory codec, int records) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(TestData.INPUT_SCHEMA))) {
+            writer.setCodec(codec);
+            writer.setSyncInterval(2048); //每个数据块只有几条记录
+            writer.create(TestData.INPUT_SCHEMA, out);
+            GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+            for (int i = 0; i < records; i++) {
+                rec.put("id", String.valueOf(i));
+                rec.put("product_xml", TestData.productXml(i, i % 3 + 1));
+                writer.append(rec);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    private static void assertReadsInOrder(byte[] content, ExecutorService executor, int records) throws IOException {
+        AvroBlockReader reader = new AvroBlockReader(new ByteArrayInputStream(content), executor, 3);
+        assertEquals(TestData.INPUT_SCHEMA, reader.getSchema());
+        for (int i = 0; i < records; i++) {
+            GenericRecord rec = reader.next();
+            assertEquals(String.valueOf(i), rec.get("id").toString());
+            assertEquals(TestData.productXml(i, i % 3 + 1), rec.get("product_xml").toString());
+        }
+        assertFalse(reader.hasNext());
+        reader.close();
+    }
+
+    @Test
+    public void testParallelBlocksKeepFileOrder() throws IOException {
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            for (CodecFactory codec : new CodecFactory[]{CodecFactory.nullCodec(), CodecFactory.deflateCodec(6), CodecFactory.snappyCodec(),
+                    CodecFactory.bzip2Codec(), CodecFactory.xzCodec(1)}) {
+                byte[] content = container(codec, 1000);
+                assertReadsInOrder(content, executor, 1000);
+                assertReadsInOrder(content, null, 1000);
+            }
+            assertReadsInOrder(container(CodecFactory.deflateCodec(1), 0), executor, 0);
+        } finally {
+            executor.shutdownNow();
+        }
+
+        try {
+            new AvroBlockReader(new ByteArrayInputStream("not avro".getBytes("UTF-8")), null, 1);
+            fail();
+        } catch (IOException e) {
+            assertEquals("Not a data file.", e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,169 @@
+package xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.processors.ext.xml.AvroXmlWriter;
+import org.apache.nifi.processors.ext.xml.ConvertAvroToXML;
+import org.apache.nifi.processors.ext.xml.ProcessXMLInAvro;
+import org.apache.nifi.processors.ext.xml.SeparateAvroByXML;
+import org.apache.nifi.processors.ext.xml.SplitXMLToAvro;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.DocumentHelper;
+import org.dom4j.Node;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+public class ConvertAvroToXMLTest {
+
+    private static Document parse(MockFlowFile ff) throws DocumentException {
+        return DocumentHelper.parseText(new String(ff.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    @Test
+    public void testRoundTripThroughSplitXMLToAvro() throws IOException {
+        TestRunner extract = TestRunners.newTestRunner(new ProcessXMLInAvro());
+        extract.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+        extract.setProperty("pub_id", "/product/pub_basic/pub_id");
+        extract.setProperty("doi", "/product/pub_extend/doi");
+        extract.enqueue(TestData.avro(30, 3));
+        extract.run();
+        byte[] extracted = extract.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray();
+
+        TestRunner convert = TestRunners.newTestRunner(new ConvertAvroToXML());
+        convert.enqueue(extracted);
+        convert.enqueue(extracted);
+        convert.run();
+        convert.assertAllFlowFilesTransferred(ConvertAvroToXML.REL_SUCCESS, 2);
+        MockFlowFile xml = convert.getFlowFilesForRelationship(ConvertAvroToXML.REL_SUCCESS).get(1);
+        xml.assertAttributeEquals("record.count", "30");
+
+        TestRunner split = TestRunners.newTestRunner(new SplitXMLToAvro());
+        split.setProperty(SplitXMLToAvro.RECORD_ELEMENT, "record");
+        split.setProperty("pub_id", "/record/pub_id");
+        split.setProperty("doi", "/record/doi");
+        split.enqueue(xml.toByteArray());
+        split.run();
+        List<GenericRecord> expected = TestData.read(extracted);
+        List<GenericRecord> actual = TestData.read(split.getFlowFilesForRelationship(SplitXMLToAvro.REL_SUCCESS).get(0).toByteArray());
+        assertEquals(expected.size(), actual.size());
+        for (int i = 0; i < expected.size(); i++) {
+            assertEquals(expected.get(i).get("pub_id").toString(), actual.get(i).get("pub_id").toString());
+            assertEquals(expected.get(i).get("doi").toString(), actual.get(i).get("doi").toString());
+        }
+    }
+
+    @Test
+    public void testRawAndNestedXmlFields() throws IOException, DocumentException {
+        TestRunner separate = SeparateAvroByXMLTest.newRunner();
+        separate.enqueue(TestData.avro(6, 2));
+        separate.run();
+        TestRunner nested = SeparateAvroByXMLTest.newRunner();
+        nested.setProperty(SeparateAvroByXML.SUBTREE_FORMAT, SeparateAvroByXML.SUBTREE_NESTED);
+        nested.enqueue(TestData.avro(6, 2));
+        nested.run();
+
+        TestRunner convert = TestRunners.newTestRunner(new ConvertAvroToXML());
+        convert.setProperty(ConvertAvroToXML.RAW_XML_FIELDS, "xmlCommonField, xmlUniqueField");
+        for (MockFlowFile ff : separate.getFlowFilesForRelationship(SeparateAvroByXML.REL_SUCCESS)) {
+            convert.enqueue(ff.toByteArray());
+        }
+        for (MockFlowFile ff : nested.getFlowFilesForRelationship(SeparateAvroByXML.REL_SUCCESS)) {
+            convert.enqueue(ff.toByteArray());
+        }
+        convert.run();
+        convert.assertAllFlowFilesTransferred(ConvertAvroToXML.REL_SUCCESS, 4);
+        for (MockFlowFile ff : convert.getFlowFilesForRelationship(ConvertAvroToXML.REL_SUCCESS)) {
+            Document doc = parse(ff);
+            List<Node> records = doc.selectNodes("/records/record");
+            assertEquals(3, records.size());
+            for (Node record : records) {
+                String id = record.valueOf("id");
+                assertEquals(id, record.valueOf("xmlCommonField/pub_basic/pub_id | xmlCommonField/pub_id"));
+                assertEquals("10.1000/" + id, record.valueOf("xmlUniqueField/pub_extend/doi | xmlUniqueField/doi"));
+                //原始片段中的属性，嵌套记录中按属性还原
+                assertEquals(record.valueOf("type"), record.valueOf("xmlUniqueField/pub_extend/@pub_type_id | xmlUniqueField/@pub_type_id"));
+            }
+        }
+    }
+
+    @Test
+    public void testDocumentPerRecordEscapesValues() throws IOException, DocumentException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(TestData.INPUT_SCHEMA))) {
+            writer.create(TestData.INPUT_SCHEMA, out);
+            GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+            rec.put("id", "a & <b>\u0001");
+            rec.put("product_xml", "<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n" + TestData.productXml(1, 1));
+            writer.append(rec);
+            rec.put("id", "2");
+            rec.put("product_xml", "\uFEFF" + TestData.productXml(2, 1));
+            writer.append(rec);
+        }
+        TestRunner convert = TestRunners.newTestRunner(new ConvertAvroToXML());
+        convert.setProperty(ConvertAvroToXML.OUTPUT_MODE, ConvertAvroToXML.OUTPUT_PER_RECORD);
+        convert.setProperty(ConvertAvroToXML.RECORD_ELEMENT, "row");
+        convert.setProperty(ConvertAvroToXML.RAW_XML_FIELDS, "product_xml");
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put("filename", "products.avro");
+        convert.enqueue(out.toByteArray(), attributes);
+        convert.enqueue("not avro");
+        convert.run();
+        convert.assertTransferCount(ConvertAvroToXML.REL_FAILURE, 1);
+        List<MockFlowFile> documents = convert.getFlowFilesForRelationship(ConvertAvroToXML.REL_SUCCESS);
+        assertEquals(2, documents.size());
+        Document first = parse(documents.get(0));
+        assertEquals("a & <b> ", first.valueOf("/row/id"));
+        assertEquals("1", first.valueOf("/row/product_xml/product/pub_basic/pub_id"));
+        documents.get(0).assertAttributeEquals("fragment.index", "0");
+        documents.get(1).assertAttributeEquals("fragment.count", "2");
+        documents.get(1).assertAttributeEquals("filename", "products.avro");
+        assertEquals("2", parse(documents.get(1)).valueOf("/row/product_xml/product/pub_basic/pub_id"));
+    }
+
+    @Test
+    public void testUnpairedSurrogatesBecomeSpaces() throws Exception {
+        AvroXmlWriter writer = new AvroXmlWriter("rows", "row", Collections.singleton("product_xml"));
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writer.startDocument(out);
+        GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+        rec.put("id", "a\uD800b\uD83D\uDE00c\uDC00");
+        rec.put("product_xml", "<x>\uDBFF</x>");
+        writer.write(rec);
+        writer.endDocument();
+        Document doc = DocumentHelper.parseText(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals("a b\uD83D\uDE00c ", doc.valueOf("/rows/row/id"));
+        assertEquals(" ", doc.valueOf("/rows/row/product_xml/x"));
+
+        //属性值和map的key同样替换
+        Schema schema = new Schema.Parser().parse("{\"type\":\"record\",\"name\":\"row\",\"fields\":["
+                + "{\"name\":\"lang\",\"type\":\"string\",\"xml.attribute\":\"lang\"},"
+                + "{\"name\":\"extra\",\"type\":{\"type\":\"map\",\"values\":\"string\"}}]}");
+        writer = new AvroXmlWriter("rows", "row", Collections.<String>emptySet());
+        out = new ByteArrayOutputStream();
+        writer.startDocument(out);
+        rec = new GenericData.Record(schema);
+        rec.put("lang", "e\uDC00n\u0001");
+        rec.put("extra", Collections.singletonMap("k\uD800", "v"));
+        writer.write(rec);
+        writer.endDocument();
+        doc = DocumentHelper.parseText(new String(out.toByteArray(), StandardCharsets.UTF_8));
+        assertEquals("e n ", doc.valueOf("/rows/row/@lang"));
+        assertEquals("k ", doc.valueOf("/rows/row/extra/entry/@key"));
+    }
+}
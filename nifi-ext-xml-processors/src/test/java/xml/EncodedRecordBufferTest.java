@@ -0,0 +1,115 @@
+package xml;
+
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.io.DecoderFactory;
+import org.apache.nifi.processors.ext.xml.DirectBufferArena;
+import org.apache.nifi.processors.ext.xml.EncodedRecordBuffer;
+import org.apache.nifi.util.MockComponentLog;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class EncodedRecordBufferTest {
+
+    @Test
+    public void testRoundTripAcrossChunks() throws IOException {
+        EncodedRecordBuffer buffer = new EncodedRecordBuffer(new DirectBufferArena(64L << 20, new MockComponentLog("arena", this)));
+        EncodedRecordBuffer.RecordEncoder encoder = new EncodedRecordBuffer.RecordEncoder(TestData.INPUT_SCHEMA);
+        GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+        StringBuilder big = new StringBuilder();
+        while (big.length() < 300 * 1024) {
+            big.append(TestData.productXml(big.length(), 1));
+        }
+        int records = 2000;
+        for (int i = 0; i < records; i++) {
+            rec.put("id", String.valueOf(i));
+            rec.put("product_xml", i == 1000 ? big.toString() : TestData.productXml(i, 2));
+            encoder.encode(rec, buffer);
+        }
+        assertEquals(records, buffer.getRecordCount());
+
+        GenericDatumReader<GenericRecord> reader = new GenericDatumReader<>(TestData.INPUT_SCHEMA);
+        EncodedRecordBuffer.Cursor cursor = buffer.cursor();
+        GenericRecord out = null;
+        for (int i = 0; i < records; i++) {
+            ByteBuffer encoded = cursor.next();
+            out = reader.read(out, DecoderFactory.get().binaryDecoder(encoded.array(), encoded.position(), encoded.remaining(), null));
+            assertEquals(String.valueOf(i), out.get("id").toString());
+            assertEquals(i == 1000 ? big.length() : TestData.productXml(i, 2).length(), out.get("product_xml").toString().length());
+        }
+        assertFalse(cursor.hasNext());
+        buffer.release();
+    }
+
+    @Test
+    public void testSmallBuffersStartSmall() throws IOException {
+        BufferPoolMXBean direct = null;
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                direct = pool;
+            }
+        }
+        EncodedRecordBuffer.RecordEncoder encoder = new EncodedRecordBuffer.RecordEncoder(TestData.INPUT_SCHEMA);
+        GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+        rec.put("id", "1");
+        rec.put("product_xml", TestData.productXml(1, 1));
+        // 高基数分区：每个键只有一条记录
+        DirectBufferArena arena = new DirectBufferArena(64L << 20, new MockComponentLog("arena", this));
+        List<EncodedRecordBuffer> buffers = new ArrayList<>();
+        long before = direct.getMemoryUsed();
+        for (int i = 0; i < 2000; i++) {
+            EncodedRecordBuffer buffer = new EncodedRecordBuffer(arena);
+            encoder.encode(rec, buffer);
+            buffers.add(buffer);
+        }
+        assertTrue(direct.getMemoryUsed() - before <= 2000L * 8 * 1024);
+        for (EncodedRecordBuffer buffer : buffers) {
+            assertEquals(1, buffer.getRecordCount());
+            buffer.release();
+        }
+    }
+
+    @Test
+    public void testArenaIsBoundedAndReleased() throws IOException {
+        EncodedRecordBuffer.RecordEncoder encoder = new EncodedRecordBuffer.RecordEncoder(TestData.INPUT_SCHEMA);
+        GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+        rec.put("id", "1");
+        rec.put("product_xml", TestData.productXml(1, 1));
+        MockComponentLog log = new MockComponentLog("arena", this);
+        DirectBufferArena arena = new DirectBufferArena(1L << 20, log);
+        List<EncodedRecordBuffer> buffers = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            EncodedRecordBuffer buffer = new EncodedRecordBuffer(arena);
+            encoder.encode(rec, buffer);
+            buffers.add(buffer);
+        }
+        // 200 个 8 KB 的块超过 1 MB 上限，其余的用堆内存
+        assertEquals(128L * 8 * 1024, arena.getDirectBytes());
+        assertEquals(1, log.getWarnMessages().size());
+        for (EncodedRecordBuffer buffer : buffers) {
+            buffer.release();
+        }
+        // 空闲的块最多保留上限的四分之一
+        assertEquals(256L * 1024, arena.getPooledBytes());
+        assertEquals(256L * 1024, arena.getDirectBytes());
+
+        EncodedRecordBuffer inUse = new EncodedRecordBuffer(arena);
+        encoder.encode(rec, inUse);
+        arena.close();
+        assertEquals(8L * 1024, arena.getDirectBytes());
+        assertEquals(0, arena.getPooledBytes());
+        inUse.release();
+        assertEquals(0, arena.getDirectBytes());
+    }
+}
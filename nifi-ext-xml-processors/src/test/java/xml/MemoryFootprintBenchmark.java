@@ -0,0 +1,284 @@
+package xml;
+
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processors.ext.xml.ProcessXMLInAvro;
+import org.apache.nifi.processors.ext.xml.SeparateAvroByXML;
+import org.apache.nifi.processors.ext.xml.SeparateAvroInXML;
+import org.apache.nifi.processors.ext.xml.SplitXMLToAvro;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.lang.management.BufferPoolMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Heap footprint and allocation of the processors on a small and a four times larger synthetic input, run with
+ * the perf profile: mvn test -Pperf. onTrigger runs on the test thread so the ThreadMXBean counters of this
+ * thread and the pipeline workers cover everything the processor allocates. A sampler thread forces a GC every
+ * few milliseconds and keeps the highest heap still in use above the heap measured once the input is queued,
+ * less the output content the mock holds in memory, and likewise the highest direct memory, where grouped
+ * records are buffered.
+ * <p>
+ * Every processor must allocate about the same number of bytes per record at both sizes. Modes that are supposed
+ * to stream must not retain more heap or direct memory on the larger input; ProcessXMLInAvro keeps one result map
+ * per record until it writes Avro and is only reported there, its Parquet output streams. SeparateAvroByXML learns
+ * the schema of a type from all of its records, so it holds the whole input off-heap and only its heap is checked.
+ * perf.memory.records sets the small input size, default 20000.
+ */
+public class MemoryFootprintBenchmark {
+    private static final int SAMPLE_MILLIS = 20;
+    private static final double ALLOCATION_GROWTH = 1.5;
+    //较大输入上多保留的堆或堆外内存，相对两次输入大小之差的上限
+    private static final double RETAINED_GROWTH = 0.25;
+    private static final long NOISE_BYTES = 6L << 20;
+
+    private static final com.sun.management.ThreadMXBean threads =
+            (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+    private static final MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+    private static int smallRecords;
+
+    private interface RunnerFactory {
+        TestRunner create();
+    }
+
+    private interface InputFactory {
+        byte[] create(int records) throws Exception;
+    }
+
+    /**
+     * one measured run
+     */
+    private static final class Footprint {
+        private final int records;
+        private final long inputBytes;
+        private final long allocatedPerRecord;
+        private final long retained;
+        private final long direct;
+
+        private Footprint(int records, long inputBytes, long allocated, long retained, long direct) {
+            this.records = records;
+            this.inputBytes = inputBytes;
+            this.allocatedPerRecord = allocated / records;
+            this.retained = retained;
+            this.direct = direct;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%8d records %8.1f MB input %8d B/record allocated %8.1f MB retained %8.1f MB direct",
+                    records, inputBytes / 1048576.0, allocatedPerRecord, retained / 1048576.0, direct / 1048576.0);
+        }
+    }
+
+    /**
+     * 强制GC并记录仍在使用的堆和堆外内存的最大值
+     */
+    private static final class Sampler extends Thread {
+        private volatile boolean running = true;
+        private long peakHeap;
+        private long peakDirect;
+
+        private Sampler() {
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                sample();
+                try {
+                    Thread.sleep(SAMPLE_MILLIS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        private void sample() {
+            final long heap = usedHeapAfterGc();
+            final long direct = directMemory();
+            synchronized (this) {
+                peakHeap = Math.max(peakHeap, heap);
+                peakDirect = Math.max(peakDirect, direct);
+            }
+        }
+
+        private void finish() throws InterruptedException {
+            running = false;
+            interrupt();
+            join();
+            sample();
+        }
+    }
+
+    @BeforeClass
+    public static void checkSupport() {
+        smallRecords = Integer.getInteger("perf.memory.records", 20000);
+        assertTrue("thread allocation counters are not supported by this JVM", threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+    }
+
+    @Test
+    public void testSeparateAvroInXML() throws Exception {
+        for (final String mode : new String[]{SeparateAvroInXML.KEY_EXTRACT_FULL, SeparateAvroInXML.KEY_EXTRACT_STREAMING}) {
+            //分组缓存在堆外，堆内占用不应随输入增长
+            check("SeparateAvroInXML " + mode, true, true, SeparateAvroInXML.REL_SUCCESS, () -> {
+                TestRunner runner = TestRunners.newTestRunner(new SeparateAvroInXML());
+                runner.setProperty(SeparateAvroInXML.XML_DECODE_FIELD, "product_xml");
+                runner.setProperty(SeparateAvroInXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+                runner.setProperty(SeparateAvroInXML.KEY_EXTRACT_MODE, mode);
+                runner.setProperty(SeparateAvroInXML.MAX_RECORDS_PER_FLOWFILE, "1000");
+                return runner;
+            }, records -> TestData.avro(records, 3));
+        }
+    }
+
+    @Test
+    public void testSeparateAvroByXML() throws Exception {
+        //类型多一些，单个输出在mock中的缓冲不随输入增长太多；每个类型的记录都缓存在堆外
+        check("SeparateAvroByXML", true, false, SeparateAvroByXML.REL_SUCCESS, SeparateAvroByXMLTest::newRunner,
+                records -> TestData.avro(records, 40));
+    }
+
+    @Test
+    public void testSplitXMLToAvro() throws Exception {
+        check("SplitXMLToAvro", true, true, SplitXMLToAvro.REL_SUCCESS, () -> {
+            TestRunner runner = TestRunners.newTestRunner(new SplitXMLToAvro());
+            runner.setProperty(SplitXMLToAvro.RECORD_ELEMENT, "product");
+            runner.setProperty(SplitXMLToAvro.RECORDS_PER_FLOWFILE, "1000");
+            runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+            runner.setProperty("doi", "/product/pub_extend/doi");
+            return runner;
+        }, records -> {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<products>\n".getBytes(StandardCharsets.UTF_8));
+            for (int i = 0; i < records; i++) {
+                out.write(TestData.productXml(i, i % 3 + 1).getBytes(StandardCharsets.UTF_8));
+            }
+            out.write("</products>\n".getBytes(StandardCharsets.UTF_8));
+            return out.toByteArray();
+        });
+    }
+
+    @Test
+    public void testProcessXMLInAvro() throws Exception {
+        //每条记录的结果都保留到写出，只报告不检查
+        check("ProcessXMLInAvro", false, false, ProcessXMLInAvro.REL_SUCCESS, () -> {
+            TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+            runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+            runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+            runner.setProperty("doi", "/product/pub_extend/doi");
+            runner.setProperty("publish_year", "/product/pub_basic/publish_year");
+            return runner;
+        }, records -> TestData.avro(records, 3));
+    }
+
+    @Test
+    public void testProcessXMLInAvroParquet() throws Exception {
+        //记录解析后直接写入parquet，只缓存一个row group
+        check("ProcessXMLInAvro parquet", true, true, ProcessXMLInAvro.REL_SUCCESS, () -> {
+            TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+            runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+            runner.setProperty(ProcessXMLInAvro.OUTPUT_FORMAT, ProcessXMLInAvro.FORMAT_PARQUET);
+            runner.setProperty(ProcessXMLInAvro.PARQUET_ROW_GROUP_SIZE, "1 MB");
+            runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+            runner.setProperty("doi", "/product/pub_extend/doi");
+            runner.setProperty("publish_year", "/product/pub_basic/publish_year");
+            return runner;
+        }, records -> TestData.avro(records, 3));
+    }
+
+    /**
+     * @param heapBounded  the retained heap must not grow with the input
+     * @param directBounded the direct memory must not grow with the input
+     */
+    private void check(String name, boolean heapBounded, boolean directBounded, Relationship success, RunnerFactory runners, InputFactory inputs) throws Exception {
+        //预热，避免把JIT和类加载算进较小的一次
+        measure(runners.create(), inputs.create(smallRecords / 4), smallRecords / 4, success);
+        final Footprint small = measure(runners.create(), inputs.create(smallRecords), smallRecords, success);
+        final Footprint large = measure(runners.create(), inputs.create(smallRecords * 4), smallRecords * 4, success);
+        System.out.println(String.format("%-40s %s", name, small));
+        System.out.println(String.format("%-40s %s", name, large));
+
+        assertTrue(name + " allocates more per record on a larger input: " + small.allocatedPerRecord + " -> " + large.allocatedPerRecord,
+                large.allocatedPerRecord <= small.allocatedPerRecord * ALLOCATION_GROWTH);
+        final long limit = (long) ((large.inputBytes - small.inputBytes) * RETAINED_GROWTH) + NOISE_BYTES;
+        if (heapBounded) {
+            assertTrue(name + " retains heap in proportion to its input: " + small.retained + " -> " + large.retained,
+                    large.retained - small.retained <= limit);
+        }
+        if (directBounded) {
+            assertTrue(name + " holds direct memory in proportion to its input: " + small.direct + " -> " + large.direct,
+                    large.direct - small.direct <= limit);
+        }
+    }
+
+    private static Footprint measure(TestRunner runner, byte[] input, int records, Relationship success) throws Exception {
+        runner.run(1, false, true); //只执行 @OnScheduled，队列为空
+        runner.enqueue(input);
+        final long inputBytes = input.length;
+        final long baseHeap = usedHeapAfterGc(); //已包含排队的输入内容
+        final long baseDirect = directMemory();
+
+        final Sampler sampler = new Sampler();
+        final Map<Long, Long> before = allocatedBytes(sampler.getId());
+        sampler.start();
+        runner.getProcessor().onTrigger(runner.getProcessContext(), runner.getProcessSessionFactory());
+        final Map<Long, Long> after = allocatedBytes(sampler.getId());
+        sampler.finish();
+
+        long allocated = 0;
+        for (Map.Entry<Long, Long> entry : after.entrySet()) {
+            final Long start = before.get(entry.getKey());
+            allocated += entry.getValue() - (start == null ? 0 : start);
+        }
+        long output = 0;
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(success)) {
+            output += ff.getSize();
+        }
+        assertTrue("no output", output > 0);
+        runner.run(1, true, false); //执行 @OnStopped
+        runner.clearTransferState();
+        return new Footprint(records, inputBytes, allocated, Math.max(0, sampler.peakHeap - baseHeap - output),
+                Math.max(0, sampler.peakDirect - baseDirect));
+    }
+
+    /**
+     * allocated bytes of every live thread except the sampler
+     */
+    private static Map<Long, Long> allocatedBytes(long sampler) {
+        final long[] ids = threads.getAllThreadIds();
+        final long[] bytes = threads.getThreadAllocatedBytes(ids);
+        final Map<Long, Long> allocated = new HashMap<>();
+        for (int i = 0; i < ids.length; i++) {
+            if (ids[i] != sampler && bytes[i] >= 0) {
+                allocated.put(ids[i], bytes[i]);
+            }
+        }
+        return allocated;
+    }
+
+    private static long usedHeapAfterGc() {
+        System.gc();
+        return memory.getHeapMemoryUsage().getUsed();
+    }
+
+    private static long directMemory() {
+        for (BufferPoolMXBean pool : ManagementFactory.getPlatformMXBeans(BufferPoolMXBean.class)) {
+            if ("direct".equals(pool.getName())) {
+                return pool.getMemoryUsed();
+            }
+        }
+        return 0;
+    }
+}
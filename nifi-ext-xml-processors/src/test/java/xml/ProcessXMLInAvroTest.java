@@ -0,0 +1,483 @@
+package xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.hadoop.fs.Path;
+import org.apache.nifi.processors.ext.xml.DotPathExtractor;
+import org.apache.nifi.processors.ext.xml.ExtractionResultCache;
+import org.apache.nifi.processors.ext.xml.FieldDictionary;
+import org.apache.nifi.processors.ext.xml.ProcessXMLInAvro;
+import org.apache.nifi.processors.ext.xml.RecordPipeline;
+import org.apache.nifi.processors.ext.xml.TagPrefilter;
+import org.apache.nifi.processors.ext.xml.XmlSchemaValidator;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.apache.parquet.avro.AvroParquetReader;
+import org.apache.parquet.hadoop.ParquetReader;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class ProcessXMLInAvroTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private TestRunner newRunner() {
+        TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+        runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+        runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+        runner.setProperty("doi", "/product/pub_extend/doi");
+        runner.setProperty("publish_year", "/product/pub_basic/publish_year");
+        return runner;
+    }
+
+    @Test
+    public void testPlanIdsOfDifferentMapsDiffer() {
+        Map<String, String> two = new HashMap<>();
+        two.put("a", "/x");
+        two.put("b", "/y");
+        //两个映射的 toString 都是 {a=/x, b=/y}
+        Map<String, String> one = Collections.singletonMap("a", "/x, b=/y");
+        assertTrue(ExtractionResultCache.planId(two) != ExtractionResultCache.planId(one));
+        assertEquals(ExtractionResultCache.planId(two), ExtractionResultCache.planId(new HashMap<>(two)));
+    }
+
+    @Test
+    public void testResultCacheHitsDuplicatePayloads() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(ExtractionResultCache.CACHE_MAX_ENTRIES, "100");
+        runner.enqueue(TestData.avro(50, 5, 10));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ProcessXMLInAvro.REL_SUCCESS, 1);
+        assertEquals(Long.valueOf(40), runner.getCounterValue(ExtractionResultCache.COUNTER_HITS));
+        assertEquals(Long.valueOf(10), runner.getCounterValue(ExtractionResultCache.COUNTER_MISSES));
+
+        MockFlowFile out = runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0);
+        List<GenericRecord> records = TestData.read(out.toByteArray());
+        for (GenericRecord rec : records) {
+            int id = Integer.parseInt(rec.get("id").toString()) % 10;
+            assertEquals(String.valueOf(id), rec.get("pub_id").toString());
+            assertEquals("10.1000/" + id, rec.get("doi").toString());
+        }
+    }
+
+    @Test
+    public void testBatchIsolatesFailures() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(ProcessXMLInAvro.BATCH_SIZE, "10");
+        for (int i = 0; i < 4; i++) {
+            runner.enqueue(TestData.avro(5, 2));
+        }
+        runner.enqueue("not avro");
+        runner.run();
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(ProcessXMLInAvro.REL_SUCCESS, 4);
+        runner.assertTransferCount(ProcessXMLInAvro.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testFilterRoutesRejectedRecords() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(ProcessXMLInAvro.FILTER_PREDICATE, "/product/pub_basic/publish_year >= 2015");
+        runner.enqueue(TestData.avro(30, 3));
+        runner.run();
+        runner.assertTransferCount(ProcessXMLInAvro.REL_SUCCESS, 1);
+        runner.assertTransferCount(ProcessXMLInAvro.REL_FILTERED, 1);
+        List<GenericRecord> kept = TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray());
+        assertEquals(15, kept.size());
+        for (GenericRecord rec : kept) {
+            assertTrue(Integer.parseInt(rec.get("publish_year").toString()) >= 2015);
+        }
+        MockFlowFile filtered = runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_FILTERED).get(0);
+        filtered.assertAttributeEquals("record.count", "15");
+        assertEquals(TestData.INPUT_SCHEMA.getFields().size(), TestData.read(filtered.toByteArray()).get(0).getSchema().getFields().size());
+    }
+
+    @Test
+    public void testFilterOnColumnAndXPathExpression() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(ProcessXMLInAvro.FILTER_PREDICATE, "id != 3");
+        runner.setProperty(ProcessXMLInAvro.FILTERED_ACTION, ProcessXMLInAvro.FILTERED_DROP);
+        runner.enqueue(TestData.avro(10, 2));
+        runner.run();
+        runner.assertTransferCount(ProcessXMLInAvro.REL_FILTERED, 0);
+        assertEquals(9, TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray()).size());
+
+        runner = newRunner();
+        runner.setProperty(ProcessXMLInAvro.FILTER_PREDICATE, "/product/pub_extend[@pub_type_id='2']/country_name = 'country 0'");
+        runner.enqueue(TestData.avro(12, 2));
+        runner.run();
+        // pub_type_id 为2的是奇数id，其中 id%3==0 的为 3 和 9
+        assertEquals(2, TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray()).size());
+
+        runner.setProperty(ProcessXMLInAvro.FILTER_PREDICATE, "/product/pub_basic[");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testFilterCompoundPredicates() throws IOException {
+        // publish_year >= 2015 且 list_sci 为1：每10条中 id%10 为 5、7、9 的3条
+        String[][] cases = {
+                {"/product/pub_basic/publish_year >= 2015 and /product/pub_basic/list_sci = 1", "9"},
+                {"/product/pub_basic/pub_id = 3 or /product/pub_basic/pub_id = 4", "2"},
+                {"(/product/pub_basic/pub_id = 3)", "1"},
+                {"/product/pub_basic/publish_year >= '2015'", "15"},
+        };
+        for (String[] c : cases) {
+            TestRunner runner = newRunner();
+            runner.setProperty(ProcessXMLInAvro.FILTER_PREDICATE, c[0]);
+            runner.setProperty(ProcessXMLInAvro.FILTERED_ACTION, ProcessXMLInAvro.FILTERED_DROP);
+            runner.enqueue(TestData.avro(30, 3));
+            runner.run();
+            assertEquals(c[0], Integer.parseInt(c[1]), TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray()).size());
+        }
+    }
+
+    @Test
+    public void testWorkerThreadsKeepRecordOrder() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(RecordPipeline.WORKER_THREADS, "4");
+        runner.setProperty(RecordPipeline.QUEUE_SIZE, "64");
+        runner.setProperty(ExtractionResultCache.CACHE_MAX_ENTRIES, "100");
+        runner.setProperty(ProcessXMLInAvro.FILTER_PREDICATE, "/product/pub_basic/publish_year >= 2015");
+        runner.enqueue(TestData.avro(500, 5, 50));
+        runner.run();
+        runner.assertTransferCount(ProcessXMLInAvro.REL_SUCCESS, 1);
+        assertEquals(500 / 2, runner.getCounterValue(ExtractionResultCache.COUNTER_HITS) + runner.getCounterValue(ExtractionResultCache.COUNTER_MISSES));
+
+        List<GenericRecord> kept = TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray());
+        assertEquals(250, kept.size());
+        for (GenericRecord rec : kept) {
+            int id = Integer.parseInt(rec.get("id").toString()) % 50;
+            assertEquals(String.valueOf(id), rec.get("pub_id").toString());
+            assertEquals("10.1000/" + id, rec.get("doi").toString());
+        }
+        //被过滤的记录按输入顺序写出
+        List<GenericRecord> filtered = TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_FILTERED).get(0).toByteArray());
+        assertEquals(250, filtered.size());
+        int last = -1;
+        for (GenericRecord rec : filtered) {
+            int id = Integer.parseInt(rec.get("id").toString());
+            assertTrue(id > last);
+            last = id;
+        }
+    }
+
+    @Test
+    public void testDictionaryEncoding() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty("country_name", "/product/pub_extend/country_name");
+        runner.setProperty(ProcessXMLInAvro.DICTIONARY_AUTO_CARDINALITY, "5");
+        runner.enqueue(TestData.avro(30, 3));
+        // 4 个取值的 publish_year 不会再被选中，字段由第一个输入确定
+        runner.enqueue(TestData.avro(4, 3));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ProcessXMLInAvro.REL_SUCCESS, 2);
+        for (GenericRecord rec : TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(1).toByteArray())) {
+            assertEquals(Schema.Type.INT, rec.getSchema().getField("country_name").schema().getTypes().get(1).getType());
+            assertEquals(Schema.Type.STRING, rec.getSchema().getField("publish_year").schema().getTypes().get(1).getType());
+        }
+        byte[] content = runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray();
+        try (DataFileStream<GenericRecord> reader = new DataFileStream<>(new ByteArrayInputStream(content), new GenericDatumReader<GenericRecord>())) {
+            // 3 个取值的 country_name 编码为int，10 个取值的 publish_year 保持字符串
+            Schema countrySchema = reader.getSchema().getField("country_name").schema().getTypes().get(1);
+            assertEquals(Schema.Type.INT, countrySchema.getType());
+            assertEquals(Schema.Type.STRING, reader.getSchema().getField("publish_year").schema().getTypes().get(1).getType());
+            String dictionary = reader.getMetaString(FieldDictionary.META_PREFIX + "country_name");
+            int records = 0;
+            while (reader.hasNext()) {
+                GenericRecord rec = reader.next();
+                int id = Integer.parseInt(rec.get("pub_id").toString());
+                String country = dictionary.replaceAll("[\\[\\]\"]", "").split(",")[(Integer) rec.get("country_name")];
+                assertEquals("country " + id % 3, country);
+                records++;
+            }
+            assertEquals(30, records);
+        }
+
+        FieldDictionary enumDictionary = new FieldDictionary("kind", 0);
+        assertSame(enumDictionary.intern(new String("journal")), enumDictionary.intern(new String("journal")));
+        enumDictionary.intern("conference");
+        assertEquals(Schema.Type.ENUM, enumDictionary.schema("any.data").getTypes().get(1).getType());
+        assertEquals("conference", enumDictionary.encode("conference").toString());
+    }
+
+    @Test
+    public void testDotPathSyntaxMatchesXPath() throws Exception {
+        TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+        runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+        runner.setProperty(ProcessXMLInAvro.EXPRESSION_SYNTAX, ProcessXMLInAvro.SYNTAX_DOT_PATH);
+        runner.setProperty("pub_id", "product.pub_basic.pub_id");
+        runner.setProperty("doi", "product.pub_extend[@pub_type_id='2'].doi");
+        runner.setProperty("type_id", "product.*.@pub_type_id");
+        runner.setProperty("joined", "product.pub_basic.zh_title#product.pub_basic.missing");
+        runner.enqueue(TestData.avro(10, 2));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ProcessXMLInAvro.REL_SUCCESS, 1);
+        List<GenericRecord> records = TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray());
+        assertEquals(10, records.size());
+        for (GenericRecord rec : records) {
+            int id = Integer.parseInt(rec.get("pub_id").toString());
+            assertEquals(id % 2 == 1 ? "10.1000/" + id : null, rec.get("doi") == null ? null : rec.get("doi").toString());
+            assertEquals(String.valueOf(id % 2 + 1), rec.get("type_id").toString());
+            assertEquals("title " + id + "#null", rec.get("joined").toString());
+        }
+
+        // 重复节点、CDATA、属性条件，与dom4j的结果一致
+        String xml = "<a><b k=\"1\">x<c>skip</c>y</b><b k=\"2\"><![CDATA[<z>]]></b><d/></a>";
+        Map<String, String> dotPaths = new HashMap<>();
+        dotPaths.put("all", "a.b");
+        dotPaths.put("second", "a.b[@k=\"2\"]");
+        dotPaths.put("keys", "a.b.@k");
+        dotPaths.put("empty", "a.d");
+        dotPaths.put("none", "a.c");
+        dotPaths.put("joined", "*.b#a.e#a.b.@k");
+        DotPathExtractor extractor = DotPathExtractor.compile(dotPaths);
+        Map<String, String> values = extractor.extract(xml);
+        assertEquals(ProcessXMLInAvro.processExtend(xml, extractor.getXPaths()), values);
+        assertEquals("xy#<z>", values.get("all"));
+        assertEquals("1#2", values.get("keys"));
+        assertEquals("xy#null#1", values.get("joined"));
+        assertTrue(values.containsKey("none") && values.get("none") == null);
+        // StAX 无法读取时退回dom4j
+        assertEquals("1", extractor.extract("<a><b k=\"1\">\u0001</b></a>").get("keys"));
+
+        // 数字按数值比较，未加引号的名称与xpath一样是子节点
+        String literals = "<a><b k=\"01\" n=\"x\">one<x>x</x></b><b k=\"1.5\" n=\"abc\">two</b></a>";
+        Map<String, String> predicates = new HashMap<>();
+        predicates.put("number", "a.b[@k=1]");
+        predicates.put("decimal", "a.b[@k=1.50]");
+        predicates.put("quoted", "a.b[@k='1']");
+        predicates.put("string", "a.b[@n=\"abc\"]");
+        predicates.put("child", "a.b[@n=x]");
+        DotPathExtractor literalExtractor = DotPathExtractor.compile(predicates);
+        Map<String, String> selected = literalExtractor.extract(literals);
+        assertEquals(ProcessXMLInAvro.processExtend(literals, literalExtractor.getXPaths()), selected);
+        assertEquals("one", selected.get("number"));
+        assertEquals("two", selected.get("decimal"));
+        assertNull(selected.get("quoted"));
+        assertEquals("two", selected.get("string"));
+        assertEquals("one", selected.get("child"));
+        predicates.remove("child");
+        selected.remove("child");
+        assertEquals(selected, DotPathExtractor.compile(predicates).extract(literals));
+
+        runner.setProperty("bad", "product..pub_id");
+        runner.assertNotValid();
+        runner.setProperty("bad", "product.pub_extend[@pub_type_id=a/b]");
+        runner.assertNotValid();
+    }
+
+    @Test
+    public void testTagPrefilterSkipsSparseRecords() throws IOException {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(TestData.INPUT_SCHEMA))) {
+            writer.create(TestData.INPUT_SCHEMA, content);
+            GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+            for (int i = 0; i < 20; i++) {
+                String xml;
+                if (i % 4 == 0) {
+                    xml = TestData.productXml(i, 1);
+                } else if (i % 4 == 1) {
+                    xml = "<product><pub_extend pub_type_id=\"1\"/></product>";
+                } else if (i % 4 == 2) {
+                    xml = "<product><pub_extend><note>no doi, country_name unknown</note></pub_extend></product>";
+                } else {
+                    xml = "<product><pub_extend><doi/></pub_extend></product>"; //有标签但为空，仍需解析
+                }
+                rec.put("id", String.valueOf(i));
+                rec.put("product_xml", xml);
+                writer.append(rec);
+            }
+        }
+        Map<String, Map<String, String>> expected = null;
+        for (String prefilter : new String[]{"false", "true"}) {
+            TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+            runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+            runner.setProperty(ProcessXMLInAvro.TAG_PREFILTER, prefilter);
+            runner.setProperty("doi", "/product/pub_extend[@pub_type_id='1']/doi");
+            runner.setProperty("joined", "/product/pub_extend/doi#/product/pub_extend/country_name/text()");
+            runner.enqueue(content.toByteArray());
+            runner.run();
+            runner.assertAllFlowFilesTransferred(ProcessXMLInAvro.REL_SUCCESS, 1);
+            Map<String, Map<String, String>> byId = new HashMap<>();
+            for (GenericRecord rec : TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray())) {
+                Map<String, String> values = new HashMap<>();
+                values.put("doi", rec.get("doi") == null ? null : rec.get("doi").toString());
+                values.put("joined", rec.get("joined").toString());
+                byId.put(rec.get("id").toString(), values);
+            }
+            assertEquals(20, byId.size());
+            if (expected == null) {
+                expected = byId;
+                assertEquals(null, runner.getCounterValue(ProcessXMLInAvro.COUNTER_PREFILTER_SKIPPED));
+            } else {
+                // 跳过解析的记录与完整解析的结果一致
+                assertEquals(expected, byId);
+                assertEquals(Long.valueOf(10), runner.getCounterValue(ProcessXMLInAvro.COUNTER_PREFILTER_SKIPPED));
+            }
+        }
+        assertEquals("10.1000/0", expected.get("0").get("doi"));
+        assertEquals("null#null", expected.get("1").get("joined"));
+        assertEquals("#null", expected.get("3").get("joined"));
+
+        assertEquals(new HashSet<>(Arrays.asList("c", "d")),
+                TagPrefilter.compile(Arrays.asList("/a/b[c/x='1]']/c/@k", "//x:d/text()|/a/*/c")).getNames());
+        assertNull(TagPrefilter.compile(Arrays.asList("/a/c", "count(/a/b)")));
+        assertNull(TagPrefilter.compile(Arrays.asList("/a/c", "/*/@k")));
+        TagPrefilter filter = TagPrefilter.compile(Collections.singletonList("/a/doi"));
+        assertTrue(filter.mayMatch("<a><p:doi xmlns:p=\"urn:x\">1</p:doi></a>"));
+        assertTrue(filter.mayMatch("<!DOCTYPE a [<!ENTITY e SYSTEM \"doi.xml\">]><a>&e;</a>"));
+        assertTrue(!filter.mayMatch("<a><doid>1</doid><!-- doi --><x doi=\"1\"/></a>"));
+    }
+
+    @Test
+    public void testParquetOutput() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(ProcessXMLInAvro.OUTPUT_FORMAT, ProcessXMLInAvro.FORMAT_PARQUET);
+        runner.enqueue(TestData.avro(20, 2));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ProcessXMLInAvro.REL_SUCCESS, 1);
+        MockFlowFile out = runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0);
+        out.assertAttributeEquals("mime.type", "application/parquet");
+
+        File file = folder.newFile("out.parquet");
+        Files.write(file.toPath(), out.toByteArray());
+        int records = 0;
+        try (ParquetReader<GenericRecord> reader = AvroParquetReader.<GenericRecord>builder(new Path(file.toURI())).build()) {
+            for (GenericRecord rec = reader.read(); rec != null; rec = reader.read()) {
+                assertEquals("10.1000/" + rec.get("pub_id"), rec.get("doi").toString());
+                // 记录解析后直接写出，保持输入顺序
+                assertEquals(String.valueOf(records), rec.get("pub_id").toString());
+                records++;
+            }
+        }
+        assertEquals(20, records);
+    }
+
+    @Test
+    public void testMalformedRecordsRouteToInvalid() throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(TestData.INPUT_SCHEMA))) {
+            writer.create(TestData.INPUT_SCHEMA, content);
+            GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+            for (int i = 0; i < 10; i++) {
+                String xml = TestData.productXml(i, 1);
+                rec.put("id", i == 4 ? null : String.valueOf(i)); //空的透传字段
+                rec.put("product_xml", i == 7 ? xml.substring(0, xml.indexOf("</pub_extend>")) : xml);
+                writer.append(rec);
+            }
+        }
+        TestRunner runner = newRunner();
+        runner.enqueue(content.toByteArray());
+        runner.run();
+        runner.assertTransferCount(ProcessXMLInAvro.REL_SUCCESS, 1);
+        runner.assertTransferCount(ProcessXMLInAvro.REL_INVALID, 1);
+        List<GenericRecord> valid = TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray());
+        assertEquals(9, valid.size());
+        int nullIds = 0;
+        for (GenericRecord rec : valid) {
+            assertEquals("10.1000/" + rec.get("pub_id"), rec.get("doi").toString());
+            if (rec.get("id") == null) {
+                assertEquals("4", rec.get("pub_id").toString());
+                nullIds++;
+            }
+        }
+        assertEquals(1, nullIds);
+        MockFlowFile invalid = runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_INVALID).get(0);
+        invalid.assertAttributeEquals("record.count", "1");
+        assertTrue(invalid.getAttribute(ProcessXMLInAvro.VALIDATION_ERROR) != null);
+        assertEquals("7", TestData.read(invalid.toByteArray()).get(0).get("id").toString());
+    }
+
+    @Test
+    public void testXsdValidationRoutesInvalidRecords() throws Exception {
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(TestData.INPUT_SCHEMA))) {
+            writer.create(TestData.INPUT_SCHEMA, content);
+            GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+            for (int i = 0; i < 10; i++) {
+                String xml = TestData.productXml(i, i % 2 + 1);
+                if (i == 3) {
+                    xml = xml.replace("<pub_id>3</pub_id>", "<pub_id>x3</pub_id>");
+                } else if (i == 7) {
+                    xml = xml.substring(0, xml.indexOf("</pub_extend>"));
+                }
+                rec.put("id", String.valueOf(i));
+                rec.put("product_xml", xml);
+                writer.append(rec);
+            }
+        }
+        String xsd = new File(getClass().getResource("/product.xsd").toURI()).getPath();
+        for (String syntax : new String[]{ProcessXMLInAvro.SYNTAX_XPATH, ProcessXMLInAvro.SYNTAX_DOT_PATH}) {
+            TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+            runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+            runner.setProperty(ProcessXMLInAvro.XML_SCHEMA, xsd);
+            runner.setProperty(ProcessXMLInAvro.EXPRESSION_SYNTAX, syntax);
+            boolean xpath = ProcessXMLInAvro.SYNTAX_XPATH.equals(syntax);
+            runner.setProperty("pub_id", xpath ? "/product/pub_basic/pub_id" : "product.pub_basic.pub_id");
+            runner.setProperty("doi", xpath ? "/product/pub_extend/doi" : "product.pub_extend.doi");
+            runner.setProperty(RecordPipeline.WORKER_THREADS, "3");
+            runner.enqueue(content.toByteArray());
+            runner.run();
+            runner.assertTransferCount(ProcessXMLInAvro.REL_SUCCESS, 1);
+            runner.assertTransferCount(ProcessXMLInAvro.REL_INVALID, 1);
+            List<GenericRecord> valid = TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray());
+            assertEquals(8, valid.size());
+            for (GenericRecord rec : valid) {
+                assertEquals("10.1000/" + rec.get("pub_id"), rec.get("doi").toString());
+            }
+            MockFlowFile invalid = runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_INVALID).get(0);
+            invalid.assertAttributeEquals("record.count", "2");
+            assertTrue(invalid.getAttribute(ProcessXMLInAvro.VALIDATION_ERROR).contains("x3"));
+            List<GenericRecord> rejected = TestData.read(invalid.toByteArray());
+            assertEquals(TestData.INPUT_SCHEMA, rejected.get(0).getSchema());
+            assertEquals("3", rejected.get(0).get("id").toString());
+            assertEquals("7", rejected.get(1).get("id").toString());
+        }
+
+        // 未修改的XSD只编译一次，修改后重新编译，缓存有上限
+        File copy = folder.newFile("copy.xsd");
+        Files.copy(new File(xsd).toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        javax.xml.validation.Schema compiled = XmlSchemaValidator.load(copy.getPath()).getSchema();
+        assertSame(compiled, XmlSchemaValidator.load(copy.getPath()).getSchema());
+        assertTrue(copy.setLastModified(copy.lastModified() - 10000));
+        assertNotSame(compiled, XmlSchemaValidator.load(copy.getPath()).getSchema());
+        for (int i = 0; i < 20; i++) {
+            File edited = folder.newFile("edited" + i + ".xsd");
+            Files.copy(new File(xsd).toPath(), edited.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            XmlSchemaValidator.load(edited.getPath());
+        }
+        assertTrue(XmlSchemaValidator.cachedSchemaCount() <= 16);
+
+        TestRunner runner = newRunner();
+        runner.setProperty(ProcessXMLInAvro.XML_SCHEMA, folder.newFile("empty.xsd").getPath());
+        runner.assertNotValid();
+    }
+}
@@ -0,0 +1,199 @@
+package xml;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processors.ext.xml.ProcessXMLInAvro;
+import org.apache.nifi.processors.ext.xml.ProcessXMLInRecord;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.RecordSetWriterFactory;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.apache.nifi.serialization.record.RecordSet;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+
+public class ProcessXMLInRecordTest {
+    private static final RecordSchema INPUT = new SimpleRecordSchema(Arrays.asList(
+            new RecordField("id", RecordFieldType.STRING.getDataType()),
+            new RecordField("product_xml", RecordFieldType.STRING.getDataType())));
+
+    /**
+     * 读取 TestData 生成的Avro文件
+     */
+    private static class AvroRecordReaderFactory extends AbstractControllerService implements RecordReaderFactory {
+        @Override
+        public RecordReader createRecordReader(FlowFile flowFile, InputStream in, ComponentLog logger) throws IOException {
+            final DataFileStream<GenericRecord> stream = new DataFileStream<>(in, new GenericDatumReader<GenericRecord>());
+            return new RecordReader() {
+                @Override
+                public Record nextRecord() {
+                    if (!stream.hasNext()) {
+                        return null;
+                    }
+                    final GenericRecord rec = stream.next();
+                    final Map<String, Object> values = new HashMap<>();
+                    values.put("id", rec.get("id").toString());
+                    values.put("product_xml", rec.get("product_xml").toString());
+                    return new MapRecord(INPUT, values);
+                }
+
+                @Override
+                public RecordSchema getSchema() {
+                    return INPUT;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    stream.close();
+                }
+            };
+        }
+    }
+
+    /**
+     * 每条记录一行 字段=值，字段之间用 | 分隔
+     */
+    private static class LineRecordWriterFactory extends AbstractControllerService implements RecordSetWriterFactory {
+        @Override
+        public RecordSetWriter createWriter(ComponentLog logger, FlowFile flowFile, InputStream content) {
+            return new RecordSetWriter() {
+                @Override
+                public WriteResult write(RecordSet recordSet, OutputStream out) throws IOException {
+                    int count = 0;
+                    for (Record record = recordSet.next(); record != null; record = recordSet.next()) {
+                        write(record, out);
+                        count++;
+                    }
+                    return WriteResult.of(count, Collections.<String, String>emptyMap());
+                }
+
+                @Override
+                public WriteResult write(Record record, OutputStream out) throws IOException {
+                    final StringBuilder sb = new StringBuilder();
+                    for (String name : record.getSchema().getFieldNames()) {
+                        sb.append(sb.length() == 0 ? "" : "|").append(name).append('=').append(record.getValue(name));
+                    }
+                    out.write(sb.append('\n').toString().getBytes(StandardCharsets.UTF_8));
+                    return WriteResult.of(1, Collections.<String, String>emptyMap());
+                }
+
+                @Override
+                public String getMimeType() {
+                    return "text/plain";
+                }
+            };
+        }
+    }
+
+    /**
+     * 与 1.2.0 中从内容获取schema的 writer 相同，创建时读取内嵌的Avro schema
+     */
+    private static class ContentSchemaWriterFactory extends LineRecordWriterFactory {
+        private String schemaName;
+
+        @Override
+        public RecordSetWriter createWriter(ComponentLog logger, FlowFile flowFile, InputStream content) {
+            try {
+                schemaName = new DataFileStream<>(content, new GenericDatumReader<GenericRecord>()).getSchema().getFullName();
+            } catch (IOException e) {
+                throw new ProcessException(e);
+            }
+            return super.createWriter(logger, flowFile, content);
+        }
+    }
+
+    private static TestRunner newRunner() throws Exception {
+        return newRunner(new LineRecordWriterFactory());
+    }
+
+    private static TestRunner newRunner(LineRecordWriterFactory writer) throws Exception {
+        TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInRecord());
+        AvroRecordReaderFactory reader = new AvroRecordReaderFactory();
+        runner.addControllerService("reader", reader);
+        runner.addControllerService("writer", writer);
+        runner.enableControllerService(reader);
+        runner.enableControllerService(writer);
+        runner.setProperty(ProcessXMLInRecord.RECORD_READER, "reader");
+        runner.setProperty(ProcessXMLInRecord.RECORD_WRITER, "writer");
+        runner.setProperty(ProcessXMLInRecord.XML_FIELD, "product_xml");
+        return runner;
+    }
+
+    @Test
+    public void testExtractsThroughRecordServices() throws Exception {
+        for (String syntax : new String[]{ProcessXMLInAvro.SYNTAX_XPATH, ProcessXMLInAvro.SYNTAX_DOT_PATH}) {
+            TestRunner runner = newRunner();
+            runner.setProperty(ProcessXMLInAvro.EXPRESSION_SYNTAX, syntax);
+            boolean xpath = ProcessXMLInAvro.SYNTAX_XPATH.equals(syntax);
+            runner.setProperty("pub_id", xpath ? "/product/pub_basic/pub_id" : "product.pub_basic.pub_id");
+            runner.setProperty("doi", xpath ? "/product/pub_extend/doi" : "product.pub_extend.doi");
+            runner.enqueue(TestData.avro(5, 2));
+            runner.run();
+            runner.assertAllFlowFilesTransferred(ProcessXMLInRecord.REL_SUCCESS, 1);
+            MockFlowFile out = runner.getFlowFilesForRelationship(ProcessXMLInRecord.REL_SUCCESS).get(0);
+            out.assertAttributeEquals("record.count", "5");
+            out.assertAttributeEquals("mime.type", "text/plain");
+            String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+            assertEquals(5, lines.length);
+            for (int i = 0; i < lines.length; i++) {
+                //动态字段的顺序不固定
+                Set<String> fields = new HashSet<>(Arrays.asList(lines[i].split("\\|")));
+                assertEquals(new HashSet<>(Arrays.asList("id=" + i, "pub_id=" + i, "doi=10.1000/" + i)), fields);
+            }
+        }
+    }
+
+    @Test
+    public void testWriterSchemaFromContentInSamePass() throws Exception {
+        ContentSchemaWriterFactory writer = new ContentSchemaWriterFactory();
+        TestRunner runner = newRunner(writer);
+        runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+        runner.enqueue(TestData.avro(5, 2));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ProcessXMLInRecord.REL_SUCCESS, 1);
+        assertEquals("any.data.product", writer.schemaName);
+        // writer 读过的开头部分仍交给 reader，记录一条不少
+        MockFlowFile out = runner.getFlowFilesForRelationship(ProcessXMLInRecord.REL_SUCCESS).get(0);
+        out.assertAttributeEquals("record.count", "5");
+        String[] lines = new String(out.toByteArray(), StandardCharsets.UTF_8).split("\n");
+        assertEquals(5, lines.length);
+        assertEquals(new HashSet<>(Arrays.asList("id=0", "pub_id=0")), new HashSet<>(Arrays.asList(lines[0].split("\\|"))));
+    }
+
+    @Test
+    public void testMissingXmlFieldRoutesToFailure() throws Exception {
+        TestRunner runner = newRunner();
+        runner.setProperty(ProcessXMLInRecord.XML_FIELD, "other_xml");
+        runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+        runner.enqueue(TestData.avro(3, 1));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(ProcessXMLInRecord.REL_FAILURE, 1);
+    }
+}
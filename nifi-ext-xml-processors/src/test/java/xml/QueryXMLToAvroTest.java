@@ -0,0 +1,241 @@
+package xml;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.processors.ext.xml.QueryXMLToAvro;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class QueryXMLToAvroTest {
+    private static final String DB_URL = "jdbc:derby:memory:xmlquery";
+    private static final int ROWS = 40;
+
+    @BeforeClass
+    public static void createTable() throws SQLException {
+        System.setProperty("derby.stream.error.file", "target/derby.log");
+        try (Connection con = DriverManager.getConnection(DB_URL + ";create=true");
+             Statement st = con.createStatement()) {
+            st.executeUpdate("CREATE TABLE product (id INT, title VARCHAR(100), product_xml CLOB)");
+            try (PreparedStatement insert = con.prepareStatement("INSERT INTO product VALUES (?, ?, ?)")) {
+                for (int i = 0; i < ROWS; i++) {
+                    String xml = TestData.productXml(i, i % 2 + 1);
+                    insert.setInt(1, i);
+                    insert.setString(2, "row " + i);
+                    insert.setCharacterStream(3, new StringReader(xml), xml.length());
+                    insert.executeUpdate();
+                }
+            }
+            // 小数分区列，最后3行为空
+            st.executeUpdate("CREATE TABLE measure (score DECIMAL(5,2), product_xml CLOB)");
+            try (PreparedStatement insert = con.prepareStatement("INSERT INTO measure VALUES (?, ?)")) {
+                for (int i = 0; i < 15; i++) {
+                    String xml = TestData.productXml(i, 1);
+                    insert.setBigDecimal(1, i < 12 ? new BigDecimal("0.10").add(new BigDecimal("0.25").multiply(BigDecimal.valueOf(i))) : null);
+                    insert.setCharacterStream(2, new StringReader(xml), xml.length());
+                    insert.executeUpdate();
+                }
+            }
+        }
+    }
+
+    /**
+     * 直接通过DriverManager获取嵌入式数据库连接
+     */
+    private static class DerbyService extends AbstractControllerService implements DBCPService {
+        @Override
+        public Connection getConnection() throws ProcessException {
+            try {
+                return DriverManager.getConnection(DB_URL);
+            } catch (SQLException e) {
+                throw new ProcessException(e);
+            }
+        }
+    }
+
+    private interface Interceptor {
+        Object after(Method method, Object result) throws Exception;
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> T intercept(Class<T> type, T target, Interceptor interceptor) {
+        return (T) Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[]{type}, (proxy, method, args) -> {
+            try {
+                return interceptor.after(method, method.invoke(target, args));
+            } catch (InvocationTargetException e) {
+                throw e.getCause();
+            }
+        });
+    }
+
+    /**
+     * 分区查询读到结果集末尾时等待所有分区查询都读完，只有各分区同时查询、同时被读取时才能完成
+     */
+    private static class BarrierService extends DerbyService {
+        private final CountDownLatch finished;
+
+        private BarrierService(int queries) {
+            finished = new CountDownLatch(queries);
+        }
+
+        @Override
+        public Connection getConnection() throws ProcessException {
+            return intercept(Connection.class, super.getConnection(), (method, con) -> {
+                if (!"prepareStatement".equals(method.getName())) {
+                    return con;
+                }
+                return intercept(PreparedStatement.class, (PreparedStatement) con, (m, rs) -> {
+                    if (!"executeQuery".equals(m.getName())) {
+                        return rs;
+                    }
+                    final AtomicBoolean ended = new AtomicBoolean();
+                    return intercept(ResultSet.class, (ResultSet) rs, (next, hasNext) -> {
+                        if ("next".equals(next.getName()) && Boolean.FALSE.equals(hasNext) && ended.compareAndSet(false, true)) {
+                            finished.countDown();
+                            if (!finished.await(10, TimeUnit.SECONDS)) {
+                                throw new SQLException("partition queries did not overlap");
+                            }
+                        }
+                        return hasNext;
+                    });
+                });
+            });
+        }
+    }
+
+    private TestRunner newRunner() throws InitializationException {
+        return newRunner(new DerbyService());
+    }
+
+    private TestRunner newRunner(DerbyService service) throws InitializationException {
+        TestRunner runner = TestRunners.newTestRunner(new QueryXMLToAvro());
+        runner.addControllerService("dbcp", service);
+        runner.enableControllerService(service);
+        runner.setProperty(QueryXMLToAvro.DBCP_SERVICE, "dbcp");
+        runner.setProperty(QueryXMLToAvro.SQL_SELECT_QUERY, "SELECT id, title, product_xml FROM product");
+        runner.setProperty(QueryXMLToAvro.XML_COLUMN, "product_xml");
+        runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+        runner.setProperty("doi", "/product/pub_extend/doi");
+        return runner;
+    }
+
+    private static void assertRecord(GenericRecord rec) {
+        String id = rec.get("ID").toString();
+        assertEquals(id, rec.get("pub_id").toString());
+        assertEquals("10.1000/" + id, rec.get("doi").toString());
+        assertEquals("row " + id, rec.get("TITLE").toString());
+    }
+
+    @Test
+    public void testStreamsClobRowsToAvro() throws Exception {
+        TestRunner runner = newRunner();
+        runner.setProperty(QueryXMLToAvro.FETCH_SIZE, "7");
+        runner.setIncomingConnection(false);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(QueryXMLToAvro.REL_SUCCESS, 1);
+        MockFlowFile out = runner.getFlowFilesForRelationship(QueryXMLToAvro.REL_SUCCESS).get(0);
+        out.assertAttributeEquals("record.count", String.valueOf(ROWS));
+        List<GenericRecord> records = TestData.read(out.toByteArray());
+        assertEquals(ROWS, records.size());
+        assertEquals(null, records.get(0).getSchema().getField("PRODUCT_XML"));
+        for (GenericRecord rec : records) {
+            assertRecord(rec);
+        }
+
+        runner = newRunner();
+        runner.setProperty(QueryXMLToAvro.SQL_SELECT_QUERY, "SELECT id, title, product_xml FROM ${table} WHERE id < 5");
+        runner.enqueue(new byte[0], Collections.singletonMap("table", "product"));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(QueryXMLToAvro.REL_SUCCESS, 1);
+        assertEquals(5, TestData.read(runner.getFlowFilesForRelationship(QueryXMLToAvro.REL_SUCCESS).get(0).toByteArray()).size());
+    }
+
+    @Test
+    public void testKeyRangePartitionsRunInParallel() throws Exception {
+        // 3 个范围分区和空值分区都读完结果集后才能结束；每行一批，单个分区的批次多于队列容量
+        TestRunner runner = newRunner(new BarrierService(4));
+        runner.setProperty(QueryXMLToAvro.PARTITION_COLUMN, "id");
+        runner.setProperty(QueryXMLToAvro.PARTITION_COUNT, "3");
+        runner.setProperty(QueryXMLToAvro.FETCH_SIZE, "1");
+        runner.setIncomingConnection(false);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(QueryXMLToAvro.REL_SUCCESS, 3);
+        int[] bounds = {0, 14, 27, 40}; //40 行按范围分成 14、13、13
+        Set<String> ids = new HashSet<>();
+        for (MockFlowFile out : runner.getFlowFilesForRelationship(QueryXMLToAvro.REL_SUCCESS)) {
+            List<GenericRecord> records = TestData.read(out.toByteArray());
+            out.assertAttributeEquals("record.count", String.valueOf(records.size()));
+            int partition = Integer.parseInt(out.getAttribute(QueryXMLToAvro.PARTITION_INDEX));
+            for (GenericRecord rec : records) {
+                assertRecord(rec);
+                int id = Integer.parseInt(rec.get("ID").toString());
+                assertTrue(id >= bounds[partition] && id < bounds[partition + 1]);
+                ids.add(rec.get("ID").toString());
+            }
+        }
+        assertEquals(ROWS, ids.size());
+    }
+
+    @Test
+    public void testPartitionsKeepNullsAndFractionalBounds() throws Exception {
+        TestRunner runner = newRunner();
+        runner.setProperty(QueryXMLToAvro.SQL_SELECT_QUERY, "SELECT score, product_xml FROM measure");
+        runner.setProperty(QueryXMLToAvro.PARTITION_COLUMN, "score");
+        runner.setProperty(QueryXMLToAvro.PARTITION_COUNT, "3");
+        runner.setProperty(QueryXMLToAvro.FETCH_SIZE, "2");
+        runner.setIncomingConnection(false);
+        runner.run();
+        // 3 个范围分区加一个空值分区
+        runner.assertAllFlowFilesTransferred(QueryXMLToAvro.REL_SUCCESS, 4);
+        Set<String> pubIds = new HashSet<>();
+        for (MockFlowFile out : runner.getFlowFilesForRelationship(QueryXMLToAvro.REL_SUCCESS)) {
+            boolean nullPartition = "3".equals(out.getAttribute(QueryXMLToAvro.PARTITION_INDEX));
+            List<GenericRecord> records = TestData.read(out.toByteArray());
+            if (nullPartition) {
+                assertEquals(3, records.size());
+            }
+            for (GenericRecord rec : records) {
+                assertEquals(nullPartition, rec.get("SCORE") == null);
+                pubIds.add(rec.get("pub_id").toString());
+            }
+        }
+        assertEquals(15, pubIds.size());
+    }
+
+    @Test
+    public void testMissingXmlColumnFails() throws IOException, InitializationException {
+        TestRunner runner = newRunner();
+        runner.setProperty(QueryXMLToAvro.XML_COLUMN, "other_xml");
+        runner.enqueue(new byte[0]);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(QueryXMLToAvro.REL_FAILURE, 1);
+    }
+}
@@ -0,0 +1,211 @@
+package xml;
+
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.avro.util.Utf8;
+import org.apache.nifi.processors.ext.xml.SeparateAvroByXML;
+import org.apache.nifi.processors.ext.xml.XmlFragmentSlicer;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.dom4j.DocumentHelper;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SeparateAvroByXMLTest {
+
+    static TestRunner newRunner() {
+        TestRunner runner = TestRunners.newTestRunner(new SeparateAvroByXML());
+        runner.setProperty(SeparateAvroByXML.XML_DECODE_FIELD, "product_xml");
+        runner.setProperty(SeparateAvroByXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+        runner.setProperty(SeparateAvroByXML.XML_COMMON_FIELD, "/product/pub_basic");
+        runner.setProperty(SeparateAvroByXML.XML_UNIQUE_FIELD, "/product/pub_extend");
+        runner.setProperty(SeparateAvroByXML.XML_TYPE_FIELD_NAME, "pub_type_id");
+        return runner;
+    }
+
+    @Test
+    public void testSplitByType() throws IOException {
+        TestRunner runner = newRunner();
+        runner.enqueue(TestData.avro(20, 4));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SeparateAvroByXML.REL_SUCCESS, 4);
+        int total = 0;
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroByXML.REL_SUCCESS)) {
+            List<GenericRecord> records = TestData.read(ff.toByteArray());
+            total += records.size();
+            for (GenericRecord rec : records) {
+                assertEquals(ff.getAttribute("type"), rec.get("type").toString());
+                assertTrue(rec.get("xmlCommonField").toString().startsWith("<pub_basic>"));
+                assertTrue(rec.get("xmlUniqueField").toString().contains("<doi>10.1000/" + rec.get("id") + "</doi>"));
+            }
+        }
+        assertEquals(20, total);
+    }
+
+    @Test
+    public void testNestedRecordSubtrees() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(SeparateAvroByXML.SUBTREE_FORMAT, SeparateAvroByXML.SUBTREE_NESTED);
+        runner.enqueue(TestData.avro(10, 2));
+        runner.enqueue(TestData.avro(10, 2));
+        runner.run(2);
+        runner.assertAllFlowFilesTransferred(SeparateAvroByXML.REL_SUCCESS, 4);
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroByXML.REL_SUCCESS)) {
+            for (GenericRecord rec : TestData.read(ff.toByteArray())) {
+                GenericRecord basic = (GenericRecord) rec.get("xmlCommonField");
+                GenericRecord extend = (GenericRecord) rec.get("xmlUniqueField");
+                assertEquals(rec.get("id").toString(), basic.get("pub_id").toString());
+                assertEquals(ff.getAttribute("type"), extend.get("_pub_type_id").toString());
+                assertEquals("10.1000/" + rec.get("id"), extend.get("doi").toString());
+            }
+        }
+    }
+
+    private static byte[] avro(String... xmls) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(TestData.INPUT_SCHEMA))) {
+            writer.create(TestData.INPUT_SCHEMA, out);
+            for (int i = 0; i < xmls.length; i++) {
+                GenericRecord rec = new GenericData.Record(TestData.INPUT_SCHEMA);
+                rec.put("id", String.valueOf(i));
+                rec.put("product_xml", xmls[i]);
+                writer.append(rec);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    @Test
+    public void testNestedSchemaGrowsWithLaterInputs() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(SeparateAvroByXML.SUBTREE_FORMAT, SeparateAvroByXML.SUBTREE_NESTED);
+        runner.enqueue(avro(TestData.productXml(1, 1)));
+        runner.enqueue(avro(TestData.productXml(2, 1).replace("</pub_extend>", "<isbn>978-7</isbn><isbn>978-8</isbn></pub_extend>")));
+        runner.run(2);
+        runner.assertAllFlowFilesTransferred(SeparateAvroByXML.REL_SUCCESS, 2);
+        List<MockFlowFile> out = runner.getFlowFilesForRelationship(SeparateAvroByXML.REL_SUCCESS);
+        GenericRecord first = (GenericRecord) TestData.read(out.get(0).toByteArray()).get(0).get("xmlUniqueField");
+        assertNull(first.getSchema().getField("isbn"));
+        GenericRecord second = (GenericRecord) TestData.read(out.get(1).toByteArray()).get(0).get("xmlUniqueField");
+        assertEquals("[978-7, 978-8]", second.get("isbn").toString());
+        assertEquals("10.1000/2", second.get("doi").toString());
+    }
+
+    @Test
+    public void testNestedRecordNamesStayUnique() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(SeparateAvroByXML.SUBTREE_FORMAT, SeparateAvroByXML.SUBTREE_NESTED);
+        runner.enqueue(avro(TestData.productXml(1, 1).replace("</pub_extend>",
+                "<a_b><d>x</d></a_b><a><b><c>y</c></b></a></pub_extend>")));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SeparateAvroByXML.REL_SUCCESS, 1);
+        GenericRecord unique = (GenericRecord) TestData.read(runner.getFlowFilesForRelationship(SeparateAvroByXML.REL_SUCCESS)
+                .get(0).toByteArray()).get(0).get("xmlUniqueField");
+        assertEquals("x", ((GenericRecord) unique.get("a_b")).get("d").toString());
+        assertEquals("y", ((GenericRecord) ((GenericRecord) unique.get("a")).get("b")).get("c").toString());
+    }
+
+    @Test
+    public void testNestedPathSelectingAttributeFails() throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(SeparateAvroByXML.SUBTREE_FORMAT, SeparateAvroByXML.SUBTREE_NESTED);
+        runner.setProperty(SeparateAvroByXML.XML_COMMON_FIELD, "/product/pub_extend/@pub_type_id");
+        runner.enqueue(TestData.avro(4, 2));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SeparateAvroByXML.REL_FAILURE, 1);
+    }
+
+    private List<GenericRecord> split(String fragmentExtraction) throws IOException {
+        return split(fragmentExtraction, TestData.avro(12, 3), 3);
+    }
+
+    private List<GenericRecord> split(String fragmentExtraction, byte[] content, int types) throws IOException {
+        TestRunner runner = newRunner();
+        runner.setProperty(SeparateAvroByXML.FRAGMENT_EXTRACTION, fragmentExtraction);
+        runner.enqueue(content);
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SeparateAvroByXML.REL_SUCCESS, types);
+        List<GenericRecord> records = new ArrayList<>();
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroByXML.REL_SUCCESS)) {
+            records.addAll(TestData.read(ff.toByteArray()));
+        }
+        return records;
+    }
+
+    @Test
+    public void testSliceMatchesDom4j() throws IOException {
+        List<GenericRecord> dom = split(SeparateAvroByXML.FRAGMENT_DOM);
+        List<GenericRecord> sliced = split(SeparateAvroByXML.FRAGMENT_SLICE);
+        assertEquals(dom.size(), sliced.size());
+        for (int i = 0; i < dom.size(); i++) {
+            assertEquals(dom.get(i).get("xmlCommonField").toString(), sliced.get(i).get("xmlCommonField").toString());
+            assertEquals(dom.get(i).get("xmlUniqueField").toString(), sliced.get(i).get("xmlUniqueField").toString());
+        }
+
+        String xml = "<?xml version=\"1.0\"?><!-- <a><b>x</b></a> --><a><b k='1'><![CDATA[</b>]]></b><b k=\"2\" x=\"a&gt;b\"><c/></b></a>";
+        Utf8 out = new Utf8();
+        assertTrue(XmlFragmentSlicer.compile("/a/b[@k=\"2\"]").slice(xml, out));
+        assertEquals("<b k=\"2\" x=\"a&gt;b\"><c/></b>", out.toString());
+        assertTrue(XmlFragmentSlicer.compile("b/c").slice(new Utf8(xml), out));
+        assertEquals("<c/>", out.toString());
+        assertFalse(XmlFragmentSlicer.compile("/a/b[@k='3']").slice(xml, out));
+        assertNull(XmlFragmentSlicer.compile("//b"));
+    }
+
+    @Test
+    public void testSliceFallsBackWhereDom4jDiffers() throws Exception {
+        String[] differs = {
+                "<a xmlns=\"urn:a\"><b>x</b></a>",
+                "<p:a xmlns:p=\"urn:a\"><p:b>x</p:b></p:a>",
+                "<!DOCTYPE a [<!ENTITY e \"x\">]><a><b>&e;</b></a>",
+                "<a><b>caf&#233; &quot;x&quot;</b></a>",
+                "<a><b k='1'>x</b></a>",
+                "<a><b  k=\"1\" >x</b></a>",
+                "<a><b k=\"a>b\">x</b></a>",
+                "<a><b k=\"a\tb\">x</b></a>",
+                "<a><b>x > y</b></a>",
+                "<a><b></b></a>",
+                "<a><b><c></c ></b></a>"};
+        Utf8 out = new Utf8();
+        XmlFragmentSlicer slicer = XmlFragmentSlicer.compile("/a/b");
+        for (String xml : differs) {
+            assertFalse(xml, slicer.slice(xml, out));
+        }
+        String[] same = {
+                "<a><b k=\"1\" m=\"&amp;&lt;&gt;\">x &amp; y &lt; z<!-- c --><![CDATA[ <]]></b></a>",
+                "<a>\n  <b>\n    <c/>\n    <d e=\"1\"/>\n  </b>\n</a>"};
+        for (String xml : same) {
+            assertTrue(xml, slicer.slice(xml, out));
+            assertEquals(DocumentHelper.parseText(xml).selectSingleNode("/a/b").asXML(), out.toString());
+        }
+
+        //同一输入两种方式的输出一致
+        String[] xmls = new String[6];
+        for (int i = 0; i < xmls.length; i++) {
+            xmls[i] = TestData.productXml(i, i % 2 + 1);
+        }
+        xmls[0] = xmls[0].replace("<doi>", "<doi kind='a&amp;b'>");
+        xmls[1] = xmls[1].replace("title 1", "&#x4E2D; &quot;1&quot;").replace("<list_sci>1</list_sci>", "<list_sci></list_sci>");
+        xmls[2] = xmls[2].replace("country 2", "a > b");
+        byte[] content = avro(xmls);
+        List<GenericRecord> dom = split(SeparateAvroByXML.FRAGMENT_DOM, content, 2);
+        List<GenericRecord> sliced = split(SeparateAvroByXML.FRAGMENT_SLICE, content, 2);
+        assertEquals(xmls.length, sliced.size());
+        for (int i = 0; i < dom.size(); i++) {
+            assertEquals(dom.get(i).get("xmlCommonField").toString(), sliced.get(i).get("xmlCommonField").toString());
+            assertEquals(dom.get(i).get("xmlUniqueField").toString(), sliced.get(i).get("xmlUniqueField").toString());
+        }
+    }
+}
@@ -0,0 +1,277 @@
+package xml;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.processors.ext.xml.PartitionKey;
+import org.apache.nifi.processors.ext.xml.SeparateAvroInXML;
+import org.apache.nifi.processors.ext.xml.XmlKeyScanner;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SeparateAvroInXMLTest {
+
+    private Map<String, Integer> split(String mode) throws IOException {
+        TestRunner runner = TestRunners.newTestRunner(new SeparateAvroInXML());
+        runner.setProperty(SeparateAvroInXML.XML_DECODE_FIELD, "product_xml");
+        runner.setProperty(SeparateAvroInXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+        runner.setProperty(SeparateAvroInXML.KEY_EXTRACT_MODE, mode);
+        runner.enqueue(TestData.avro(30, 3));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 3);
+        Map<String, Integer> counts = new HashMap<>();
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS)) {
+            counts.put(ff.getAttribute("type"), TestData.read(ff.toByteArray()).size());
+        }
+        return counts;
+    }
+
+    @Test
+    public void testStreamingKeyMatchesFullParse() throws IOException {
+        Map<String, Integer> full = split(SeparateAvroInXML.KEY_EXTRACT_FULL);
+        assertEquals(full, split(SeparateAvroInXML.KEY_EXTRACT_STREAMING));
+        assertEquals(Integer.valueOf(10), full.get("1"));
+    }
+
+    @Test
+    public void testKeyScanner() {
+        String xml = TestData.productXml(7, 5);
+        assertEquals("5", XmlKeyScanner.extract(xml, XmlKeyScanner.compile("/product/pub_basic/pub_type_id")));
+        assertEquals("7", XmlKeyScanner.extract(xml, XmlKeyScanner.compile("pub_basic/pub_id")));
+        assertNull(XmlKeyScanner.extract(xml, XmlKeyScanner.compile("/product/pub_basic/missing")));
+        assertNull(XmlKeyScanner.compile("/product/pub_extend[@pub_type_id=\"5\"]/doi"));
+    }
+
+    private TestRunner coalesceRunner(String maxRecords) {
+        TestRunner runner = TestRunners.newTestRunner(new SeparateAvroInXML());
+        runner.setProperty(SeparateAvroInXML.XML_DECODE_FIELD, "product_xml");
+        runner.setProperty(SeparateAvroInXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+        runner.setProperty(SeparateAvroInXML.COALESCE, "true");
+        runner.setProperty(SeparateAvroInXML.COALESCE_MAX_RECORDS, maxRecords);
+        runner.setProperty(SeparateAvroInXML.BATCH_SIZE, "1");
+        return runner;
+    }
+
+    private int totalRecords(TestRunner runner) throws IOException {
+        int total = 0;
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS)) {
+            total += TestData.read(ff.toByteArray()).size();
+        }
+        return total;
+    }
+
+    @Test
+    public void testCoalesceAcrossInputs() throws IOException {
+        TestRunner runner = coalesceRunner("12");
+        for (int i = 0; i < 3; i++) {
+            runner.enqueue(TestData.avro(10, 2));
+        }
+        // 每个类型每次输入5条，第三次输入后两个类型都达到12条阈值
+        runner.run(2, false, true);
+        runner.assertTransferCount(SeparateAvroInXML.REL_SUCCESS, 0);
+        runner.run(1, false, false);
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 4);
+        Map<String, Integer> counts = new HashMap<>();
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS)) {
+            counts.merge(ff.getAttribute("type"), Integer.valueOf(ff.getAttribute("record.count")), Integer::sum);
+        }
+        assertEquals(Integer.valueOf(15), counts.get("1"));
+        assertEquals(30, totalRecords(runner));
+
+        // 输入都已提交，停止时没有回到队列的输入
+        runner.run(1, true, false);
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 4);
+    }
+
+    @Test
+    public void testCoalesceFlushesAgedBinsWithoutInput() throws IOException, InterruptedException {
+        TestRunner runner = coalesceRunner("100");
+        runner.setProperty(SeparateAvroInXML.COALESCE_MAX_AGE, "500 millis");
+        runner.enqueue(TestData.avro(10, 2), Collections.singletonMap("batch", "a"));
+        runner.enqueue(TestData.avro(10, 2), Collections.singletonMap("batch", "a"));
+        runner.run(2, false, true);
+        // 记录还在缓存中，输入没有提交
+        runner.assertTransferCount(SeparateAvroInXML.REL_SUCCESS, 0);
+        assertEquals(0, runner.getProvenanceEvents().size());
+
+        Thread.sleep(600);
+        runner.run(1, false, false);
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 2);
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS)) {
+            // 输出继承输入共同的属性
+            ff.assertAttributeEquals("batch", "a");
+            ff.assertAttributeEquals("record.count", "10");
+        }
+        assertEquals(20, totalRecords(runner));
+
+        runner.run(1, true, false);
+        runner.assertQueueEmpty();
+    }
+
+    @Test
+    public void testCoalesceStopRequeuesInputs() throws IOException {
+        TestRunner runner = coalesceRunner("100");
+        runner.enqueue(TestData.avro(10, 2));
+        runner.enqueue(TestData.avro(10, 2));
+        runner.run(2, true, true);
+        // 停止时丢弃缓存，输入回到队列
+        runner.assertTransferCount(SeparateAvroInXML.REL_SUCCESS, 0);
+        assertEquals(2, runner.getQueueSize().getObjectCount());
+
+        runner.setProperty(SeparateAvroInXML.COALESCE_MAX_RECORDS, "10");
+        runner.run(2, false, true);
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 2);
+        assertEquals(20, totalRecords(runner));
+    }
+
+    @Test
+    public void testCoalesceFlushesOnlyReadyBins() throws IOException {
+        TestRunner runner = coalesceRunner("12");
+        // 第一个输入两个类型各5条，第二个输入只有10条类型1
+        runner.enqueue(TestData.avro(10, 2));
+        runner.enqueue(TestData.avro(10, 1));
+        runner.run(2, false, true);
+        runner.assertQueueEmpty();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 2);
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS)) {
+            ff.assertAttributeEquals("type", "1");
+        }
+        assertEquals(15, totalRecords(runner));
+
+        // 第二个输入已提交，第一个输入仍等待类型2的缓存，停止时只有它回到队列
+        runner.run(1, true, false);
+        assertEquals(1, runner.getQueueSize().getObjectCount());
+        runner.assertTransferCount(SeparateAvroInXML.REL_SUCCESS, 2);
+    }
+
+    @Test
+    public void testCoalesceFailedInputDoesNotDuplicate() throws IOException {
+        TestRunner runner = coalesceRunner("10");
+        runner.enqueue(TestData.avro(10, 2));
+        runner.enqueue("not avro".getBytes(StandardCharsets.UTF_8));
+        runner.enqueue(TestData.avro(10, 2));
+        runner.run(3, false, true);
+        runner.assertQueueEmpty();
+        runner.assertTransferCount(SeparateAvroInXML.REL_FAILURE, 1);
+        runner.assertTransferCount(SeparateAvroInXML.REL_SUCCESS, 2);
+        assertEquals(20, totalRecords(runner));
+    }
+
+    @Test
+    public void testMaxRecordsPerFlowFileFragments() throws IOException {
+        TestRunner runner = TestRunners.newTestRunner(new SeparateAvroInXML());
+        runner.setProperty(SeparateAvroInXML.XML_DECODE_FIELD, "product_xml");
+        runner.setProperty(SeparateAvroInXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+        runner.setProperty(SeparateAvroInXML.MAX_RECORDS_PER_FLOWFILE, "4");
+        runner.enqueue(TestData.avro(10, 1));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 3);
+        List<MockFlowFile> fragments = runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS);
+        String fragmentId = fragments.get(0).getAttribute(SeparateAvroInXML.FRAGMENT_ID);
+        int[] expected = {4, 4, 2};
+        for (int i = 0; i < fragments.size(); i++) {
+            MockFlowFile ff = fragments.get(i);
+            ff.assertAttributeEquals("type", "1");
+            ff.assertAttributeEquals(SeparateAvroInXML.FRAGMENT_ID, fragmentId);
+            ff.assertAttributeEquals(SeparateAvroInXML.FRAGMENT_INDEX, String.valueOf(i));
+            ff.assertAttributeEquals(SeparateAvroInXML.FRAGMENT_COUNT, "3");
+            assertEquals(expected[i], TestData.read(ff.toByteArray()).size());
+        }
+    }
+
+    @Test
+    public void testCompositeKeysDoNotCollide() {
+        PartitionKey key = PartitionKey.parse("/a, /b", false);
+        Set<String> keys = new HashSet<>();
+        String[][] values = {{"x|y", "z"}, {"x", "y|z"}, {"x\\", "y"}, {"x\\|y", ""}, {"", "x"}, {"x", ""}};
+        for (String[] v : values) {
+            Map<String, String> xml = new HashMap<>();
+            xml.put("/a", v[0]);
+            xml.put("/b", v[1]);
+            keys.add(key.valueOf(null, xml));
+        }
+        assertEquals(values.length, keys.size());
+        assertTrue(keys.contains("x\\|y|z"));
+    }
+
+    @Test
+    public void testHashBucketPartitioning() throws IOException {
+        TestRunner runner = TestRunners.newTestRunner(new SeparateAvroInXML());
+        runner.setProperty(SeparateAvroInXML.XML_DECODE_FIELD, "product_xml");
+        runner.setProperty(SeparateAvroInXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+        runner.setProperty(SeparateAvroInXML.PARTITION_MODE, SeparateAvroInXML.PARTITION_BY_HASH);
+        runner.setProperty(SeparateAvroInXML.PARTITION_KEY_FIELDS, "/product/pub_basic/publish_year, /product/pub_extend/country_name");
+        runner.setProperty(SeparateAvroInXML.PARTITION_BUCKETS, "4");
+        runner.enqueue(TestData.avro(60, 3));
+        runner.run();
+        runner.assertTransferCount(SeparateAvroInXML.REL_FAILURE, 0);
+        List<MockFlowFile> out = runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS);
+        assertTrue(out.size() <= 4);
+        int total = 0;
+        for (MockFlowFile ff : out) {
+            assertNull(ff.getAttribute("type"));
+            for (GenericRecord record : TestData.read(ff.toByteArray())) {
+                // type 字段保存分区键的原始取值，例如 2013|country 0
+                String key = record.get("type").toString();
+                assertTrue(key.matches("20\\d\\d\\|country \\d"));
+                ff.assertAttributeEquals(SeparateAvroInXML.PARTITION_ATTRIBUTE, String.valueOf(PartitionKey.bucket(key, 4)));
+                total++;
+            }
+        }
+        assertEquals(60, total);
+    }
+
+    @Test
+    public void testCompositeKeyWithAvroColumn() throws IOException {
+        TestRunner runner = TestRunners.newTestRunner(new SeparateAvroInXML());
+        runner.setProperty(SeparateAvroInXML.XML_DECODE_FIELD, "product_xml");
+        runner.setProperty(SeparateAvroInXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+        runner.setProperty(SeparateAvroInXML.PARTITION_MODE, SeparateAvroInXML.PARTITION_BY_KEY);
+        runner.setProperty(SeparateAvroInXML.PARTITION_KEY_FIELDS, "/product/pub_basic/pub_type_id,id");
+        runner.enqueue(TestData.avro(3, 3));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 3);
+        List<MockFlowFile> out = runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS);
+        out.get(0).assertAttributeEquals(SeparateAvroInXML.PARTITION_ATTRIBUTE, "1|0");
+        out.get(2).assertAttributeEquals(SeparateAvroInXML.PARTITION_ATTRIBUTE, "3|2");
+    }
+
+    @Test
+    public void testMaxOpenPartitionsEvictsLeastRecentlyUsed() throws IOException {
+        TestRunner runner = TestRunners.newTestRunner(new SeparateAvroInXML());
+        runner.setProperty(SeparateAvroInXML.XML_DECODE_FIELD, "product_xml");
+        runner.setProperty(SeparateAvroInXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+        runner.setProperty(SeparateAvroInXML.PARTITION_MODE, SeparateAvroInXML.PARTITION_BY_KEY);
+        runner.setProperty(SeparateAvroInXML.PARTITION_KEY_FIELDS, "/product/pub_basic/pub_type_id,/product/pub_basic/list_sci");
+        runner.setProperty(SeparateAvroInXML.MAX_OPEN_PARTITIONS, "2");
+        // 6 个分区依次轮换出现，每次只能保持2个打开，每个分区被输出两次
+        runner.enqueue(TestData.avro(12, 3));
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SeparateAvroInXML.REL_SUCCESS, 12);
+        Map<String, Integer> counts = new HashMap<>();
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(SeparateAvroInXML.REL_SUCCESS)) {
+            ff.assertAttributeEquals(SeparateAvroInXML.FRAGMENT_COUNT, "2");
+            String partition = ff.getAttribute(SeparateAvroInXML.PARTITION_ATTRIBUTE);
+            counts.merge(partition, TestData.read(ff.toByteArray()).size(), Integer::sum);
+        }
+        assertEquals(6, counts.size());
+        assertEquals(Integer.valueOf(2), counts.get("1|0"));
+    }
+}
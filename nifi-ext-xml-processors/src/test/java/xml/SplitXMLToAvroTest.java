@@ -0,0 +1,82 @@
+package xml;
+
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.processors.ext.xml.ProcessXMLInAvro;
+import org.apache.nifi.processors.ext.xml.SplitXMLToAvro;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SplitXMLToAvroTest {
+
+    private static byte[] export(int products) {
+        StringBuilder sb = new StringBuilder("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<export xmlns:x=\"urn:x\">\n<batch>\n");
+        for (int i = 0; i < products; i++) {
+            sb.append(TestData.productXml(i, i % 2 + 1).replace("<product>", "<product><x:note>a &amp; b</x:note>"));
+        }
+        return sb.append("</batch>\n</export>\n").toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    private static void assertSplits(TestRunner runner, int products, int... sizes) throws IOException {
+        runner.assertAllFlowFilesTransferred(SplitXMLToAvro.REL_SUCCESS, sizes.length);
+        List<MockFlowFile> splits = runner.getFlowFilesForRelationship(SplitXMLToAvro.REL_SUCCESS);
+        int id = 0;
+        for (int i = 0; i < sizes.length; i++) {
+            MockFlowFile split = splits.get(i);
+            split.assertAttributeEquals("fragment.index", String.valueOf(i));
+            split.assertAttributeEquals("fragment.count", String.valueOf(sizes.length));
+            split.assertAttributeEquals("record.count", String.valueOf(sizes[i]));
+            List<GenericRecord> records = TestData.read(split.toByteArray());
+            assertEquals(sizes[i], records.size());
+            for (GenericRecord rec : records) {
+                assertEquals(String.valueOf(id), rec.get("pub_id").toString());
+                assertEquals("10.1000/" + id, rec.get("doi").toString());
+                if (rec.getSchema().getField("note") != null) {
+                    //记录节点外层声明的前缀在切出的片段中仍然可用
+                    assertEquals("a & b", rec.get("note").toString());
+                }
+                id++;
+            }
+        }
+        assertEquals(products, id);
+    }
+
+    @Test
+    public void testSplitsAtRecordElement() throws IOException {
+        TestRunner runner = TestRunners.newTestRunner(new SplitXMLToAvro());
+        runner.setProperty(SplitXMLToAvro.RECORD_ELEMENT, "product");
+        runner.setProperty(SplitXMLToAvro.RECORDS_PER_FLOWFILE, "10");
+        runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+        runner.setProperty("doi", "/product/pub_extend/doi");
+        runner.setProperty("note", "/product/x:note");
+        runner.enqueue(export(25));
+        runner.run();
+        assertSplits(runner, 25, 10, 10, 5);
+
+        runner.clearTransferState();
+        runner.enqueue("<export><product><pub_basic></product></export>");
+        runner.run();
+        runner.assertAllFlowFilesTransferred(SplitXMLToAvro.REL_FAILURE, 1);
+    }
+
+    @Test
+    public void testDotPathSyntax() throws IOException {
+        TestRunner runner = TestRunners.newTestRunner(new SplitXMLToAvro());
+        runner.setProperty(SplitXMLToAvro.RECORD_ELEMENT, "product");
+        runner.setProperty(ProcessXMLInAvro.EXPRESSION_SYNTAX, ProcessXMLInAvro.SYNTAX_DOT_PATH);
+        runner.setProperty("pub_id", "product.pub_basic.pub_id");
+        runner.setProperty("doi", "product/pub_extend/doi");
+        runner.assertNotValid();
+        runner.setProperty("doi", "product.pub_extend.doi");
+        runner.enqueue(export(7));
+        runner.run();
+        assertSplits(runner, 7, 7);
+    }
+}
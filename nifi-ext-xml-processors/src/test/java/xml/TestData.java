@@ -0,0 +1,78 @@
+package xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.SchemaBuilder;
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * generates product avro the way upstream ExecuteSQL hands it to this bundle
+ */
+final class TestData {
+
+    static final Schema INPUT_SCHEMA = SchemaBuilder.record("product").namespace("any.data").fields()
+            .name("id").type().unionOf().nullBuilder().endNull().and().stringType().endUnion().noDefault()
+            .name("product_xml").type().unionOf().nullBuilder().endNull().and().stringType().endUnion().noDefault()
+            .endRecord();
+
+    private TestData() {
+    }
+
+    static String productXml(int id, int type) {
+        return "<product>\n" +
+                "    <pub_basic>\n" +
+                "        <pub_id>" + id + "</pub_id>\n" +
+                "        <pub_type_id>" + type + "</pub_type_id>\n" +
+                "        <zh_title>title " + id + "</zh_title>\n" +
+                "        <publish_year>" + (2010 + id % 10) + "</publish_year>\n" +
+                "        <list_sci>" + (id % 2) + "</list_sci>\n" +
+                "    </pub_basic>\n" +
+                "    <pub_extend pub_type_id=\"" + type + "\">\n" +
+                "        <country_name>country " + (id % 3) + "</country_name>\n" +
+                "        <doi>10.1000/" + id + "</doi>\n" +
+                "    </pub_extend>\n" +
+                "</product>\n";
+    }
+
+    static byte[] avro(int records, int types) throws IOException {
+        return avro(records, types, records);
+    }
+
+    /**
+     * @param distinct number of distinct xml payloads, the rest are byte-identical copies
+     */
+    static byte[] avro(int records, int types, int distinct) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(INPUT_SCHEMA))) {
+            writer.create(INPUT_SCHEMA, out);
+            for (int i = 0; i < records; i++) {
+                int id = i % distinct;
+                GenericRecord rec = new GenericData.Record(INPUT_SCHEMA);
+                rec.put("id", String.valueOf(i));
+                rec.put("product_xml", productXml(id, id % types + 1));
+                writer.append(rec);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    static List<GenericRecord> read(byte[] content) throws IOException {
+        List<GenericRecord> records = new ArrayList<>();
+        try (DataFileStream<GenericRecord> reader = new DataFileStream<>(new ByteArrayInputStream(content), new GenericDatumReader<GenericRecord>())) {
+            while (reader.hasNext()) {
+                records.add(reader.next());
+            }
+        }
+        return records;
+    }
+}
@@ -0,0 +1,233 @@
+package xml;
+
+import org.apache.avro.file.DataFileStream;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericDatumReader;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.processor.Processor;
+import org.apache.nifi.processor.Relationship;
+import org.apache.nifi.processors.ext.xml.ProcessXMLInAvro;
+import org.apache.nifi.processors.ext.xml.SeparateAvroByXML;
+import org.apache.nifi.processors.ext.xml.SeparateAvroInXML;
+import org.apache.nifi.util.MockFlowFile;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.AfterClass;
+import org.junit.BeforeClass;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.TreeMap;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * End to end throughput of the processors through the nifi-mock TestRunner, checked against stored baselines.
+ * Absolute rates depend on the machine, so each rate is divided by the rate of a plain avro decode and re-encode
+ * of the same input measured in the same run, and only that ratio is kept in the baseline.
+ * Only runs with the perf profile: mvn test -Pperf. Options:
+ * <ul>
+ *     <li>perf.records: comma separated input sizes, default 10000,100000,1000000</li>
+ *     <li>perf.tolerance: allowed drop of the ratio against the baseline, default 0.25</li>
+ *     <li>perf.baseline: baseline file, set by the profile to src/test/resources/perf/throughput-baseline.properties</li>
+ *     <li>perf.updateBaseline: true to write the measured results to the baseline file instead of checking them</li>
+ * </ul>
+ * Absolute results and ratios of every run are also written to target/perf/throughput.properties. The ratios
+ * still vary somewhat between JVMs and CPUs, record them again with perf.updateBaseline on the machine that runs
+ * the suite when the check turns out too strict or too loose there.
+ */
+public class ThroughputBenchmark {
+    private static final int WARM_UP_RECORDS = 10000;
+    private static final int TYPES = 3;
+
+    private static final Properties baseline = new Properties();
+    private static final TreeMap<String, String> results = new TreeMap<>();
+    private static final TreeMap<String, String> ratios = new TreeMap<>();
+    private static final Map<Integer, Double> referenceRates = new HashMap<>();
+    private static final List<String> regressions = new ArrayList<>();
+    private static int[] sizes;
+    private static double tolerance;
+    private static boolean updateBaseline;
+    private static File baselineFile;
+
+    private interface RunnerFactory {
+        TestRunner create();
+    }
+
+    @BeforeClass
+    public static void loadBaseline() throws IOException {
+        final String[] parts = System.getProperty("perf.records", "10000,100000,1000000").split(",");
+        sizes = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            sizes[i] = Integer.parseInt(parts[i].trim());
+        }
+        tolerance = Double.parseDouble(System.getProperty("perf.tolerance", "0.25"));
+        updateBaseline = Boolean.getBoolean("perf.updateBaseline");
+        baselineFile = new File(System.getProperty("perf.baseline", "src/test/resources/perf/throughput-baseline.properties"));
+        if (baselineFile.isFile()) {
+            try (InputStream in = new FileInputStream(baselineFile)) {
+                baseline.load(in);
+            }
+        }
+    }
+
+    @AfterClass
+    public static void writeResults() throws IOException {
+        final TreeMap<String, String> measured = new TreeMap<>(results);
+        measured.putAll(ratios);
+        store(measured, new File("target/perf/throughput.properties"), "measured throughput");
+        if (updateBaseline) {
+            //只更新本次测到的项，其他规模的基线保留
+            final TreeMap<String, String> merged = new TreeMap<>();
+            for (String key : baseline.stringPropertyNames()) {
+                merged.put(key, baseline.getProperty(key));
+            }
+            merged.putAll(ratios);
+            store(merged, baselineFile, "records/s relative to a plain avro decode and re-encode of the same input, " +
+                    "regenerate with mvn test -Pperf -Dperf.updateBaseline=true");
+        }
+    }
+
+    /**
+     * write sorted so the baseline diffs cleanly
+     */
+    private static void store(Map<String, String> values, File file, String comment) throws IOException {
+        file.getAbsoluteFile().getParentFile().mkdirs();
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.ISO_8859_1)) {
+            out.write("# " + comment + "\n");
+            for (Map.Entry<String, String> entry : values.entrySet()) {
+                out.write(entry.getKey() + "=" + entry.getValue() + "\n");
+            }
+        }
+    }
+
+    @Test
+    public void testSeparateAvroInXML() throws IOException {
+        measure("SeparateAvroInXML", SeparateAvroInXML.REL_SUCCESS, () -> {
+            TestRunner runner = TestRunners.newTestRunner(new SeparateAvroInXML());
+            runner.setProperty(SeparateAvroInXML.XML_DECODE_FIELD, "product_xml");
+            runner.setProperty(SeparateAvroInXML.XML_TYPE_FIELD, "/product/pub_basic/pub_type_id");
+            runner.setProperty(SeparateAvroInXML.KEY_EXTRACT_MODE, SeparateAvroInXML.KEY_EXTRACT_STREAMING);
+            return runner;
+        });
+    }
+
+    @Test
+    public void testSeparateAvroByXML() throws IOException {
+        measure("SeparateAvroByXML", SeparateAvroByXML.REL_SUCCESS, SeparateAvroByXMLTest::newRunner);
+    }
+
+    @Test
+    public void testProcessXMLInAvro() throws IOException {
+        measure("ProcessXMLInAvro", ProcessXMLInAvro.REL_SUCCESS, () -> {
+            TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+            runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+            runner.setProperty("pub_id", "/product/pub_basic/pub_id");
+            runner.setProperty("publish_year", "/product/pub_basic/publish_year");
+            runner.setProperty("doi", "/product/pub_extend/doi");
+            runner.setProperty("country_name", "/product/pub_extend/country_name");
+            return runner;
+        });
+    }
+
+    private void measure(String name, Relationship success, RunnerFactory factory) throws IOException {
+        //预热，让JIT编译热点路径
+        run(factory.create(), TestData.avro(WARM_UP_RECORDS, TYPES), success);
+        for (int records : sizes) {
+            byte[] input = TestData.avro(records, TYPES);
+            final long bytes = input.length;
+            final long nanos = run(factory.create(), input, success);
+            input = null; //大输入不要留到下一轮
+            final double seconds = nanos / 1e9;
+            final long recordsPerSecond = (long) (records / seconds);
+            final long bytesPerSecond = (long) (bytes / seconds);
+            final double ratio = recordsPerSecond / referenceRate(records);
+            final String key = name + "." + records;
+            results.put(key + ".records.per.second", String.valueOf(recordsPerSecond));
+            results.put(key + ".bytes.per.second", String.valueOf(bytesPerSecond));
+            ratios.put(key + ".relative", String.format(Locale.ROOT, "%.4f", ratio));
+
+            final String expected = baseline.getProperty(key + ".relative");
+            System.out.println(String.format("%-20s %9d records %8.2f s %10d records/s %8.2f MB/s ratio %.4f baseline %s",
+                    name, records, seconds, recordsPerSecond, bytesPerSecond / 1048576.0, ratio, expected == null ? "-" : expected));
+            if (!updateBaseline && expected != null && ratio < Double.parseDouble(expected) * (1 - tolerance)) {
+                regressions.add(key + ": ratio " + String.format(Locale.ROOT, "%.4f", ratio) + ", baseline " + expected);
+            }
+        }
+        if (!regressions.isEmpty()) {
+            final String message = "throughput below baseline by more than " + (int) (tolerance * 100) + "%: " + regressions;
+            regressions.clear();
+            fail(message);
+        }
+    }
+
+    /**
+     * records/s of reading the input with DataFileStream and writing every record again with DataFileWriter,
+     * measured once per size after a warm-up
+     */
+    private static double referenceRate(int records) throws IOException {
+        Double rate = referenceRates.get(records);
+        if (rate == null) {
+            copyAvro(TestData.avro(WARM_UP_RECORDS, TYPES));
+            final byte[] input = TestData.avro(records, TYPES);
+            final long start = System.nanoTime();
+            copyAvro(input);
+            rate = records / ((System.nanoTime() - start) / 1e9);
+            referenceRates.put(records, rate);
+        }
+        return rate;
+    }
+
+    private static void copyAvro(byte[] input) throws IOException {
+        final OutputStream discard = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        try (DataFileStream<GenericRecord> in = new DataFileStream<>(new ByteArrayInputStream(input), new GenericDatumReader<GenericRecord>());
+             DataFileWriter<GenericRecord> out = new DataFileWriter<>(new GenericDatumWriter<GenericRecord>(in.getSchema()))) {
+            out.create(in.getSchema(), discard);
+            GenericRecord rec = null;
+            while (in.hasNext()) {
+                rec = in.next(rec);
+                out.append(rec);
+            }
+        }
+    }
+
+    /**
+     * @return nanoseconds spent in onTrigger
+     */
+    private static long run(TestRunner runner, byte[] input, Relationship success) {
+        runner.enqueue(input);
+        final Processor processor = runner.getProcessor();
+        final long start = System.nanoTime();
+        runner.run();
+        final long nanos = System.nanoTime() - start;
+        final List<MockFlowFile> output = runner.getFlowFilesForRelationship(success);
+        assertTrue(processor.getClass().getSimpleName() + " produced no output", !output.isEmpty());
+        runner.clearTransferState();
+        return nanos;
+    }
+}
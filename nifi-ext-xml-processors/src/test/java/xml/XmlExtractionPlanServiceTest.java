@@ -0,0 +1,111 @@
+package xml;
+
+import org.apache.avro.Schema;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.processors.ext.xml.ExtractionPlan;
+import org.apache.nifi.processors.ext.xml.ProcessXMLInAvro;
+import org.apache.nifi.processors.ext.xml.StandardXmlExtractionPlanService;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+public class XmlExtractionPlanServiceTest {
+    private static final String PLAN_V1 = "pub_id = /product/pub_basic/pub_id\n" +
+            "doi = /product/pub_extend/doi\n";
+    private static final String PLAN_V2 = "pub_id:long = /product/pub_basic/pub_id\n" +
+            "\n" +
+            "publish_year:int = /product/pub_basic/publish_year\n" +
+            "doi = /product/pub_extend/doi\n";
+
+    private static StandardXmlExtractionPlanService addService(TestRunner runner) throws InitializationException {
+        StandardXmlExtractionPlanService service = new StandardXmlExtractionPlanService();
+        runner.addControllerService("plans", service);
+        runner.setProperty(service, "pub", PLAN_V1);
+        runner.setProperty(service, "pub@2", PLAN_V2);
+        return service;
+    }
+
+    @Test
+    public void testProcessorsShareCompiledPlan() throws Exception {
+        TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+        StandardXmlExtractionPlanService service = addService(runner);
+        runner.enableControllerService(service);
+        assertEquals(new HashSet<>(Arrays.asList("pub@1", "pub@2")), service.getPlanNames());
+        assertSame(service.getPlan("pub@2"), service.getPlan("pub"));
+        assertNull(service.getPlan("pub@3"));
+
+        runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+        runner.setProperty(ProcessXMLInAvro.EXTRACTION_PLAN_SERVICE, "plans");
+        runner.setProperty(ProcessXMLInAvro.EXTRACTION_PLAN, "pub@1");
+        runner.enqueue(TestData.avro(5, 1));
+        runner.run();
+        List<GenericRecord> pinned = TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray());
+        assertEquals(5, pinned.size());
+        assertEquals(Schema.Type.STRING, pinned.get(0).getSchema().getField("pub_id").schema().getTypes().get(1).getType());
+
+        //不写版本号时使用最高版本，字段按方案中的类型输出
+        runner.clearTransferState();
+        runner.setProperty(ProcessXMLInAvro.EXTRACTION_PLAN, "pub");
+        runner.enqueue(TestData.avro(5, 1));
+        runner.run();
+        List<GenericRecord> latest = TestData.read(runner.getFlowFilesForRelationship(ProcessXMLInAvro.REL_SUCCESS).get(0).toByteArray());
+        assertEquals(5, latest.size());
+        for (GenericRecord rec : latest) {
+            long id = (Long) rec.get("pub_id");
+            assertEquals(2010 + (int) id % 10, rec.get("publish_year"));
+            assertEquals("10.1000/" + id, rec.get("doi").toString());
+        }
+    }
+
+    @Test
+    public void testInvalidPlansAndReferences() throws Exception {
+        TestRunner runner = TestRunners.newTestRunner(new ProcessXMLInAvro());
+        StandardXmlExtractionPlanService service = addService(runner);
+        runner.setProperty(service, "bad", "pub_id:decimal = /product/pub_basic/pub_id");
+        runner.assertNotValid(service);
+        runner.setProperty(service, "bad", "pub_id = /product/pub_basic/pub_id#/product/pub_basic/[");
+        runner.assertNotValid(service);
+        runner.setProperty(service, "bad", "pub_id = /product/pub_basic/pub_id");
+        runner.assertValid(service);
+        runner.enableControllerService(service);
+
+        runner.setProperty(ProcessXMLInAvro.NEED_COMPILE_XML_FIELD, "product_xml");
+        runner.setProperty(ProcessXMLInAvro.EXTRACTION_PLAN_SERVICE, "plans");
+        runner.assertNotValid();
+        runner.setProperty(ProcessXMLInAvro.EXTRACTION_PLAN, "pub");
+        runner.assertValid();
+        runner.setProperty("doi", "/product/pub_extend/doi");
+        runner.assertNotValid();
+
+        TestRunner duplicate = TestRunners.newTestRunner(new ProcessXMLInAvro());
+        StandardXmlExtractionPlanService other = addService(duplicate);
+        duplicate.setProperty(other, "pub@1", PLAN_V1); //pub 即 pub@1
+        duplicate.assertNotValid(other);
+    }
+
+    @Test
+    public void testDeclaredNamespacesAndTypes() throws Exception {
+        ExtractionPlan plan = ExtractionPlan.parse("ns", 1, ProcessXMLInAvro.SYNTAX_XPATH,
+                "xmlns:p = urn:product\n" +
+                "id:int = /p:product/p:id\n" +
+                "flags:boolean = /p:product/p:flag\n" +
+                "both = /p:product/p:flag#/p:product/p:missing\n");
+        //文档中使用不同的前缀，仍按方案声明的URI匹配
+        Map<String, String> values = plan.extract("<x:product xmlns:x=\"urn:product\"><x:id> 7 </x:id><x:flag>TRUE</x:flag></x:product>");
+        assertEquals(7, plan.convert("id", values.get("id")));
+        assertEquals(Boolean.TRUE, plan.convert("flags", values.get("flags")));
+        assertEquals("TRUE#null", values.get("both"));
+        assertNull(plan.convert("id", "1#2"));
+        assertEquals(Schema.Type.STRING, plan.getType("both"));
+    }
+}